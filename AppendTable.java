@@ -0,0 +1,69 @@
+package drawingapplication;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+// AppendTable is a list that only grows, which copies share instead of copying it. The
+// items are kept in fixed-size chunks that are never moved, so a copy made with share()
+// can keep reading the items it was made with while the table it came from appends more,
+// even on another thread once the copy has been handed over safely. A copy that appends
+// first takes chunks of its own. The List methods that change the table are not supported.
+class AppendTable<T> extends AbstractList<T> {
+
+    private static final int CHUNK = 64; // items per chunk
+
+    private Object[][] chunks;
+    private int size;
+    private boolean owner; // whether this table may write into its chunks
+
+    public AppendTable() {
+        chunks = new Object[1][];
+        size = 0;
+        owner = true;
+    }
+
+    // Creates a copy reading the chunks of another table
+    private AppendTable(AppendTable<T> other) {
+        chunks = other.chunks;
+        size = other.size;
+        owner = false;
+    }
+
+    // Returns a copy in O(1) that later appends to this table do not affect
+    public AppendTable<T> share() {
+        return new AppendTable<>(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if( index < 0 || index >= size )
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return (T) chunks[index / CHUNK][index % CHUNK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Adds an item at the end
+    public void append(T item) {
+        if( !owner ) {
+            // the chunks past size may be written by the table this was copied from
+            Object[][] own = new Object[Math.max(chunks.length, 1)][];
+            for( int chunk = 0; chunk * CHUNK < size; chunk++ )
+                own[chunk] = chunks[chunk].clone();
+            chunks = own;
+            owner = true;
+        }
+        int chunk = size / CHUNK;
+        if( chunk == chunks.length )
+            chunks = Arrays.copyOf(chunks, chunks.length * 2); // copies keep the old spine
+        if( chunks[chunk] == null )
+            chunks[chunk] = new Object[CHUNK];
+        chunks[chunk][size % CHUNK] = item;
+        size++;
+    }
+
+} // end of AppendTable class
@@ -0,0 +1,235 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// DensityLayer is a coarse summary of the shapes in a ShapeStore, drawn instead of the
+// shapes when the drawing is zoomed out so far, or is so dense, that drawing it shape by
+// shape would take too long. Every shape is counted in the cell holding the center of its
+// bounds on each level of a pyramid of grids, whose cells double in size from one level
+// to the next. A cell keeps how many shapes it holds, about how much area they paint and
+// their average color, so the summary is drawn with one fill per cell on screen however
+// many shapes there are.
+class DensityLayer {
+
+    static final int CELL_SIZE = 16; // width and height of a cell on the finest level, in drawing units
+    static final int LEVELS = 14; // the coarsest cells are CELL_SIZE << (LEVELS - 1) units wide
+    private static final int MIN_CELL_PIXELS = 2; // cells are drawn at least this many pixels wide
+    // the layer is only meant to be drawn at or below this scale, where its finest cells
+    // are at most 4 pixels wide; closer up it would look blocky
+    static final double MAX_SCALE = 4.0 / CELL_SIZE;
+    private static final int COUNT_CELLS = 16; // cells across an area looked at to estimate a count
+
+    private final ShapeStore store; // the shapes being summarized
+    private final ArrayList<HashMap<Long, Cell>> levels; // cells per level, finest first
+    private final Rectangle bounds; // scratch rectangle for shape bounds
+    private final Rectangle area; // scratch rectangle for the drawing area being drawn
+    private BufferedImage image; // the cells are drawn into this first, grown as needed
+
+    public DensityLayer(ShapeStore store) {
+        this.store = store;
+        levels = new ArrayList<>(LEVELS);
+        for( int level = 0; level < LEVELS; level++ )
+            levels.add(new HashMap<>());
+        bounds = new Rectangle();
+        area = new Rectangle();
+    }
+
+    // Counts the shape at the given store index
+    public void add(int index) {
+        update(index, 1);
+    }
+
+    // Takes the shape at the given store index back out. Call this before the shape is
+    // removed from the store.
+    public void removeLast(int index) {
+        update(index, -1);
+    }
+
+    // Takes the shape at the given store index back out, wherever it is in the drawing
+    // order. Call this before the shape is moved in the store, and add it again afterwards.
+    public void remove(int index) {
+        update(index, -1);
+    }
+
+    public void clear() {
+        for( HashMap<Long, Cell> cells : levels )
+            cells.clear();
+    }
+
+    // Returns an estimate of the number of shapes inside area: the shapes centered in the
+    // cells covering it, on a level where that is about COUNT_CELLS by COUNT_CELLS cells
+    public long count(Rectangle area) {
+        int level = 0;
+        while( level < LEVELS - 1 && (long) cellSize(level) * COUNT_CELLS < Math.max(area.width, area.height) )
+            level++;
+
+        long[] total = new long[1];
+        visit(level, area, (col, row, cell) -> total[0] += cell.count);
+        return total[0];
+    }
+
+    // Draws the cells covering the given panel pixels onto g, which draws in panel pixels.
+    // Each cell is filled with the average color of its shapes, as opaque as the share of
+    // the cell they paint. The cells are written straight into an image the size of the
+    // region, which is drawn with one call.
+    public void draw(Graphics2D g, Viewport view, Rectangle pixels) {
+        if( pixels.isEmpty() )
+            return;
+        if( image == null || image.getWidth() < pixels.width || image.getHeight() < pixels.height ) {
+            image = new BufferedImage(Math.max(pixels.width, image == null ? 0 : image.getWidth()),
+                    Math.max(pixels.height, image == null ? 0 : image.getHeight()), BufferedImage.TYPE_INT_ARGB);
+        }
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int stride = image.getWidth();
+        for( int y = 0; y < pixels.height; y++ )
+            Arrays.fill(data, y * stride, y * stride + pixels.width, 0);
+
+        int level = drawLevel(view);
+        int size = cellSize(level);
+        double cellArea = (double) size * size;
+        view.toDrawing(pixels, area);
+        visit(level, area, (col, row, cell) -> {
+            // the cell's pixels, relative to the region and clipped to it
+            int left = Math.max(view.pixelX((double) col * size) - pixels.x, 0);
+            int top = Math.max(view.pixelY((double) row * size) - pixels.y, 0);
+            int right = Math.min(view.pixelX((double) (col + 1) * size) - pixels.x, pixels.width);
+            int bottom = Math.min(view.pixelY((double) (row + 1) * size) - pixels.y, pixels.height);
+            if( left >= right || top >= bottom )
+                return;
+
+            long alpha = Math.max(1, Math.min(255, Math.round(255 * cell.weight / cellArea)));
+            int argb = (int) (alpha << 24 | (cell.red / cell.weight) << 16
+                    | (cell.green / cell.weight) << 8 | cell.blue / cell.weight);
+            for( int y = top; y < bottom; y++ )
+                Arrays.fill(data, y * stride + left, y * stride + right, argb);
+        });
+        g.drawImage(image, pixels.x, pixels.y, pixels.x + pixels.width, pixels.y + pixels.height,
+                0, 0, pixels.width, pixels.height, null);
+    } // end of draw
+
+    // Stores in pixels the panel pixels of the cells draw shows the shapes inside the
+    // drawing area in, which have to be redrawn when those shapes are added or removed
+    public void getCellPixels(Rectangle area, Viewport view, Rectangle pixels) {
+        int size = cellSize(drawLevel(view));
+        int left = view.pixelX((double) Math.floorDiv(area.x, size) * size);
+        int top = view.pixelY((double) Math.floorDiv(area.y, size) * size);
+        int right = view.pixelX((double) (Math.floorDiv(area.x + area.width, size) + 1) * size);
+        int bottom = view.pixelY((double) (Math.floorDiv(area.y + area.height, size) + 1) * size);
+        pixels.setBounds(left, top, Math.max(right - left, 1), Math.max(bottom - top, 1));
+    }
+
+    // The finest level whose cells are at least MIN_CELL_PIXELS wide in the view
+    private static int drawLevel(Viewport view) {
+        int level = 0;
+        while( level < LEVELS - 1 && cellSize(level) * view.getScale() < MIN_CELL_PIXELS )
+            level++;
+        return level;
+    }
+
+    // Adds sign times the shape to the cell holding its center on every level
+    private void update(int index, int sign) {
+        store.getBounds(index, bounds);
+        int centerX = bounds.x + bounds.width / 2;
+        int centerY = bounds.y + bounds.height / 2;
+        long weight = coverage(index);
+        Color color = MyShape.averageColor(store.getPaint(index));
+
+        for( int level = 0; level < LEVELS; level++ ) {
+            HashMap<Long, Cell> cells = levels.get(level);
+            Long key = key(Math.floorDiv(centerX, cellSize(level)), Math.floorDiv(centerY, cellSize(level)));
+            Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+            cell.count += sign;
+            cell.weight += sign * weight;
+            cell.red += sign * weight * color.getRed();
+            cell.green += sign * weight * color.getGreen();
+            cell.blue += sign * weight * color.getBlue();
+            if( cell.count == 0 )
+                cells.remove(key);
+        }
+    } // end of update
+
+    // Roughly the area the shape at the given index paints, in square drawing units, at least 1
+    private long coverage(int index) {
+        long width = Math.abs(store.getX1(index) - store.getX2(index));
+        long height = Math.abs(store.getY1(index) - store.getY2(index));
+        Stroke stroke = store.getStroke(index);
+        long lineWidth = stroke instanceof BasicStroke
+                ? Math.max(1, Math.round(((BasicStroke) stroke).getLineWidth())) : 1;
+
+        long painted;
+        if( store.getType(index) == ShapeStore.LINE )
+            painted = Math.round(Math.hypot(width, height)) * lineWidth;
+        else if( store.isFilled(index) )
+            painted = width * height;
+        else
+            painted = Math.min(2 * (width + height) * lineWidth, (width + lineWidth) * (height + lineWidth));
+        return Math.max(painted, 1);
+    }
+
+    // Calls the visitor for every cell of the level that intersects area
+    private void visit(int level, Rectangle area, CellVisitor visitor) {
+        HashMap<Long, Cell> cells = levels.get(level);
+        int size = cellSize(level);
+        int firstColumn = Math.floorDiv(area.x, size);
+        int lastColumn = Math.floorDiv(area.x + area.width - 1, size);
+        int firstRow = Math.floorDiv(area.y, size);
+        int lastRow = Math.floorDiv(area.y + area.height - 1, size);
+
+        // for very large areas it is cheaper to walk the occupied cells than every cell
+        if( (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > cells.size() ) {
+            for( Map.Entry<Long, Cell> entry : cells.entrySet() ) {
+                int col = (int) (entry.getKey() >> 32);
+                int row = (int) (long) entry.getKey();
+                if( col >= firstColumn && col <= lastColumn && row >= firstRow && row <= lastRow )
+                    visitor.visit(col, row, entry.getValue());
+            }
+        }
+        else {
+            for( int row = firstRow; row <= lastRow; row++ ) {
+                for( int col = firstColumn; col <= lastColumn; col++ ) {
+                    Cell cell = cells.get(key(col, row));
+                    if( cell != null )
+                        visitor.visit(col, row, cell);
+                }
+            }
+        }
+    } // end of visit
+
+    private static int cellSize(int level) {
+        return CELL_SIZE << level;
+    }
+
+    private static Long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xFFFFFFFFL);
+    }
+
+
+    // Cell sums up the shapes centered in one cell. The colors are weighted by the area
+    // each shape paints, and everything is a whole number so removing a shape takes back
+    // exactly what adding it put in.
+    private static final class Cell {
+
+        int count;
+        long weight; // area painted, in square drawing units
+        long red; // color components times weight
+        long green;
+        long blue;
+    } // end of inner class Cell
+
+
+    // CellVisitor receives the cells found by visit
+    private interface CellVisitor {
+        void visit(int col, int row, Cell cell);
+    } // end of inner interface CellVisitor
+
+} // end of DensityLayer class
@@ -1,52 +1,166 @@
 
 package drawingapplication;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Paint;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
-import javax.swing.JLabel;
+import java.awt.event.MouseWheelEvent;
+import javax.swing.AbstractAction;
 import javax.swing.JPanel;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 
-// DrawPanel handles all interactions with the drawing pad using the mouse
+// DrawPanel handles all interactions with the drawing pad using the mouse. The drawing
+// is a stack of layers, each keeping its own shapes and its own raster; edits go to the
+// active layer, and a paint composites the rasters of the visible layers.
 class DrawPanel extends JPanel {
     
-    private final MyShape[] shapes; // stores all the shapes the user draws
-    private int shapeCount; // number of shapes the user draws
+    static final double ZOOM_STEP = 1.25; // scale change per notch of the mouse wheel
+    private static final int OVERLAY_REFRESH = 250; // milliseconds between overlay updates
+    private static final Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+    private static final int PENDING_LIMIT = 256; // most new shapes drawn on top of a layer that lacks them
+    private static final int NO_CHANGE = Integer.MAX_VALUE; // firstChanged when no shape changed
+    private static final double FREEHAND_TOLERANCE = 1.5; // pixels a freehand stroke may stray from the pen
+    static final int SELECT_TOOL = 4; // shape type of the Select entry, which picks and moves shapes instead
+    private static final int MOVE_MARGIN = 256; // pixels beyond the panel's edges a dragged selection is drawn for
+    private static final Stroke SELECTION_STROKE = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+            10, new float[] {4, 4}, 0);
+    static final String LAYER_LIST = "layers.txt"; // names the layers' journals in the journal directory
+    private static final String FIRST_LAYER = "Layer 1"; // name of the layer a new pad starts with
+    
+    private final ArrayList<Layer> layers; // the layers of the drawing, bottom first
+    private Layer active; // the layer edits go to
+    private ShapeStore shapes; // the active layer's shapes
     private int shapeType; // determines the type of shape to draw
     private Stroke currentStroke; // current type of stroke (dashed, line width, etc.)
     private MyShape currentShape; // represents the current shape the user is drawing
     private Paint currentColor; // current drawing color
     private Boolean filledShape; // determines whether the shape is filled or not
-    private final JLabel statusBar; // displays the current location of the mouse on the draw panel
+    private final StatusBar statusBar; // displays the current location of the mouse on the draw panel
+    private final ArrayList<Runnable> paintListeners = new ArrayList<>(); // run once, after the next paint
+    private final boolean asyncRendering; // layers are drawn on their render threads once the panel is on screen
+    private SpatialGrid shapeIndex; // finds the active layer's shapes inside a region or under a point
+    private final Viewport viewport; // maps drawing coordinates to panel pixels
+    private final Rectangle shapeRegion; // scratch rectangle for the current shape's pixels
+    private boolean panning; // the drawing is being dragged with the right or middle button
+    private int panX; // panel pixel the drawing was last dragged to
+    private int panY;
+    private final Rectangle lastRepaintRegion; // region of the most recent partial repaint, reused
+    private final Rectangle dragRegion; // scratch rectangle for the drag path
+    private final Rectangle freehandRegion; // part of a freehand stroke changed since the last frame
+    private long repaintedArea; // pixels covered by partial repaints
+    private long fullRepaintArea; // pixels the same repaints would cover on the whole panel
+    private Path journalDirectory; // where the layers' journals are kept, null until opened
+    private DrawingClient collaboration; // the server the drawing is shared through, null when drawing alone
+    private final Rectangle serverRegion; // scratch rectangle for the shapes the server's edits touch
+    private final IntList selection; // ascending indexes of the selected shapes
+    private final Rectangle selectionBounds; // drawing area the selected shapes cover, empty when there are none
+    private Rectangle band; // the rubber band being dragged out, in drawing coordinates, null when there is none
+    private int bandX; // drawing point the rubber band started at
+    private int bandY;
+    private boolean moving; // the selection is being dragged
+    private int moveX; // drawing point the drag started at
+    private int moveY;
+    private int moveDx; // how far the selection has been dragged, in drawing units
+    private int moveDy;
+    private BufferedImage selectionImage; // the selected shapes drawn once, shown moved along while dragged
+    private Rectangle selectionImageArea; // panel pixels the image covers, in the view it was drawn for
+    private Viewport selectionImageView; // that view, null until the image is drawn for a drag
+    private long selectionImageRemovals; // the image is shown until a layer drawn after this many removals
+    private EditHistory history; // earlier and undone versions of the active layer
+    private final FrameScheduler frameScheduler; // applies coalesced mouse motion once per frame
+    private int pendingX; // latest mouse position not applied yet
+    private int pendingY;
+    private boolean motionPending; // a drag or move arrived since the last frame
+    private boolean dragPending; // one of them was a drag
+    private long pendingInputTime; // System.nanoTime() when the latest pending event arrived
+    private long unpaintedInputTime; // arrival time of input applied but not painted yet, 0 if none
+    private long motionEventCount; // drag and move events received
+    private long latencyCount; // inputs whose latency has been measured
+    private long latencyTotal; // nanoseconds from input to paint, summed
+    private long lastLatency;
+    private long maxLatency;
+    private final RenderMetrics metrics; // paint, input and EDT measurements for JMX, JFR and the overlay
+    private final Timer overlayTimer; // repaints the debug overlay while it is shown
+    private final Rectangle overlayRegion; // pixels the debug overlay covered when last painted
+    private BufferedImage overlayImage; // the overlay drawn by overlayTimer, so a paint only copies it, null if stale
     
     public DrawPanel() {
         
 // initialize instance variable
-        shapes = new MyShape[100];
-        shapeCount = 0; // number of shapes on the pad
+        layers = new ArrayList<>();
+        asyncRendering = Boolean.parseBoolean(System.getProperty("drawing.asyncRendering", "true"));
+        activate(newLayer(FIRST_LAYER));
+        layers.add(active);
         shapeType = 0; // 0 is the index for a line shape
         filledShape = false;
         currentShape = null;
         currentStroke = new BasicStroke();
         currentColor = Color.BLACK;
-        statusBar = new JLabel("Mouse outside of drawing pad.");
+        viewport = new Viewport();
+        shapeRegion = new Rectangle();
+        lastRepaintRegion = new Rectangle();
+        dragRegion = new Rectangle();
+        serverRegion = new Rectangle();
+        selection = new IntList();
+        selectionBounds = new Rectangle(0, 0, -1, -1);
+        freehandRegion = new Rectangle(0, 0, -1, -1); // empty, the first point added sets it
+        frameScheduler = new FrameScheduler(this::applyPendingMotion,
+                Integer.getInteger("drawing.fps", FrameScheduler.DEFAULT_FPS));
+        statusBar = new StatusBar("Mouse outside of drawing pad.");
+        metrics = new RenderMetrics(() -> shapes.size());
+        overlayRegion = new Rectangle();
+        overlayTimer = new Timer(OVERLAY_REFRESH, event -> refreshOverlay());
+        metrics.setOverlayListener(this::overlayChanged);
         setBackground(Color.WHITE);
         setPreferredSize(new Dimension(580,470));
         
+        // F3 shows and hides the debug overlay wherever the focus is in the window
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("F3"), "toggleOverlay");
+        getActionMap().put("toggleOverlay", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                metrics.setOverlayVisible(!metrics.isOverlayVisible());
+            }
+        });
+        
         // Create and register listener for mouse and mouse motion on drawing pad
         // All mouse events will take place on the drawing pad
         MouseHandler mouseHandler = new MouseHandler();
         addMouseMotionListener(mouseHandler);
         addMouseListener(mouseHandler);
+        addMouseWheelListener(mouseHandler);
     } // end of DrawPanel constructor
     
     
@@ -57,25 +171,783 @@ class DrawPanel extends JPanel {
         // Downcast Graphics reference to Graphics2D
         Graphics2D g2D = (Graphics2D) g;
         
+        // measured only while metrics are switched on, otherwise this is one volatile read
+        long paintStart = 0;
+        PaintEvent paintEvent = null;
+        if( metrics.isActive() ) {
+            paintStart = System.nanoTime();
+            paintEvent = metrics.paintStarted();
+        }
+        
         super.paintComponent(g);
         
+        // only the part of the panel inside the clip has to be painted
+        Rectangle clip = g2D.getClipBounds();
+        if( clip == null )
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        
+        // the visible layers are copied from their rasters bottom first, each as opaque as
+        // it is set to, so an edit to one layer only has that layer drawn again
+        int shapesDrawn = 0;
+        int shapeTotal = 0;
+        for( Layer each : layers ) {
+            if( each.visible ) {
+                shapesDrawn += paintLayer(g2D, clip, each);
+                shapeTotal += each.shapes.size();
+            }
+        }
+        
+        if( !selectionBounds.isEmpty() || band != null )
+            paintSelection(g2D);
+        
         // currentShape.draw() is needed because it is not added to the shapes container
         // until mouse is released so this is needed to see the shape WHILE drawing it
-        if(currentShape != null) 
-            currentShape.draw(g2D);
+        if( currentShape != null ) {
+            currentShape.getBounds().toRectangle(shapeRegion);
+            viewport.toPixels(shapeRegion, shapeRegion);
+            if( shapeRegion.intersects(clip) && viewport.isIdentity() ) {
+                currentShape.draw(g2D);
+            }
+            else if( shapeRegion.intersects(clip) ) {
+                Graphics2D view = (Graphics2D) g2D.create();
+                viewport.applyTo(view);
+                currentShape.draw(view);
+                view.dispose();
+            }
+        }
+        
+        if( metrics.isOverlayVisible() && (overlayRegion.isEmpty() || overlayRegion.intersects(clip)) )
+            paintOverlay(g2D);
+        
+        // the input applied since the last paint is now on screen
+        long inputLatency = 0;
+        if( unpaintedInputTime != 0 ) {
+            inputLatency = System.nanoTime() - unpaintedInputTime;
+            lastLatency = inputLatency;
+            latencyTotal += lastLatency;
+            maxLatency = Math.max(maxLatency, lastLatency);
+            latencyCount++;
+            unpaintedInputTime = 0;
+        }
+        
+        if( paintStart != 0 ) {
+            metrics.paintFinished(paintStart, paintEvent, shapesDrawn, Math.max(shapeTotal - shapesDrawn, 0),
+                    isShowingDensity(), viewport.getScale(), inputLatency);
+        }
         
-        // continue to draw the shapes that have already been created
-        for( int i = 0; i < shapeCount; i++ ) {
-            shapes[i].draw(g2D);
+        if( !paintListeners.isEmpty() ) {
+            for( Runnable listener : paintListeners )
+                EventQueue.invokeLater(listener);
+            paintListeners.clear();
         }
     } // end of paintComponent
     
+    // Paints one visible layer and returns how many shapes were drawn for it. The shapes
+    // already committed are copied from the layer's raster; one drawn for an earlier view
+    // is shown moved and scaled to the current one until the renderer catches up.
+    private int paintLayer(Graphics2D g2D, Rectangle clip, Layer paintedLayer) {
+        if( paintedLayer.width != Math.max(getWidth(), 1) || paintedLayer.height != Math.max(getHeight(), 1)
+                || paintedLayer.viewChanged || paintedLayer.redrawPending || paintedLayer.firstChanged != NO_CHANGE
+                || paintedLayer.movedShapes.length > 0 )
+            submitLayer(paintedLayer);
+        LayerRenderer.Frame shown = paintedLayer.frame;
+        LayerRenderer.Frame layer = paintedLayer.renderer.takeFrame(shown);
+        paintedLayer.frame = layer;
+        int shapesDrawn = layer != shown ? layer.shapesDrawn : 0;
+        
+        Graphics2D g = g2D;
+        if( paintedLayer.opacity < 1 ) {
+            g = (Graphics2D) g2D.create();
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, paintedLayer.opacity));
+        }
+        if( layer != null && layer.view.sameAs(viewport) ) {
+            Rectangle source = clip.intersection(new Rectangle(0, 0, layer.width, layer.height));
+            g.drawImage(layer.image, source.x, source.y, source.x + source.width, source.y + source.height,
+                    source.x, source.y, source.x + source.width, source.y + source.height, null);
+        }
+        else if( layer != null ) {
+            g.drawImage(layer.image, viewport.transformFrom(layer.view), null);
+        }
+        
+        // shapes committed since the layer was drawn are drawn straight onto the panel until
+        // a layer with them arrives, unless one was taken out in between
+        ShapeStore layerShapes = paintedLayer.shapes;
+        if( layer != null && !layer.coarse && layer.removals == paintedLayer.removals
+                && layer.shapeCount < layerShapes.size() && layerShapes.size() - layer.shapeCount <= PENDING_LIMIT ) {
+            Graphics2D view = (Graphics2D) g.create();
+            viewport.applyTo(view);
+            for( int i = layer.shapeCount; i < layerShapes.size(); i++ ) {
+                layerShapes.getBounds(i, shapeRegion);
+                viewport.toPixels(shapeRegion, shapeRegion);
+                if( shapeRegion.intersects(clip) ) {
+                    layerShapes.draw(i, view);
+                    shapesDrawn++;
+                }
+            }
+            view.dispose();
+        }
+        
+        // a dragged selection is copied from its image, which stays after the drop until a
+        // layer showing the shapes in their new place arrives
+        if( paintedLayer == active ) {
+            if( selectionImage != null && !moving && layer != null && layer.removals >= selectionImageRemovals )
+                selectionImage = null;
+            if( selectionImage != null ) {
+                AffineTransform transform = viewport.transformFrom(selectionImageView);
+                transform.translate(selectionImageArea.x + moveDx * selectionImageView.getScale(),
+                        selectionImageArea.y + moveDy * selectionImageView.getScale());
+                g.drawImage(selectionImage, transform, null);
+            }
+        }
+        if( g != g2D )
+            g.dispose();
+        return shapesDrawn;
+    } // end of paintLayer
+    
+    // Outlines the selection and the rubber band, in panel pixels so the dashes keep their
+    // size at any zoom
+    private void paintSelection(Graphics2D g) {
+        Graphics2D outline = (Graphics2D) g.create();
+        outline.setStroke(SELECTION_STROKE);
+        outline.setColor(Color.BLUE);
+        if( !selectionBounds.isEmpty() ) {
+            shapeRegion.setBounds(selectionBounds);
+            if( moving )
+                shapeRegion.translate(moveDx, moveDy);
+            viewport.toPixels(shapeRegion, shapeRegion);
+            outline.drawRect(shapeRegion.x, shapeRegion.y, shapeRegion.width - 1, shapeRegion.height - 1);
+        }
+        if( band != null ) {
+            viewport.toPixels(band, shapeRegion);
+            outline.drawRect(shapeRegion.x, shapeRegion.y, shapeRegion.width - 1, shapeRegion.height - 1);
+        }
+        outline.dispose();
+    }
+    
+    // Copies the overlay into the top-left corner, drawing it first if it is stale.
+    // Text is slow to draw, so it is only drawn when the numbers are refreshed.
+    private void paintOverlay(Graphics2D g) {
+        if( overlayImage == null )
+            overlayImage = renderOverlay(metrics.overlayLines());
+        g.drawImage(overlayImage, overlayRegion.x, overlayRegion.y, null);
+    }
+    
+    // Draws the lines as text in a translucent box and sets overlayRegion to where it goes
+    private BufferedImage renderOverlay(String[] lines) {
+        FontMetrics fontMetrics = getFontMetrics(OVERLAY_FONT);
+        int width = 0;
+        for( String line : lines )
+            width = Math.max(width, fontMetrics.stringWidth(line));
+        overlayRegion.setBounds(4, 4, width + 8, lines.length * fontMetrics.getHeight() + 8);
+        
+        BufferedImage image = new BufferedImage(overlayRegion.width, overlayRegion.height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(0, 0, overlayRegion.width, overlayRegion.height);
+        g.setColor(Color.WHITE);
+        g.setFont(OVERLAY_FONT);
+        for( int i = 0; i < lines.length; i++ )
+            g.drawString(lines[i], 4, 4 + i * fontMetrics.getHeight() + fontMetrics.getAscent());
+        g.dispose();
+        return image;
+    }
+    
+    // Takes the latest numbers into the overlay and repaints it
+    private void refreshOverlay() {
+        Rectangle previous = new Rectangle(overlayRegion);
+        overlayImage = renderOverlay(metrics.overlayLines());
+        repaint(previous.union(overlayRegion));
+    }
+    
+    // Starts or stops refreshing the overlay as it is shown or hidden
+    private void overlayChanged() {
+        overlayImage = null;
+        if( metrics.isOverlayVisible() )
+            overlayTimer.start();
+        else
+            overlayTimer.stop();
+        repaint(overlayRegion.isEmpty() ? new Rectangle(0, 0, getWidth(), getHeight()) : overlayRegion);
+    }
+    
+    // Counts every repaint asked for, to compare with the paints Swing actually does.
+    // The superclass constructor repaints before metrics exists.
+    @Override
+    public void repaint(long time, int x, int y, int width, int height) {
+        if( metrics != null && metrics.isActive() )
+            metrics.repaintRequested();
+        super.repaint(time, x, y, width, height);
+    }
+    
+    // Asks a layer's renderer for a raster showing the layer as it is now. Once the panel
+    // is on screen the raster is drawn on the render thread and shown by a later paint, so
+    // a drawing that takes seconds to draw never blocks the EDT; before that, as in the
+    // benchmarks, it is drawn right here. The renderer only redraws what changed: the
+    // shapes from firstChanged on, the places moved shapes left and went to, and the
+    // strips a pan uncovered.
+    private void submitLayer(Layer submitted) {
+        submitted.width = Math.max(getWidth(), 1);
+        submitted.height = Math.max(getHeight(), 1);
+        LayerRenderer.Job job = new LayerRenderer.Job(submitted.shapes.copy(), viewport.copy(),
+                submitted.width, submitted.height, Math.min(submitted.firstChanged, submitted.shapes.size()),
+                submitted.movedShapes, submitted.removals, submitted.redrawPending);
+        submitted.firstChanged = NO_CHANGE;
+        submitted.movedShapes = new int[0];
+        submitted.viewChanged = false;
+        submitted.redrawPending = false;
+        
+        if( submitted.renderer.isStarted() || (asyncRendering && isShowing()) )
+            submitted.renderer.submit(job);
+        else
+            submitted.frame = submitted.renderer.render(job);
+    }
+    
+    // Has every layer drawn again on the next paint, though nothing changed
+    void redrawLayer() {
+        for( Layer each : layers )
+            each.redrawPending = true;
+        repaint();
+    }
+    
+    // Has every layer follow the view on the next paint
+    private void viewChanged() {
+        for( Layer each : layers )
+            each.viewChanged = true;
+        repaint();
+    }
+    
+    // Marks the active layer's shapes from the given index on as changed, for the next job
+    private void shapesChanged(int index) {
+        active.firstChanged = Math.min(active.firstChanged, index);
+    }
+    
+    // Marks the active layer's shapes at the given ascending indexes as moved in place, for the next job
+    private void shapesMoved(int[] indexes) {
+        active.movedShapes = LayerRenderer.Job.union(active.movedShapes, indexes);
+    }
+    
+    // Asks Swing to repaint only the pixels showing the given drawing region and keeps a
+    // running total of the area repainted next to the area full-panel repaints would have cost
+    private void repaintRegion(Rectangle region) {
+        
+        // convert the region to pixels and clip it to the panel without allocating a
+        // rectangle per event
+        viewport.toPixels(region, lastRepaintRegion);
+        int left = Math.max(lastRepaintRegion.x, 0);
+        int top = Math.max(lastRepaintRegion.y, 0);
+        int right = Math.min(lastRepaintRegion.x + lastRepaintRegion.width, getWidth());
+        int bottom = Math.min(lastRepaintRegion.y + lastRepaintRegion.height, getHeight());
+        lastRepaintRegion.setBounds(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
+        if( lastRepaintRegion.isEmpty() )
+            return;
+        
+        repaintedArea += (long) lastRepaintRegion.width * lastRepaintRegion.height;
+        fullRepaintArea += (long) getWidth() * getHeight();
+        repaint(lastRepaintRegion);
+    }
+    
+    // Number of pixels repainted by the drag and release paths
+    public long getRepaintedArea() {
+        return repaintedArea;
+    }
+    
+    // Number of pixels the same repaints would have covered had they repainted the whole panel
+    public long getFullRepaintArea() {
+        return fullRepaintArea;
+    }
+    
+    Rectangle getLastRepaintRegion() {
+        return lastRepaintRegion;
+    }
+    
+    // Zooms the view by factor, keeping the drawing under the given panel pixel in place
+    public void zoom(double factor, int x, int y) {
+        if( viewport.zoomAt(factor, x, y) )
+            viewChanged();
+    }
+    
+    // Moves the view of the drawing by the given number of pixels. The layer is shown
+    // moved along at once, and the renderer only draws the strip uncovered at the edge.
+    public void pan(int dx, int dy) {
+        if( dx == 0 && dy == 0 )
+            return;
+        viewport.panBy(dx, dy);
+        viewChanged();
+    }
+    
+    // Shows the drawing at its own size with its origin at the top-left corner again
+    public void resetView() {
+        viewport.reset();
+        viewChanged();
+    }
+    
+    // Panel pixels per drawing unit
+    public double getScale() {
+        return viewport.getScale();
+    }
+    
+    // True when a visible layer shows the density summary instead of its shapes
+    boolean isShowingDensity() {
+        for( Layer each : layers ) {
+            if( each.visible && each.frame != null && each.frame.coarse )
+                return true;
+        }
+        return false;
+    }
+    
+    // True when every visible layer shows its current shapes in the current view
+    boolean isLayerCurrent() {
+        for( Layer each : layers ) {
+            LayerRenderer.Frame frame = each.frame;
+            if( each.visible && (frame == null || frame.shapeCount != each.shapes.size()
+                    || frame.removals != each.removals || !frame.view.sameAs(viewport) || each.viewChanged
+                    || each.redrawPending || each.firstChanged != NO_CHANGE || each.movedShapes.length > 0) )
+                return false;
+        }
+        return true;
+    }
+    
+    // Sets how many times a second coalesced mouse motion is applied and repainted,
+    // 0 applies every event as it arrives
+    public void setTargetFps(int targetFps) {
+        frameScheduler.setTargetFps(targetFps);
+    }
+    
+    public int getTargetFps() {
+        return frameScheduler.getTargetFps();
+    }
+    
+    // Number of drag and move events received
+    public long getMotionEventCount() {
+        return motionEventCount;
+    }
+    
+    // Number of frames the motion events were coalesced into
+    public long getMotionFrameCount() {
+        return frameScheduler.getFrameCount();
+    }
+    
+    // Nanoseconds from the arrival of the most recent painted input to the end of its paint
+    public long getLastInputLatency() {
+        return lastLatency;
+    }
+    
+    public long getAverageInputLatency() {
+        return latencyCount == 0 ? 0 : latencyTotal / latencyCount;
+    }
+    
+    public long getMaxInputLatency() {
+        return maxLatency;
+    }
+    
+    // Applies the latest mouse position received since the last frame
+    private void applyPendingMotion() {
+        if( !motionPending )
+            return;
+        motionPending = false;
+        if( metrics.isActive() )
+            metrics.motionFrame();
+        
+        // Gives the position of the mouse on the drawing pad
+        int x = viewport.toDrawingX(pendingX);
+        int y = viewport.toDrawingY(pendingY);
+        statusBar.setMousePosition(x, y);
+        
+        // This will allow user to see the shape while dragging, only the area
+        // the shape covered before and covers now has to be repainted. The shape is
+        // changed in place and the rectangle reused, so a frame allocates nothing.
+        if( dragPending && panning ) {
+            pan(pendingX - panX, pendingY - panY);
+            panX = pendingX;
+            panY = pendingY;
+            unpaintedInputTime = pendingInputTime;
+        }
+        else if( dragPending && band != null ) {
+            dragRegion.setBounds(band);
+            band.setBounds(Math.min(bandX, x), Math.min(bandY, y), Math.abs(x - bandX), Math.abs(y - bandY));
+            dragRegion.add(band);
+            repaintRegion(dragRegion);
+            unpaintedInputTime = pendingInputTime;
+        }
+        else if( dragPending && moving ) {
+            // the selection is drawn once into an image, every frame after that only copies it
+            if( selectionImageView == null )
+                drawSelectionImage();
+            dragRegion.setBounds(selectionBounds);
+            dragRegion.translate(moveDx, moveDy);
+            moveDx = x - moveX;
+            moveDy = y - moveY;
+            shapeRegion.setBounds(selectionBounds);
+            shapeRegion.translate(moveDx, moveDy);
+            dragRegion.add(shapeRegion);
+            repaintRegion(dragRegion);
+            unpaintedInputTime = pendingInputTime;
+        }
+        else if( dragPending && currentShape instanceof MyFreehand ) {
+            // the samples were added as they arrived, only their segments need painting
+            repaintRegion(freehandRegion);
+            freehandRegion.setBounds(0, 0, -1, -1);
+            unpaintedInputTime = pendingInputTime;
+        }
+        else if( dragPending && currentShape != null ) {
+            currentShape.getBounds().toRectangle(dragRegion);
+            currentShape.setPoint2(x, y);
+            currentShape.getBounds().addTo(dragRegion);
+            repaintRegion(dragRegion);
+            unpaintedInputTime = pendingInputTime;
+        }
+        dragPending = false;
+    } // end of applyPendingMotion
+    
+    // Records a drag or move event to be applied by the next frame
+    private void motionReceived(MouseEvent event, boolean drag) {
+        pendingX = event.getX();
+        pendingY = event.getY();
+        dragPending |= drag;
+        motionPending = true;
+        pendingInputTime = System.nanoTime();
+        motionEventCount++;
+        if( metrics.isActive() )
+            metrics.inputReceived(pendingInputTime, true);
+        frameScheduler.request();
+    }
+    
+    // Counts a mouse event other than a drag or a move
+    private void inputReceived() {
+        if( metrics.isActive() )
+            metrics.inputReceived(System.nanoTime(), false);
+    }
+    
+    // Writes the shapes of the active layer to a binary drawing file, or to a text drawing
+    // if the file's name ends in .drawing
+    public void saveDrawing(Path file) throws IOException {
+        if( !file.getFileName().toString().endsWith(TextDrawingFormat.EXTENSION) ) {
+            DrawingFile.save(shapes, file);
+            return;
+        }
+        try {
+            DrawingFile.replace(file, stream -> {
+                Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                TextDrawingFormat.write(shapes, out);
+                out.flush();
+            });
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e); // a stroke or paint the format has no words for
+        }
+    }
+    
+    // Writes the visible layers as an SVG or PDF file, chosen by the file's extension,
+    // covering the drawing pad at its own size and any shapes lying outside it. Several
+    // visible layers are flattened into one drawing, bottom first, at full opacity.
+    public void exportDrawing(Path file) throws IOException {
+        ShapeStore exported = null;
+        int visibleLayers = 0;
+        for( Layer each : layers ) {
+            if( each.visible ) {
+                exported = each.shapes;
+                visibleLayers++;
+            }
+        }
+        if( visibleLayers != 1 ) {
+            exported = new ShapeStore();
+            for( Layer each : layers ) {
+                for( int i = 0; each.visible && i < each.shapes.size(); i++ )
+                    exported.addFrom(each.shapes, i);
+            }
+        }
+        Rectangle visible = new Rectangle(0, 0, getWidth(), getHeight());
+        VectorExport.export(exported, VectorExport.drawingArea(exported, visible), file);
+    }
+    
+    // Replaces the shapes of the active layer with the ones in a binary or text drawing file
+    public void loadDrawing(Path file) throws IOException {
+        // the file is decoded in full before the drawing is touched, so a corrupt one
+        // leaves the layer as it was
+        ShapeStore loaded = new ShapeStore();
+        if( file.getFileName().toString().endsWith(TextDrawingFormat.EXTENSION) ) {
+            try( Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+                for( MyShape shape : TextDrawingFormat.read(in) )
+                    loaded.add(shape);
+            }
+        }
+        else {
+            DrawingFile.open(file).copyTo(loaded);
+        }
+        if( collaboration != null ) {
+            collaboration.sendDrawing(loaded);
+            return;
+        }
+        history.record(shapes.version(), EditHistory.WHOLE_DRAWING);
+        shapes.clear();
+        for( int i = 0; i < loaded.size(); i++ )
+            shapes.addFrom(loaded, i);
+        rebuildIndex();
+        if( active.journal != null )
+            active.journal.drawingReplaced(shapes);
+        repaint();
+    }
+    
+    // Reads the drawing kept in the journal directory into layers of their own, leaving the
+    // pad as it is, so a long journal can be read off the EDT. Each layer has its own journal
+    // in a directory named in the layer list; without a list the drawing is one layer
+    // journaled in the directory itself.
+    RecoveredJournal readJournal(Path directory) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(directory.resolve(LAYER_LIST), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            lines = List.of(".\ttrue\t1.0\t" + FIRST_LAYER);
+        }
+        
+        // the layers replace the ones on the pad only once every one of them is read
+        ArrayList<Layer> opened = new ArrayList<>();
+        try {
+            for( String line : lines ) {
+                String[] fields = line.split("\t", 4);
+                if( fields.length < 4 || fields[0].isEmpty() )
+                    throw new IOException("broken line in the layer list: " + line);
+                Layer layer = newLayer(fields[3]);
+                layer.directory = fields[0];
+                layer.visible = Boolean.parseBoolean(fields[1]);
+                layer.opacity = Math.max(0, Math.min(1, Float.parseFloat(fields[2])));
+                opened.add(layer);
+                layer.journal = DrawingJournal.open(directory.resolve(layer.directory), layer.shapes);
+                for( int i = 0; i < layer.shapes.size(); i++ )
+                    layer.shapeIndex.add(i);
+            }
+            if( opened.isEmpty() )
+                throw new IOException("the layer list names no layers");
+        } catch (IOException | NumberFormatException e) {
+            for( Layer layer : opened ) {
+                layer.renderer.close();
+                if( layer.journal != null )
+                    layer.journal.close();
+            }
+            if( e instanceof IOException )
+                throw (IOException) e;
+            throw new IOException("broken layer list: " + e.getMessage(), e);
+        }
+        return new RecoveredJournal(directory, opened);
+    } // end of readJournal
+    
+    // Replaces the pad's layers with the ones read by readJournal, from then on every change
+    // is recorded in their journals
+    void showJournal(RecoveredJournal recovered) {
+        clearSelection();
+        for( Layer layer : layers ) {
+            layer.renderer.close();
+            if( layer.journal != null )
+                layer.journal.close();
+        }
+        layers.clear();
+        layers.addAll(recovered.layers);
+        journalDirectory = recovered.directory;
+        activate(layers.get(layers.size() - 1));
+        saveLayerList();
+        repaint();
+    } // end of showJournal
+    
+    // Adds an empty layer with the given name above the active one and makes it the
+    // active layer. Once the journal is open the layer gets a journal of its own.
+    public void addLayer(String name) throws IOException {
+        checkNotShared();
+        Layer added = newLayer(name);
+        if( journalDirectory != null ) {
+            int number = layers.size() + 1;
+            while( usesDirectory("layer-" + number) || Files.exists(journalDirectory.resolve("layer-" + number)) )
+                number++;
+            added.directory = "layer-" + number;
+            added.journal = DrawingJournal.open(journalDirectory.resolve(added.directory), added.shapes);
+        }
+        layers.add(layers.indexOf(active) + 1, added);
+        clearSelection();
+        activate(added);
+        saveLayerList();
+    }
+    
+    // Removes a layer with its shapes and its journal, the last one can not be removed.
+    // Removing the active layer makes the one below it active.
+    public void removeLayer(int index) throws IOException {
+        if( layers.size() == 1 )
+            throw new IllegalStateException("the last layer can not be removed");
+        Layer removed = layers.get(index);
+        if( removed == active ) {
+            checkNotShared();
+            clearSelection();
+        }
+        layers.remove(index);
+        if( removed == active )
+            activate(layers.get(Math.max(index - 1, 0)));
+        removed.renderer.close();
+        saveLayerList();
+        if( removed.journal != null )
+            removed.journal.discard();
+        repaint();
+    }
+    
+    // Moves a layer to another place in the stack, 0 being the bottom
+    public void moveLayer(int from, int to) {
+        layers.add(to, layers.remove(from));
+        saveLayerList();
+        repaint();
+    }
+    
+    public int getLayerCount() {
+        return layers.size();
+    }
+    
+    // Position of the active layer in the stack, 0 being the bottom
+    public int getActiveLayer() {
+        return layers.indexOf(active);
+    }
+    
+    // Makes the layer at the given position the one edits go to. A shared drawing keeps
+    // editing the layer that was active when it was connected.
+    public void setActiveLayer(int index) {
+        if( layers.get(index) == active )
+            return;
+        checkNotShared();
+        clearSelection();
+        activate(layers.get(index));
+    }
+    
+    public String getLayerName(int index) {
+        return layers.get(index).name;
+    }
+    
+    public boolean isLayerVisible(int index) {
+        return layers.get(index).visible;
+    }
+    
+    // Shows or hides a layer. A hidden layer keeps only its shapes: its raster and index
+    // are dropped at once, and drawn again in the background when it is shown.
+    public void setLayerVisible(int index, boolean visible) {
+        Layer layer = layers.get(index);
+        if( layer.visible == visible )
+            return;
+        layer.visible = visible;
+        if( visible ) {
+            layer.redrawPending = true;
+        }
+        else {
+            if( layer == active )
+                clearSelection();
+            layer.frame = null;
+            layer.renderer.evict();
+        }
+        saveLayerList();
+        repaint();
+    }
+    
+    public float getLayerOpacity(int index) {
+        return layers.get(index).opacity;
+    }
+    
+    // Sets how opaque a layer is composited, from 0 to 1. Its raster is not drawn again.
+    public void setLayerOpacity(int index, float opacity) {
+        layers.get(index).opacity = Math.max(0, Math.min(1, opacity));
+        saveLayerList();
+        repaint();
+    }
+    
+    // Makes a layer the one edits go to
+    private void activate(Layer layer) {
+        active = layer;
+        shapes = layer.shapes;
+        shapeIndex = layer.shapeIndex;
+        history = layer.history;
+    }
+    
+    private Layer newLayer(String name) {
+        return new Layer(cleanName(name), new LayerRenderer(region -> EventQueue.invokeLater(() -> repaint(region))));
+    }
+    
+    // Layer names go into the layer list, one line per layer with tabs between the fields
+    private static String cleanName(String name) {
+        return name.replaceAll("[\\t\\r\\n]", " ");
+    }
+    
+    private void checkNotShared() {
+        if( collaboration != null )
+            throw new IllegalStateException("a shared drawing is edited in one layer, disconnect first");
+    }
+    
+    private boolean usesDirectory(String directory) {
+        for( Layer layer : layers ) {
+            if( directory.equals(layer.directory) )
+                return true;
+        }
+        return false;
+    }
+    
+    // Writes the order, names and settings of the layers next to their journals, replacing
+    // the list in one step so a crash leaves the old list or the new one
+    private void saveLayerList() {
+        if( journalDirectory == null )
+            return;
+        List<String> lines = new ArrayList<>();
+        for( Layer layer : layers )
+            lines.add(layer.directory + "\t" + layer.visible + "\t" + layer.opacity + "\t" + layer.name);
+        try {
+            Path temporary = journalDirectory.resolve(LAYER_LIST + ".tmp");
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, journalDirectory.resolve(LAYER_LIST), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Drawing journal: could not write the layer list: " + e.getMessage());
+        }
+    } // end of saveLayerList
+    
+    // Returns the index of the top-most shape under the drawing point, or -1 if there is none
+    public int getShapeAt(int x, int y) {
+        return shapeIndex.hitTest(x, y);
+    }
+    
+    // Returns the indexes of every shape whose bounds intersect the drawing area, in drawing order
+    public int[] getShapesIn(Rectangle area) {
+        IntList result = new IntList();
+        shapeIndex.query(area, result);
+        return result.toArray();
+    }
+    
+    // Commits a finished shape to the store and the index. A shared drawing sends it to the
+    // server instead and adds it when the server sends it back, in the server's order.
+    void addShape(MyShape shape) {
+        if( collaboration != null ) {
+            collaboration.sendShape(shape);
+            return;
+        }
+        
+        history.record(shapes.version(), EditHistory.ONE_SHAPE);
+        shapes.add(shape);
+        shapeIndex.add(shapes.size() - 1);
+        shapesChanged(shapes.size() - 1);
+        journalShapeAdded(shapes.size() - 1);
+    }
+    
+    // Journals the shape just added to the active layer. A journal that can not record it
+    // has closed itself, the user is told that changes are no longer kept.
+    private void journalShapeAdded(int index) {
+        if( active.journal == null )
+            return;
+        try {
+            active.journal.shapeAdded(shapes, index);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            statusBar.setText("Changes are no longer kept for crash recovery: " + e.getMessage());
+        }
+    }
+    
     public void setShapeType(int newShapeType) {
         shapeType = newShapeType;
+        if( shapeType != SELECT_TOOL )
+            clearSelection();
     }
 
+    // the style setters keep the canonical instance, so every shape drawn with the same
+    // settings shares one stroke and one paint
     public void setCurrentColor(Paint newCurrentColor) {
-        currentColor = newCurrentColor;
+        currentColor = StyleCache.SHARED.intern(newCurrentColor);
     }
 
     public void setFilledShape(Boolean FilledShape) {
@@ -83,27 +955,466 @@ class DrawPanel extends JPanel {
     }
     
     public void setCurrentStroke(Stroke currentStroke) {
-        this.currentStroke = currentStroke;
+        this.currentStroke = StyleCache.SHARED.intern(currentStroke);
     }
     
-    public JLabel getStatusBar() {
+    public StatusBar getStatusBar() {
         return statusBar;
     }
     
+    // Runs listener on the EDT once, right after the panel's next paint
+    public void whenPainted(Runnable listener) {
+        paintListeners.add(listener);
+    }
+    
+    ShapeStore getShapes() {
+        return shapes;
+    }
+    
+    RenderMetrics getMetrics() {
+        return metrics;
+    }
+    
     // Removes the last shape that was drawn
     public void clearLastShape() {
-        // decrement shape count if it is not already zero
-        if(shapeCount > 0)
-            --shapeCount;
+        if( shapes.size() == 0 )
+            return;
+        if( collaboration != null ) {
+            collaboration.sendRemoveLast();
+            return;
+        }
+        
+        history.record(shapes.version(), EditHistory.ONE_SHAPE);
+        forgetLastShape();
+        shapes.removeLast();
+        if( active.journal != null )
+            active.journal.lastShapeRemoved(shapes);
     }
     
     // Removes all shapes from the drawing pad
     public void clearDrawing () {
-        shapeCount = 0;
+        if( shapes.size() == 0 )
+            return;
+        if( collaboration != null ) {
+            collaboration.sendClear();
+            return;
+        }
+        
+        history.record(shapes.version(), EditHistory.WHOLE_DRAWING);
+        shapes.clear();
+        rebuildIndex();
+        if( active.journal != null )
+            active.journal.drawingCleared(shapes);
+    }
+    
+    // Takes back the last edit, which may be a Clear or an Open. The history of a shared
+    // drawing would not hold the other users' edits, so there undo removes the last shape.
+    public void undo() {
+        if( collaboration != null )
+            clearLastShape();
+        else if( history.canUndo() ) {
+            int kind = history.undoKind();
+            int[] changed = history.undoShapes();
+            int[] offset = kind == EditHistory.SOME_SHAPES ? history.undoOffset() : new int[2];
+            showVersion(history.undo(shapes.version()), kind, changed, -offset[0], -offset[1]);
+        }
+    }
+    
+    // Makes the last undone edit again
+    public void redo() {
+        if( history.canRedo() ) {
+            int kind = history.redoKind();
+            int[] changed = history.redoShapes();
+            int[] offset = kind == EditHistory.SOME_SHAPES ? history.redoOffset() : new int[2];
+            showVersion(history.redo(shapes.version()), kind, changed, offset[0], offset[1]);
+        }
+    }
+    
+    public boolean canUndo() {
+        return collaboration != null ? shapes.size() > 0 : history.canUndo();
+    }
+    
+    public boolean canRedo() {
+        return history.canRedo();
+    }
+    
+    // Makes a version from the history the current drawing. A one-shape step only
+    // touches that shape in the index and the layer, and a move only the shapes it moved,
+    // which dx and dy take from the current drawing to the version; anything else
+    // rebuilds them.
+    private void showVersion(ShapeVector version, int kind, int[] changed, int dx, int dy) {
+        int previousSize = shapes.size();
+        
+        if( kind == EditHistory.SOME_SHAPES && version.size() == previousSize ) {
+            IntList indexes = new IntList(changed.length);
+            for( int index : changed )
+                indexes.add(index);
+            changeShapes(indexes, () -> shapes.restore(version));
+            // replaying the move by dx and dy gives the version's shapes back exactly
+            if( active.journal != null ) {
+                for( byte[] record : DrawingJournal.encodeMove(indexes, dx, dy) )
+                    active.journal.shapesMoved(shapes, record);
+            }
+        }
+        else if( kind == EditHistory.ONE_SHAPE && version.size() == previousSize - 1 ) {
+            forgetLastShape();
+            shapes.restore(version);
+            if( active.journal != null )
+                active.journal.lastShapeRemoved(shapes);
+        }
+        else if( kind == EditHistory.ONE_SHAPE && version.size() == previousSize + 1 ) {
+            shapes.restore(version);
+            shapeIndex.add(previousSize); // the layer draws it as a newly added shape
+            shapesChanged(previousSize);
+            journalShapeAdded(previousSize);
+        }
+        else {
+            shapes.restore(version);
+            rebuildIndex();
+            if( active.journal != null && shapes.size() == 0 )
+                active.journal.drawingCleared(shapes);
+            else if( active.journal != null )
+                active.journal.drawingReplaced(shapes);
+        }
+    } // end of showVersion
+    
+    // Shares the active layer through the server at the other end of the socket, which
+    // DrawingClient.connect has connected off the EDT. From then on edits go to the server
+    // and the layer shows what the server sends back, starting with its copy of the drawing,
+    // which replaces the layer's shapes. The other layers stay on this pad and can not be
+    // edited until it disconnects.
+    public void connect(Socket socket) {
+        disconnect();
+        DrawingClient[] client = new DrawingClient[1]; // a replaced client's records are ignored
+        client[0] = new DrawingClient(socket,
+                records -> EventQueue.invokeLater(() -> {
+                    if( collaboration == client[0] )
+                        applyServerEdits(records);
+                }),
+                error -> EventQueue.invokeLater(() -> {
+                    if( collaboration == client[0] ) {
+                        collaboration = null;
+                        statusBar.setText("Lost the drawing server: " + error.getMessage());
+                    }
+                }));
+        collaboration = client[0];
+        history.clear();
+    } // end of connect
+    
+    // Stops sharing the drawing, the pad keeps the drawing as it was last sent
+    public void disconnect() {
+        if( collaboration != null ) {
+            collaboration.close();
+            collaboration = null;
+        }
+    }
+    
+    public boolean isConnected() {
+        return collaboration != null;
+    }
+    
+    // Applies records from the server in the order it sent them. They do not go into the
+    // undo history, but do go into the journal like local edits.
+    private void applyServerEdits(List<byte[]> records) {
+        boolean cleared = false;
+        serverRegion.setBounds(0, 0, -1, -1);
+        Rectangle bounds = new Rectangle();
+        
+        for( byte[] record : records ) {
+            if( record[0] == DrawingJournal.REMOVE_LAST && shapes.size() == 0 )
+                continue; // an undo that crossed a clear
+            try {
+                if( record[0] == DrawingJournal.MOVE ) {
+                    // moved here rather than by apply, so the index and the layer follow
+                    IntList indexes = new IntList();
+                    int[] offset = DrawingJournal.readMove(record, indexes, shapes.size());
+                    changeShapes(indexes, () -> shapes.move(indexes, offset[0], offset[1]));
+                    if( active.journal != null )
+                        active.journal.shapesMoved(shapes, record);
+                    if( selectionImageRemovals == Long.MAX_VALUE )
+                        selectionImageRemovals = active.removals; // most likely the move this pad sent
+                    continue;
+                }
+                if( record[0] == DrawingJournal.REMOVE_LAST ) {
+                    shapes.getBounds(shapes.size() - 1, bounds);
+                    serverRegion.add(bounds);
+                    forgetLastShape();
+                }
+                DrawingJournal.apply(record, shapes);
+            } catch (IOException e) {
+                System.err.println("Drawing client: " + e.getMessage());
+                disconnect();
+                statusBar.setText("The drawing server sent a broken edit, drawing alone again.");
+                break;
+            }
+            
+            if( record[0] == DrawingJournal.ADD ) {
+                int index = shapes.size() - 1;
+                shapeIndex.add(index);
+                shapesChanged(index);
+                shapes.getBounds(index, bounds);
+                serverRegion.add(bounds);
+                journalShapeAdded(index);
+            }
+            else if( record[0] == DrawingJournal.REMOVE_LAST ) {
+                if( active.journal != null )
+                    active.journal.lastShapeRemoved(shapes);
+            }
+            else {
+                rebuildIndex();
+                cleared = true;
+                if( active.journal != null )
+                    active.journal.drawingCleared(shapes);
+            }
+        }
+        
+        if( cleared )
+            repaint();
+        else if( !serverRegion.isEmpty() )
+            repaintRegion(serverRegion);
+    } // end of applyServerEdits
+    
+    // Takes the last shape out of the index, the layer and the selection, before it
+    // leaves the store
+    private void forgetLastShape() {
+        int last = shapes.size() - 1;
+        if( !selection.isEmpty() && selection.last() == last ) {
+            if( selection.size() == 1 || moving || selectionImage != null )
+                clearSelection();
+            else {
+                repaintRegion(selectionBounds);
+                selection.removeLast();
+                updateSelectionBounds();
+            }
+        }
+        shapeIndex.removeLast(last);
+        shapesChanged(last);
+        active.removals++;
+    }
+    
+    // Indexes every shape in the store again and has the whole layer redrawn
+    private void rebuildIndex() {
+        clearSelection();
+        shapeIndex.clear();
+        for( int i = 0; i < shapes.size(); i++ )
+            shapeIndex.add(i);
+        shapesChanged(0);
+        active.removals++;
+    }
+    
+    // Selects the shapes lying wholly inside the drawing area, dropping the selection before
+    public void selectShapesIn(Rectangle area) {
+        clearSelection();
+        shapeIndex.query(area, selection);
+        int kept = 0;
+        for( int i = 0; i < selection.size(); i++ ) {
+            shapes.getBounds(selection.get(i), shapeRegion);
+            if( area.contains(shapeRegion) )
+                selection.set(kept++, selection.get(i));
+        }
+        selection.truncate(kept);
+        updateSelectionBounds();
+        repaintRegion(selectionBounds);
     }
     
+    // Selects the shape at the given index alone
+    public void selectShape(int index) {
+        clearSelection();
+        selection.add(index);
+        updateSelectionBounds();
+        repaintRegion(selectionBounds);
+    }
+    
+    // Returns the indexes of the selected shapes, in drawing order
+    public int[] getSelection() {
+        return selection.toArray();
+    }
     
+    public void clearSelection() {
+        if( !selectionBounds.isEmpty() ) {
+            dragRegion.setBounds(selectionBounds);
+            if( moving || selectionImage != null )
+                dragRegion.add(new Rectangle(selectionBounds.x + moveDx, selectionBounds.y + moveDy,
+                        selectionBounds.width, selectionBounds.height));
+            repaintRegion(dragRegion);
+        }
+        selection.clear();
+        selectionBounds.setBounds(0, 0, -1, -1);
+        moving = false;
+        selectionImage = null;
+        selectionImageView = null;
+    }
     
+    private void updateSelectionBounds() {
+        selectionBounds.setBounds(0, 0, -1, -1);
+        for( int i = 0; i < selection.size(); i++ ) {
+            shapes.getBounds(selection.get(i), shapeRegion);
+            selectionBounds.add(shapeRegion);
+        }
+    }
+    
+    // Moves the selected shapes by dx and dy in one step of the undo history. A shared
+    // drawing sends the move to the server and moves them when the server sends it back.
+    public void moveSelection(int dx, int dy) {
+        if( selection.isEmpty() || (dx == 0 && dy == 0) )
+            return;
+        if( collaboration != null ) {
+            collaboration.sendMove(selection, dx, dy);
+            selectionImageRemovals = Long.MAX_VALUE; // an image being shown waits for the server
+            return;
+        }
+        
+        history.recordMove(shapes.version(), selection.toArray(), dx, dy);
+        changeShapes(selection, () -> shapes.move(selection, dx, dy));
+        if( active.journal != null ) {
+            for( byte[] record : DrawingJournal.encodeMove(selection, dx, dy) )
+                active.journal.shapesMoved(shapes, record);
+        }
+        selectionImageRemovals = active.removals;
+    }
+    
+    // Makes a change that rewrites the shapes at the given ascending indexes in place.
+    // Only those shapes are taken out of the index and put back, and only the places
+    // they left and went to are repainted and drawn again into the layer.
+    private void changeShapes(IntList indexes, Runnable change) {
+        if( indexes.isEmpty() )
+            return;
+        Rectangle dirty = new Rectangle(0, 0, -1, -1);
+        for( int i = 0; i < indexes.size(); i++ ) {
+            shapes.getBounds(indexes.get(i), shapeRegion);
+            dirty.add(shapeRegion);
+        }
+        shapeIndex.remove(indexes);
+        change.run();
+        shapeIndex.insert(indexes);
+        for( int i = 0; i < indexes.size(); i++ ) {
+            shapes.getBounds(indexes.get(i), shapeRegion);
+            dirty.add(shapeRegion);
+        }
+        shapesMoved(indexes.toArray());
+        active.removals++; // a layer without the change shows the shapes where they were
+        
+        if( !selection.isEmpty() ) {
+            dirty.add(selectionBounds);
+            updateSelectionBounds();
+            dirty.add(selectionBounds);
+        }
+        repaintRegion(dirty);
+    } // end of changeShapes
+    
+    // Draws the selected shapes into an image, once per drag, covering the part of the
+    // panel they are on and MOVE_MARGIN around it. Shapes further out are not shown
+    // while dragged, only once they are dropped. Once the panel is on screen the image is
+    // drawn from a copy of the store on a pool thread, like the layer is on the render
+    // thread, and until it is done only the outline of the selection follows the pointer.
+    private void drawSelectionImage() {
+        Viewport view = viewport.copy();
+        selectionImageView = view;
+        selectionImage = null;
+        Rectangle pixels = new Rectangle();
+        view.toPixels(selectionBounds, pixels);
+        Rectangle area = pixels.intersection(new Rectangle(-MOVE_MARGIN, -MOVE_MARGIN,
+                getWidth() + 2 * MOVE_MARGIN, getHeight() + 2 * MOVE_MARGIN));
+        if( area.isEmpty() )
+            return;
+        
+        Rectangle drawingArea = new Rectangle();
+        view.toDrawing(area, drawingArea);
+        IntList shown = new IntList();
+        for( int i = 0; i < selection.size(); i++ ) {
+            shapes.getBounds(selection.get(i), shapeRegion);
+            if( shapeRegion.intersects(drawingArea) )
+                shown.add(selection.get(i));
+        }
+        
+        if( active.renderer.isStarted() || (asyncRendering && isShowing()) ) {
+            ShapeStore snapshot = shapes.copy();
+            ForkJoinPool.commonPool().execute(() -> {
+                BufferedImage image = drawShapes(snapshot, shown, view, area);
+                EventQueue.invokeLater(() -> {
+                    if( selectionImageView != view )
+                        return; // drawn for a drag that is over
+                    selectionImage = image;
+                    selectionImageArea = area;
+                    Rectangle region = new Rectangle(selectionBounds);
+                    region.translate(moveDx, moveDy);
+                    region.add(selectionBounds);
+                    repaintRegion(region);
+                });
+            });
+        }
+        else {
+            selectionImage = drawShapes(shapes, shown, view, area);
+            selectionImageArea = area;
+        }
+    } // end of drawSelectionImage
+    
+    // Draws the shapes at the given indexes into a new image of the given panel pixels
+    private static BufferedImage drawShapes(ShapeStore store, IntList indexes, Viewport view, Rectangle area) {
+        ShapeBatcher batcher = new ShapeBatcher(store);
+        for( int i = 0; i < indexes.size(); i++ )
+            batcher.add(indexes.get(i));
+        BufferedImage image = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.translate(-area.x, -area.y);
+        view.applyTo(g);
+        batcher.setScale(view.getScale());
+        batcher.draw(g);
+        g.dispose();
+        return image;
+    }
+    
+    
+    
+    
+    
+    // Layer is one layer of the drawing: its shapes with their index, undo history and
+    // journal, and the renderer keeping its raster with what the next job has to redraw
+    private static final class Layer {
+        
+        String name;
+        boolean visible;
+        float opacity; // 1 is opaque
+        final ShapeStore shapes;
+        final SpatialGrid shapeIndex;
+        final EditHistory history;
+        final LayerRenderer renderer;
+        DrawingJournal journal; // records every change so a crash loses nothing, null until opened
+        String directory; // the journal's directory, relative to the panel's journal directory
+        LayerRenderer.Frame frame; // the raster shown, null before the first frame and while hidden
+        int firstChanged; // lowest index of a shape added or removed since the last job, or NO_CHANGE
+        long removals; // edits that took shapes out, a raster drawn before one cannot simply be topped up
+        int[] movedShapes; // ascending indexes of the shapes moved in place since the last job
+        boolean viewChanged; // the view moved since the last job
+        boolean redrawPending; // the next job draws the whole raster again
+        int width; // size of the last job
+        int height;
+        
+        Layer(String name, LayerRenderer renderer) {
+            this.name = name;
+            this.renderer = renderer;
+            visible = true;
+            opacity = 1;
+            shapes = new ShapeStore();
+            shapeIndex = new SpatialGrid(shapes);
+            history = new EditHistory();
+            firstChanged = NO_CHANGE;
+            movedShapes = new int[0];
+        }
+    } // end of inner class Layer
+    
+    
+    // RecoveredJournal holds the layers readJournal read until showJournal puts them on the pad
+    static final class RecoveredJournal {
+        
+        private final Path directory;
+        private final List<Layer> layers;
+        
+        private RecoveredJournal(Path directory, List<Layer> layers) {
+            this.directory = directory;
+            this.layers = layers;
+        }
+    } // end of inner class RecoveredJournal
     
     
     private class MouseHandler extends MouseAdapter implements MouseMotionListener {
@@ -112,60 +1423,142 @@ class DrawPanel extends JPanel {
         
         @Override
         public void mousePressed( MouseEvent event ) {
+            inputReceived();
+            
+            // the right and middle buttons drag the view instead of drawing
+            if( !SwingUtilities.isLeftMouseButton(event) ) {
+                panning = true;
+                panX = event.getX();
+                panY = event.getY();
+                return;
+            }
             
             // Creates a new shape depending on the shape type chosen by the combo box
-            if( shapeType == 0 ) {
-                currentShape = new MyLine(currentColor, currentStroke, event.getX(), 
-                        event.getY(),event.getX(), event.getY());
+            int x = viewport.toDrawingX(event.getX());
+            int y = viewport.toDrawingY(event.getY());
+            if( shapeType == SELECT_TOOL ) {
+                // pressing inside the selection, or on a shape, drags it; anywhere else, or
+                // with Shift held down, starts a rubber band
+                boolean bandOnly = event.isShiftDown();
+                int hit = bandOnly || selectionBounds.contains(x, y) ? -1 : shapeIndex.hitTest(x, y);
+                if( hit >= 0 )
+                    selectShape(hit);
+                if( !bandOnly && !selection.isEmpty() && (hit >= 0 || selectionBounds.contains(x, y)) ) {
+                    moving = true;
+                    selectionImageRemovals = 0;
+                    moveX = x;
+                    moveY = y;
+                    moveDx = 0;
+                    moveDy = 0;
+                    selectionImage = null;
+                    selectionImageView = null;
+                }
+                else {
+                    clearSelection();
+                    bandX = x;
+                    bandY = y;
+                    band = new Rectangle(x, y, 0, 0);
+                }
+            }
+            else if( shapeType == 0 ) {
+                currentShape = new MyLine(currentColor, currentStroke, x, y, x, y);
             }
             else if( shapeType == 1 ) {
-                currentShape = new MyOval(currentColor, currentStroke, event.getX(), 
-                        event.getY(),event.getX(), event.getY(), filledShape);
+                currentShape = new MyOval(currentColor, currentStroke, x, y, x, y, filledShape);
             }
             else if( shapeType == 2 ) {
-                currentShape = new MyRectangle(currentColor, currentStroke, event.getX(), 
-                        event.getY(),event.getX(), event.getY(), filledShape);
+                currentShape = new MyRectangle(currentColor, currentStroke, x, y, x, y, filledShape);
+            }
+            else if( shapeType == 3 ) {
+                // the tolerance is in screen pixels, so a zoomed in stroke keeps more detail
+                currentShape = new MyFreehand(currentColor, currentStroke, x, y,
+                        FREEHAND_TOLERANCE / viewport.getScale());
             }
         } // end of mousePressed
         
         @Override
         public void mouseDragged( MouseEvent event ) {
             
-            // Gives the position of the mouse on the drawing pad when being dragged
-            statusBar.setText(String.format("Mouse position: [%d,%d]", 
-                    event.getX(), event.getY() ));
-            
-            // This will allow user to see the shape while dragging
-            currentShape.point2 = new Point( event.getX(),event.getY() );
-            repaint();
-       
+            // A freehand stroke needs every sample, so they go into it as they arrive.
+            // For the other shapes only the latest position matters, the shape and the
+            // status bar are updated once per frame by applyPendingMotion.
+            if( currentShape instanceof MyFreehand && !panning )
+                ((MyFreehand) currentShape).addPoint(viewport.toDrawingX(event.getX()),
+                        viewport.toDrawingY(event.getY()), freehandRegion);
+            motionReceived(event, true);
         } // end of MouseDragged
         
         @Override
         public void mouseMoved( MouseEvent event ) {
             
-            // Gives the position of the mouse on the drawng pad when moved
-            statusBar.setText(String.format("Mouse position: [%d,%d]", 
-                    event.getX(), event.getY() ));
+            // Gives the position of the mouse on the drawng pad when moved, once per frame
+            motionReceived(event, false);
         } // end of MouseMoved 
         
+        @Override
+        public void mouseWheelMoved( MouseWheelEvent event ) {
+            inputReceived();
+            // each notch away from the user zooms in, towards the user zooms out
+            zoom(Math.pow(ZOOM_STEP, -event.getPreciseWheelRotation()), event.getX(), event.getY());
+        }
+        
         @Override
         public void mouseExited( MouseEvent event ) {
+            // a pending move must not overwrite the message
+            motionPending = false;
+            dragPending = false;
             // When mouse leaves area of the draw pad, user is informed
             statusBar.setText("Mouse is outside of drawing pad.");
         } // end of mouseExited
         
         @Override
         public void mouseReleased( MouseEvent event ) {
+            inputReceived();
+            // the release position replaces any drag still waiting for its frame
+            motionPending = false;
+            dragPending = false;
+            int x = viewport.toDrawingX(event.getX());
+            int y = viewport.toDrawingY(event.getY());
+            statusBar.setMousePosition(x, y);
+            unpaintedInputTime = System.nanoTime();
+            
+            if( panning ) {
+                pan(event.getX() - panX, event.getY() - panY);
+                panning = false;
+                return;
+            }
+            if( band != null ) {
+                band.setBounds(Math.min(bandX, x), Math.min(bandY, y), Math.abs(x - bandX), Math.abs(y - bandY));
+                Rectangle area = band;
+                band = null;
+                repaintRegion(area);
+                selectShapesIn(area);
+                return;
+            }
+            if( moving ) {
+                // the shapes move once, on the drop, however long they were dragged
+                dragRegion.setBounds(selectionBounds);
+                dragRegion.translate(moveDx, moveDy);
+                repaintRegion(dragRegion);
+                moveDx = x - moveX;
+                moveDy = y - moveY;
+                moving = false;
+                moveSelection(moveDx, moveDy);
+                return;
+            }
+            if( currentShape == null )
+                return;
+            
             // When the user releases the mouse, a new shape has been drawn
-            currentShape.point2 = new Point(event.getX(), event.getY());
-            // add the new shape to the shapes array
-            shapes[shapeCount] = currentShape;
-            // increase the number of shapes that have been drawn
-            shapeCount++;
+            Rectangle dirty = currentShape.getBounds().toRectangle();
+            currentShape.setPoint2(x, y);
+            currentShape.getBounds().addTo(dirty);
+            // add the new shape to the shape store
+            addShape(currentShape);
             // reset current shape to null
             currentShape = null;
-            repaint();
+            freehandRegion.setBounds(0, 0, -1, -1);
+            repaintRegion(dirty);
         }
         
     } // end of inner class MouseHandler
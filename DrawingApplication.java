@@ -2,6 +2,7 @@
 package drawingapplication;
 
 import java.awt.Color;
+import java.awt.EventQueue;
 import javax.swing.JFrame; // provides basic window features
 import javax.swing.JLabel; // displays text and images
 import javax.swing.JTextField;
@@ -9,6 +10,10 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JButton;
 import javax.swing.JColorChooser;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.FlowLayout;
 import java.awt.GradientPaint;
 import java.awt.BasicStroke;
@@ -18,30 +23,56 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import javax.management.JMException;
 
 // DrawingApplication refers to the application window and handles all interactions
 // between the buttons and checkboxes located on the window and adds a DrawPanel
 public class DrawingApplication extends JFrame {
 
     private final JButton clearButton; // clear all shapes that have been drawn
-    private final JButton undoButton; // clears the last shape drawn
+    private final JButton saveButton; // writes the drawing to a file
+    private final JButton openButton; // replaces the drawing with one read from a file
+    private final JButton exportButton; // writes the drawing as an SVG or PDF file
+    private final JButton undoButton; // takes back the last edit
+    private final JButton redoButton; // makes the last undone edit again
+    private final JButton resetViewButton; // undoes any zooming and panning of the drawing pad
     // shows a JColorChooser dialog to allow the user to choose the first color in the gradient
     private final JButton firstColorButton; 
     // show a JColorChooser dialog to allow the user to choose the second color in the gradient
     private final JButton secondColorButton; 
+    private JColorChooser colorChooser; // built once, right after the first paint, and kept
+    private JDialog colorDialog; // the dialog colorChooser is shown in
+    private boolean colorChosen; // the color dialog was last closed with OK
     
     private final JCheckBox filledCheckBox; // Determines if the shape is filled
     private final JCheckBox gradientCheckBox; // Determines if a gradient will be used
     private final JCheckBox dashedCheckBox; // Determines if the shapes will be dashed
     
+    private final JComboBox<String> layerComboBox; // picks the layer edits go to, top layer first
+    private final JButton newLayerButton; // adds a layer above the active one
+    private final JButton deleteLayerButton; // removes the active layer
+    private final JButton raiseLayerButton; // moves the active layer up the stack
+    private final JButton lowerLayerButton; // moves the active layer down the stack
+    private final JCheckBox layerVisibleCheckBox; // shows or hides the active layer
+    private final JTextField opacityField; // opacity of the active layer in percent
+    private boolean showingLayers; // the layer controls are being set from the panel, not by the user
+    
     private final JComboBox shapeComboBox; // combo box for choosing which shape to draw
-    private final String[] shapes = {"Line","Oval","Rectangle"}; // sring array for combobox
+    private final String[] shapes = {"Line","Oval","Rectangle","Freehand","Select"}; // sring array for combobox
     
     private final DrawPanel drawPanel;
     
     private final JLabel comboBoxLabel;
     private final JLabel lineWidthLabel;
     private final JLabel dashLengthLabel;
+    private final JLabel layerLabel;
+    private final JLabel opacityLabel;
     
     private final JTextField lineWidthField; // Sets the width of the stroke used to draw the shape
     private final JTextField dashLengthField;
@@ -67,29 +98,48 @@ public class DrawingApplication extends JFrame {
         comboBoxLabel = new JLabel("Shape:");
         lineWidthLabel = new JLabel("Line Width:");
         dashLengthLabel = new JLabel("Dash Length:");
+        layerLabel = new JLabel("Layer:");
+        opacityLabel = new JLabel("Opacity %:");
         
         // Initialize buttons with their text
         clearButton = new JButton("Clear");
+        saveButton = new JButton("Save..");
+        openButton = new JButton("Open..");
+        exportButton = new JButton("Export..");
         undoButton = new JButton("Undo");
+        redoButton = new JButton("Redo");
+        resetViewButton = new JButton("Reset View");
         firstColorButton = new JButton("1st Color..");
         secondColorButton = new JButton("2nd Color..");
+        newLayerButton = new JButton("New Layer..");
+        deleteLayerButton = new JButton("Delete Layer");
+        raiseLayerButton = new JButton("Raise");
+        lowerLayerButton = new JButton("Lower");
         
         // Initialize check boxes
         filledCheckBox = new JCheckBox("Filled");
         gradientCheckBox = new JCheckBox("Use Gradient");
         dashedCheckBox = new JCheckBox("Dashed");
+        layerVisibleCheckBox = new JCheckBox("Visible", true);
         
         // Initialize text fields
         lineWidthField = new JTextField("0");
         dashLengthField = new JTextField("0");
+        opacityField = new JTextField("100", 3);
         
         // Initialize combo box
         shapeComboBox = new JComboBox(shapes);
-        shapeComboBox.setMaximumRowCount(3); // How many rows to dispaly when clicked
+        shapeComboBox.setMaximumRowCount(5); // How many rows to dispaly when clicked
+        layerComboBox = new JComboBox<>();
         
         // Add all components to the frame
         add(undoButton);
+        add(redoButton);
         add(clearButton);
+        add(saveButton);
+        add(openButton);
+        add(exportButton);
+        add(resetViewButton);
         add(comboBoxLabel);
         add(shapeComboBox);
         add(filledCheckBox);
@@ -101,6 +151,15 @@ public class DrawingApplication extends JFrame {
         add(dashLengthLabel);
         add(dashLengthField);
         add(dashedCheckBox);
+        add(layerLabel);
+        add(layerComboBox);
+        add(layerVisibleCheckBox);
+        add(newLayerButton);
+        add(deleteLayerButton);
+        add(raiseLayerButton);
+        add(lowerLayerButton);
+        add(opacityLabel);
+        add(opacityField);
         add(drawPanel);
         add(drawPanel.getStatusBar());
         
@@ -111,7 +170,13 @@ public class DrawingApplication extends JFrame {
         firstColorButton.addActionListener(colorButtonHandler);
         secondColorButton.addActionListener(colorButtonHandler);
         undoButton.addActionListener(undoButtonHandler);
+        redoButton.addActionListener(undoButtonHandler);
         clearButton.addActionListener(clearButtonHandler);
+        FileButtonHandler fileButtonHandler = new FileButtonHandler();
+        saveButton.addActionListener(fileButtonHandler);
+        openButton.addActionListener(fileButtonHandler);
+        exportButton.addActionListener(fileButtonHandler);
+        resetViewButton.addActionListener(new ResetViewButtonHandler());
         
         // Create and register listener for check boxes
         CheckBoxHandler checkBoxHandler = new CheckBoxHandler();
@@ -128,8 +193,36 @@ public class DrawingApplication extends JFrame {
         lineWidthField.addActionListener(textFieldHandler);
         dashLengthField.addActionListener(textFieldHandler);
         
+        // Create and register listener for the layer controls
+        LayerHandler layerHandler = new LayerHandler();
+        layerComboBox.addItemListener(layerHandler);
+        layerVisibleCheckBox.addItemListener(layerHandler);
+        opacityField.addActionListener(layerHandler);
+        newLayerButton.addActionListener(layerHandler);
+        deleteLayerButton.addActionListener(layerHandler);
+        raiseLayerButton.addActionListener(layerHandler);
+        lowerLayerButton.addActionListener(layerHandler);
+        showLayers();
+        
     } /// end of constructor
     
+    // Sets the layer controls from the drawing pad's layers
+    private void showLayers() {
+        showingLayers = true;
+        int count = drawPanel.getLayerCount();
+        int active = drawPanel.getActiveLayer();
+        layerComboBox.removeAllItems();
+        for( int i = count - 1; i >= 0; i-- )
+            layerComboBox.addItem(drawPanel.getLayerName(i));
+        layerComboBox.setSelectedIndex(count - 1 - active);
+        layerVisibleCheckBox.setSelected(drawPanel.isLayerVisible(active));
+        opacityField.setText(Integer.toString(Math.round(drawPanel.getLayerOpacity(active) * 100)));
+        deleteLayerButton.setEnabled(count > 1);
+        raiseLayerButton.setEnabled(active < count - 1);
+        lowerLayerButton.setEnabled(active > 0);
+        showingLayers = false;
+    }
+    
     
     private class ColorButtonHandler implements ActionListener {
         
@@ -138,17 +231,20 @@ public class DrawingApplication extends JFrame {
             
             // If the user has clicked the first color button..
             if( event.getSource() == firstColorButton ) {
-                // showDialog takes the parameters of the parent window, window title, and initial color choice
-                color1 = JColorChooser.showDialog(DrawingApplication.this, 
-                        "Choose a color", null);
+                // the dialog starts from the color chosen last, cancelling it keeps that color
+                Color chosen = chooseColor(color1);
+                if( chosen == null )
+                    return;
+                color1 = chosen;
                 drawPanel.setCurrentColor(color1); // set the current color to the one the user has chosen
             }
             
             // If the user has clicked th second color button..
             if( event.getSource() == secondColorButton ) {
-                // showDialog takes the parameters of the parent window, window title, and initial color choice
-                color2 = JColorChooser.showDialog(DrawingApplication.this, 
-                        "Choose a color", null);
+                Color chosen = chooseColor(color2);
+                if( chosen == null )
+                    return;
+                color2 = chosen;
                 drawPanel.setCurrentColor(color2); // set the current color to the one the user has chosen
             }
             
@@ -163,19 +259,109 @@ public class DrawingApplication extends JFrame {
         } // end of actionPerformed
     } // end of ColorButtonHandler inner class
     
+    // Shows the color dialog, building it first if that has not been done yet, and returns
+    // the color chosen or null if the dialog was cancelled
+    private Color chooseColor(Color initial) {
+        buildColorDialog();
+        colorChooser.setColor(initial != null ? initial : Color.WHITE);
+        colorChosen = false;
+        colorDialog.setLocationRelativeTo(this);
+        colorDialog.setVisible(true); // modal, returns once the dialog is closed
+        return colorChosen ? colorChooser.getColor() : null;
+    }
+    
+    // A JColorChooser takes a few hundred milliseconds to build, most of it in its panels,
+    // and JColorChooser.showDialog builds a new one every time, so one is kept instead
+    private void buildColorDialog() {
+        if( colorDialog == null ) {
+            colorChooser = new JColorChooser();
+            colorDialog = JColorChooser.createDialog(this, "Choose a color", true, colorChooser,
+                    event -> colorChosen = true, null);
+        }
+    }
+    
+    // Runs once the drawing pad is first painted. What the window does not need to show
+    // itself waits until then: the JMX registration loads the management classes on a
+    // thread of its own, and the color dialog is built in an EDT event of its own, after
+    // any input that is already waiting.
+    private void finishStartup() {
+        Thread registration = new Thread(() -> {
+            // rendering metrics can be watched and switched on from JConsole or any other JMX client
+            try {
+                drawPanel.getMetrics().register();
+            } catch (JMException e) {
+                System.err.println("Could not register the rendering metrics: " + e.getMessage());
+            }
+        }, "metrics-registration");
+        registration.setDaemon(true);
+        registration.start();
+        EventQueue.invokeLater(this::buildColorDialog);
+    }
+    
+    // Brings back the drawing from the last session, even if it ended in a crash, then
+    // shares it when -Ddrawing.server=host:port names a server. Reading the journal and
+    // connecting can each take seconds, so they run on a thread of their own and what they
+    // get is put on the drawing pad in an EDT event. The window takes no input until the
+    // journal is shown, as the recovered layers replace whatever was drawn before.
+    private void restoreDrawing() {
+        Path journalDirectory = Paths.get(System.getProperty("drawing.journal.dir",
+                Paths.get(System.getProperty("user.home"), ".drawingapplication").toString()));
+        String server = System.getProperty("drawing.server");
+        setEnabled(false);
+        Thread restore = new Thread(() -> {
+            try {
+                DrawPanel.RecoveredJournal recovered = drawPanel.readJournal(journalDirectory);
+                EventQueue.invokeLater(() -> {
+                    drawPanel.showJournal(recovered);
+                    showLayers();
+                });
+            } catch (IOException e) {
+                System.err.println("Could not open the drawing journal in " + journalDirectory + ": " + e.getMessage());
+            }
+            EventQueue.invokeLater(() -> setEnabled(true));
+            
+            if( server != null ) {
+                int colon = server.lastIndexOf(':');
+                String host = colon < 0 ? server : server.substring(0, colon);
+                int port = colon < 0 ? DrawingServer.DEFAULT_PORT : Integer.parseInt(server.substring(colon + 1));
+                try {
+                    Socket socket = DrawingClient.connect(new InetSocketAddress(host, port));
+                    EventQueue.invokeLater(() -> drawPanel.connect(socket));
+                } catch (IOException e) {
+                    System.err.println("Could not connect to the drawing server " + server + ": " + e.getMessage());
+                }
+            }
+        }, "drawing-restore");
+        restore.setDaemon(true);
+        restore.start();
+    } // end of restoreDrawing
+    
     
     private class UndoButtonHandler implements ActionListener {
         
         @Override
         public void actionPerformed(ActionEvent event) {
-            // Calls the function to undo the last shape declared in the DrawPanel class
-            drawPanel.clearLastShape();
+            // Calls the function to undo or redo the last edit declared in the DrawPanel class
+            if( event.getSource() == redoButton )
+                drawPanel.redo();
+            else
+                drawPanel.undo();
             // Indicate the the panel should call the paintComponent method
             repaint();
         } // end of actionPerformed
     } // end of UndoButtonHandler
     
     
+    private class ResetViewButtonHandler implements ActionListener {
+        
+        @Override
+        public void actionPerformed(ActionEvent event) {
+            // The mouse wheel zooms and the right button pans, this shows the drawing as drawn
+            drawPanel.resetView();
+        } // end of actionPerformed
+    } // end of ResetViewButtonHandler
+    
+    
     
     
     private class ClearButtonHandler implements ActionListener {
@@ -190,6 +376,117 @@ public class DrawingApplication extends JFrame {
     } // end ClearButtonHandler
     
     
+    private class FileButtonHandler implements ActionListener {
+        
+        private final JFileChooser fileChooser = new JFileChooser();
+        private final JFileChooser exportChooser = new JFileChooser();
+        private final FileNameExtensionFilter svgFilter = new FileNameExtensionFilter("SVG images (*.svg)", "svg");
+        private final FileNameExtensionFilter pdfFilter = new FileNameExtensionFilter("PDF documents (*.pdf)", "pdf");
+        private final FileNameExtensionFilter drawingFilter = 
+                new FileNameExtensionFilter("Drawings (*.jdraw)", "jdraw");
+        private final FileNameExtensionFilter textFilter = 
+                new FileNameExtensionFilter("Text drawings (*.drawing)", "drawing");
+        
+        FileButtonHandler() {
+            fileChooser.addChoosableFileFilter(drawingFilter);
+            fileChooser.addChoosableFileFilter(textFilter);
+            fileChooser.setFileFilter(drawingFilter);
+            exportChooser.addChoosableFileFilter(svgFilter);
+            exportChooser.addChoosableFileFilter(pdfFilter);
+            exportChooser.setFileFilter(svgFilter);
+        }
+        
+        @Override
+        public void actionPerformed(ActionEvent event) {
+            
+            try {
+                // If the user has clicked the save button..
+                if( event.getSource() == saveButton 
+                        && fileChooser.showSaveDialog(DrawingApplication.this) == JFileChooser.APPROVE_OPTION ) {
+                    Path file = fileChooser.getSelectedFile().toPath();
+                    String name = file.getFileName().toString();
+                    // add the extension of the chosen format if the user left it off
+                    if( !name.endsWith(DrawingFile.EXTENSION) && !name.endsWith(TextDrawingFormat.EXTENSION) )
+                        file = file.resolveSibling(name + (fileChooser.getFileFilter() == textFilter 
+                                ? TextDrawingFormat.EXTENSION : DrawingFile.EXTENSION));
+                    drawPanel.saveDrawing(file);
+                }
+                
+                // If the user has clicked the open button..
+                if( event.getSource() == openButton 
+                        && fileChooser.showOpenDialog(DrawingApplication.this) == JFileChooser.APPROVE_OPTION ) {
+                    drawPanel.loadDrawing(fileChooser.getSelectedFile().toPath());
+                }
+                
+                // If the user has clicked the export button..
+                if( event.getSource() == exportButton 
+                        && exportChooser.showSaveDialog(DrawingApplication.this) == JFileChooser.APPROVE_OPTION ) {
+                    Path file = exportChooser.getSelectedFile().toPath();
+                    String name = file.getFileName().toString().toLowerCase();
+                    // add the extension of the chosen format if the user left it off
+                    if( !name.endsWith(VectorExport.SVG_EXTENSION) && !name.endsWith(VectorExport.PDF_EXTENSION) )
+                        file = file.resolveSibling(file.getFileName() + (exportChooser.getFileFilter() == pdfFilter 
+                                ? VectorExport.PDF_EXTENSION : VectorExport.SVG_EXTENSION));
+                    drawPanel.exportDrawing(file);
+                }
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(DrawingApplication.this, e.getMessage(), 
+                        "Drawing could not be read or written", JOptionPane.ERROR_MESSAGE);
+            }
+        } // end of actionPerformed
+    } // end FileButtonHandler
+    
+    
+    private class LayerHandler implements ActionListener, ItemListener {
+        
+        @Override
+        public void actionPerformed(ActionEvent event) {
+            int active = drawPanel.getActiveLayer();
+            try {
+                if( event.getSource() == newLayerButton ) {
+                    String name = JOptionPane.showInputDialog(DrawingApplication.this, "Name of the new layer:",
+                            "Layer " + (drawPanel.getLayerCount() + 1));
+                    if( name != null )
+                        drawPanel.addLayer(name);
+                }
+                if( event.getSource() == deleteLayerButton )
+                    drawPanel.removeLayer(active);
+                if( event.getSource() == raiseLayerButton )
+                    drawPanel.moveLayer(active, active + 1);
+                if( event.getSource() == lowerLayerButton )
+                    drawPanel.moveLayer(active, active - 1);
+                // the opacity is entered in percent, like the line width in pixels
+                if( event.getSource() == opacityField )
+                    drawPanel.setLayerOpacity(active, Integer.parseInt(event.getActionCommand().trim()) / 100f);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(DrawingApplication.this, e.getMessage(), 
+                        "Layer journal could not be written", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalStateException e) {
+                drawPanel.getStatusBar().setText("The layer can not be changed: " + e.getMessage());
+            }
+            showLayers();
+        } // end of actionPerformed
+        
+        @Override
+        public void itemStateChanged(ItemEvent event) {
+            if( showingLayers )
+                return;
+            
+            if( event.getItemSelectable() == layerComboBox && event.getStateChange() == ItemEvent.SELECTED ) {
+                try {
+                    drawPanel.setActiveLayer(drawPanel.getLayerCount() - 1 - layerComboBox.getSelectedIndex());
+                } catch (IllegalStateException e) {
+                    drawPanel.getStatusBar().setText("The layer can not be changed: " + e.getMessage());
+                }
+                showLayers();
+            }
+            
+            if( event.getItemSelectable() == layerVisibleCheckBox )
+                drawPanel.setLayerVisible(drawPanel.getActiveLayer(), layerVisibleCheckBox.isSelected());
+        } // end of itemStateChanged
+    } // end of LayerHandler
+    
+    
     private class CheckBoxHandler implements ItemListener {
         
         @Override
@@ -287,12 +584,27 @@ public class DrawingApplication extends JFrame {
     
     public static void main(String[] args) {
         
-        // Create a new drawing application called myDrawing
-        DrawingApplication myDrawing = new DrawingApplication();
-        myDrawing.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // --server [port [journal directory]] serves a shared drawing instead of showing one
+        if( args.length > 0 && args[0].equals("--server") ) {
+            try {
+                DrawingServer.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException e) {
+                System.err.println("Could not serve the drawing: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
         
-        myDrawing.setSize(630,600); // set the size of the window
-        myDrawing.setVisible(true); // make the window visible
+        // Swing is only touched on the EDT, from building the window on
+        EventQueue.invokeLater(() -> {
+            // Create a new drawing application called myDrawing
+            DrawingApplication myDrawing = new DrawingApplication();
+            myDrawing.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            myDrawing.drawPanel.whenPainted(myDrawing::finishStartup);
+            myDrawing.setSize(630,670); // set the size of the window
+            myDrawing.setVisible(true); // make the window visible
+            myDrawing.restoreDrawing();
+        });
     } // end of main
     
 } // end of DrawingApplication class
@@ -0,0 +1,165 @@
+package drawingapplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// DrawingClient connects a drawing pad to a DrawingServer. Edits are queued to a writer
+// thread that sends whatever has queued up in one write, so the EDT never waits on the
+// network, and a reader thread hands the records the server sends to the listener, as
+// many at a time as have arrived together.
+class DrawingClient {
+
+    private final Socket socket;
+    private final BlockingQueue<byte[]> queue; // records not sent yet, an empty one stops the writer
+    private final Consumer<List<byte[]>> listener;
+    private final Consumer<IOException> disconnected;
+    private volatile boolean closed;
+
+
+    // Connects a socket to the server for a client. This waits up to ten seconds, so it is
+    // done off the EDT.
+    public static Socket connect(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, 10_000);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    // Talks to the server through a socket connect has connected. listener gets the
+    // server's records on the reader thread, and disconnected is told once if the
+    // connection is lost.
+    public DrawingClient(Socket socket, Consumer<List<byte[]>> listener, Consumer<IOException> disconnected) {
+        this.socket = socket;
+        queue = new LinkedBlockingQueue<>();
+        this.listener = listener;
+        this.disconnected = disconnected;
+
+        Thread writer = new Thread(this::writeLoop, "drawing-client-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::readLoop, "drawing-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    } // end of DrawingClient constructor
+
+    // Sends a finished shape to be added to the drawing. It is encoded from a store of its
+    // own, as a store's style and polyline tables keep everything ever added to them.
+    public void sendShape(MyShape shape) {
+        ShapeStore encoder = new ShapeStore();
+        encoder.add(shape);
+        try {
+            queue.add(DrawingJournal.encodeAdd(encoder, 0));
+        } catch (IOException e) {
+            // only a stroke or paint the record format can not hold ends up here
+            System.err.println("Drawing client: " + e.getMessage());
+        }
+    }
+
+    // Sends every shape in the store, replacing the shared drawing with it
+    public void sendDrawing(ShapeStore shapes) throws IOException {
+        byte[][] records = new byte[shapes.size()][];
+        for( int i = 0; i < shapes.size(); i++ )
+            records[i] = DrawingJournal.encodeAdd(shapes, i); // fails before anything is sent
+        queue.add(new byte[] {DrawingJournal.CLEAR});
+        for( byte[] record : records )
+            queue.add(record);
+    }
+
+    // Asks for the shapes at the given ascending indexes to be moved by dx and dy
+    public void sendMove(IntList indexes, int dx, int dy) {
+        queue.addAll(DrawingJournal.encodeMove(indexes, dx, dy));
+    }
+
+    // Asks for the last shape of the drawing to be removed
+    public void sendRemoveLast() {
+        queue.add(new byte[] {DrawingJournal.REMOVE_LAST});
+    }
+
+    // Asks for every shape to be removed
+    public void sendClear() {
+        queue.add(new byte[] {DrawingJournal.CLEAR});
+    }
+
+    public void close() {
+        if( closed )
+            return;
+        closed = true;
+        queue.add(new byte[0]);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    // Body of the writer thread: frames every queued record and sends them in one write
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            while( true ) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for( byte[] record : batch ) {
+                    if( record.length == 0 )
+                        return;
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            lost(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    } // end of writeLoop
+
+    // Body of the reader thread: passes on the records that arrived together as one list
+    private void readLoop() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            while( true ) {
+                List<byte[]> records = new ArrayList<>();
+                do {
+                    int length = in.readInt();
+                    if( length <= 0 || length > DrawingJournal.MAX_RECORD )
+                        throw new IOException("record of " + length + " bytes from the server");
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    records.add(record);
+                } while( in.available() >= 4 );
+                listener.accept(records);
+            }
+        } catch (EOFException e) {
+            lost(new IOException("the server closed the connection"));
+        } catch (IOException e) {
+            lost(e);
+        }
+    } // end of readLoop
+
+    private void lost(IOException e) {
+        if( closed )
+            return;
+        close();
+        disconnected.accept(e);
+    }
+
+} // end of DrawingClient class
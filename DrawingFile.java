@@ -0,0 +1,352 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// DrawingFile is the compact binary drawing format. A file is laid out as
+//
+//     header    magic "JDRW", version, shape count, stroke count, paint count, record offset
+//     strokes   every distinct BasicStroke: width, cap, join, miter limit, dash phase, dash array
+//     paints    every distinct paint: a Color, or a GradientPaint's two points, colors and cycle flag
+//     records   RECORD_SIZE bytes per shape: x1, y1, x2, y2, style (type, filled, stroke), paint
+//     points    the x and y ints of every freehand stroke, to the end of the file
+//
+// A freehand record keeps where its points start in the points section, counted in ints,
+// in x1 and how many ints it has in y1. Version 1 files have no freehand strokes and no
+// points section. Opening a file maps it into memory and decodes only the two style
+// tables, shapes are decoded from their fixed-width records when they are asked for.
+class DrawingFile {
+
+    static final String EXTENSION = ".jdraw";
+    static final int MAGIC = 0x4A445257; // "JDRW"
+    static final int VERSION = 2;
+    static final int RECORD_SIZE = 24;
+
+    private static final int HEADER_SIZE = 24;
+    private static final byte COLOR = 0; // paint table entry kinds
+    private static final byte GRADIENT = 1;
+    private static final int FILLED = 0x80; // flag bit in a record's style field
+
+    private final MappedByteBuffer records; // the record section of the mapped file
+    private final int shapeCount;
+    private final int pointCount; // ints in the points section, which follows the records
+    private final Stroke[] strokes;
+    private final Paint[] paints;
+
+    private DrawingFile(MappedByteBuffer records, int shapeCount, Stroke[] strokes, Paint[] paints) {
+        this.records = records;
+        this.shapeCount = shapeCount;
+        this.strokes = strokes;
+        this.paints = paints;
+        pointCount = (records.capacity() - shapeCount * RECORD_SIZE) / 4;
+    }
+
+    // Writes every shape in the store to the file, replacing it once the whole drawing is
+    // written, so a shape that can not be saved leaves the old file as it was
+    public static void save(ShapeStore shapes, Path file) throws IOException {
+        replace(file, stream -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+
+            // the style tables have variable size, so they are written to memory first to
+            // learn where the records start
+            ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+            DataOutputStream tables = new DataOutputStream(tableBytes);
+            for( Stroke stroke : shapes.getStrokeTable() )
+                writeStroke(stroke, tables);
+            for( Paint paint : shapes.getPaintTable() )
+                writePaint(paint, tables);
+            tables.flush();
+
+            int recordOffset = HEADER_SIZE + tableBytes.size();
+            recordOffset = (recordOffset + 3) & ~3; // keep records int aligned
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(shapes.size());
+            out.writeInt(shapes.getStrokeTable().size());
+            out.writeInt(shapes.getPaintTable().size());
+            out.writeInt(recordOffset);
+            tableBytes.writeTo(out);
+            for( int i = HEADER_SIZE + tableBytes.size(); i < recordOffset; i++ )
+                out.writeByte(0);
+
+            int points = 0; // ints written to the points section so far
+            for( int i = 0; i < shapes.size(); i++ ) {
+                writeRecord(shapes, i, points, out);
+                if( shapes.getType(i) == ShapeStore.FREEHAND )
+                    points += shapes.getPoints(i).length;
+            }
+            for( int i = 0; i < shapes.size(); i++ ) {
+                if( shapes.getType(i) == ShapeStore.FREEHAND ) {
+                    for( int value : shapes.getPoints(i) )
+                        out.writeInt(value);
+                }
+            }
+            out.flush();
+        });
+    } // end of save
+
+    // Writes a file through a temporary file beside it, which is moved over the file in
+    // one step once it is complete. A failed write deletes the temporary file and leaves
+    // the file as it was.
+    static void replace(Path file, FileContent content) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try( OutputStream out = Files.newOutputStream(temporary) ) {
+                content.writeTo(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    // Maps the file into memory and decodes its header and style tables
+    public static DrawingFile open(Path file) throws IOException {
+        try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+            if( channel.size() > Integer.MAX_VALUE )
+                throw new IOException(file + " is too large to map");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if( buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC )
+                throw new IOException(file + " is not a drawing file");
+            int version = buffer.getInt();
+            if( version < 1 || version > VERSION )
+                throw new IOException(file + " has unsupported version " + version);
+
+            int shapeCount = buffer.getInt();
+            int strokeCount = buffer.getInt();
+            int paintCount = buffer.getInt();
+            int recordOffset = buffer.getInt();
+            if( shapeCount < 0 || recordOffset < HEADER_SIZE
+                    || (long) recordOffset + (long) shapeCount * RECORD_SIZE > buffer.capacity() )
+                throw new IOException(file + " is truncated");
+            // every table entry takes at least 5 bytes, which bounds the tables before they are made
+            if( strokeCount < 0 || paintCount < 0 || (long) strokeCount + paintCount > recordOffset / 5 )
+                throw new IOException(file + " has " + strokeCount + " strokes and " + paintCount + " paints");
+            Stroke[] strokes = new Stroke[strokeCount];
+            Paint[] paints = new Paint[paintCount];
+
+            // the tables lie between the header and the records, and are small next to them
+            byte[] tableBytes = new byte[recordOffset - HEADER_SIZE];
+            buffer.get(tableBytes);
+            DataInput in = new DataInputStream(new ByteArrayInputStream(tableBytes));
+            for( int i = 0; i < strokes.length; i++ )
+                strokes[i] = readStroke(in);
+            for( int i = 0; i < paints.length; i++ )
+                paints[i] = readPaint(in);
+
+            buffer.position(recordOffset);
+            MappedByteBuffer records = (MappedByteBuffer) buffer.slice();
+            return new DrawingFile(records, shapeCount, strokes, paints);
+        } catch (IllegalArgumentException | BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+    } // end of open
+
+    public int size() {
+        return shapeCount;
+    }
+
+    public int getType(int index) {
+        return records.getInt(index * RECORD_SIZE + 16) & 0x7F;
+    }
+
+    // Decodes the shape at the given index straight from its record
+    public MyShape getShape(int index) throws IOException {
+        if( index < 0 || index >= shapeCount )
+            throw new IndexOutOfBoundsException("shape " + index + " of " + shapeCount);
+        checkRecord(index);
+        int offset = index * RECORD_SIZE;
+        int x1 = records.getInt(offset);
+        int y1 = records.getInt(offset + 4);
+        int x2 = records.getInt(offset + 8);
+        int y2 = records.getInt(offset + 12);
+        int style = records.getInt(offset + 16);
+        Paint paint = paints[records.getInt(offset + 20)];
+        Stroke stroke = strokes[style >>> 8];
+        boolean filled = (style & FILLED) != 0;
+
+        switch( style & 0x7F ) {
+            case ShapeStore.FREEHAND:
+                return new MyFreehand(paint, stroke, readPoints(x1, y1));
+            case ShapeStore.OVAL:
+                return new MyOval(paint, stroke, x1, y1, x2, y2, filled);
+            case ShapeStore.RECTANGLE:
+                return new MyRectangle(paint, stroke, x1, y1, x2, y2, filled);
+            default:
+                return new MyLine(paint, stroke, x1, y1, x2, y2);
+        }
+    } // end of getShape
+
+    // Appends every shape in the file to the store without building MyShape objects. Every
+    // record is checked first, so a corrupt file adds nothing.
+    public void copyTo(ShapeStore shapes) throws IOException {
+        for( int i = 0; i < shapeCount; i++ )
+            checkRecord(i);
+
+        for( int i = 0; i < shapeCount; i++ ) {
+            int offset = i * RECORD_SIZE;
+            int style = records.getInt(offset + 16);
+            if( (style & 0x7F) == ShapeStore.FREEHAND ) {
+                shapes.addFreehand(readPoints(records.getInt(offset), records.getInt(offset + 4)),
+                        strokes[style >>> 8], paints[records.getInt(offset + 20)]);
+                continue;
+            }
+            shapes.add(style & 0x7F, records.getInt(offset), records.getInt(offset + 4),
+                    records.getInt(offset + 8), records.getInt(offset + 12), (style & FILLED) != 0,
+                    strokes[style >>> 8], paints[records.getInt(offset + 20)]);
+        }
+    } // end of copyTo
+
+    // Throws if the record's type, style indexes or freehand points are not ones the file has
+    private void checkRecord(int index) throws IOException {
+        int offset = index * RECORD_SIZE;
+        int style = records.getInt(offset + 16);
+        int paint = records.getInt(offset + 20);
+        if( (style & 0x7F) > ShapeStore.FREEHAND )
+            throw new IOException("shape " + index + " has unknown type " + (style & 0x7F));
+        if( style >>> 8 >= strokes.length || paint < 0 || paint >= paints.length )
+            throw new IOException("shape " + index + " has stroke " + (style >>> 8) + " and paint " + paint
+                    + " of " + strokes.length + " and " + paints.length);
+        if( (style & 0x7F) == ShapeStore.FREEHAND )
+            checkPoints(records.getInt(offset), records.getInt(offset + 4));
+    }
+
+    private void checkPoints(int start, int count) throws IOException {
+        if( start < 0 || count < 4 || count % 2 != 0 || count > pointCount - start )
+            throw new IOException("freehand points " + start + "+" + count + " lie outside the file");
+    }
+
+    // Returns count ints of the points section from the given start
+    private int[] readPoints(int start, int count) throws IOException {
+        checkPoints(start, count);
+        int[] points = new int[count];
+        int offset = shapeCount * RECORD_SIZE + start * 4;
+        for( int i = 0; i < count; i++ )
+            points[i] = records.getInt(offset + i * 4);
+        return points;
+    }
+
+    // Writes the record of the shape at the given index, points is where a freehand
+    // stroke's points start in the points section
+    private static void writeRecord(ShapeStore shapes, int index, int points, DataOutput out)
+            throws IOException {
+        if( shapes.getType(index) == ShapeStore.FREEHAND ) {
+            out.writeInt(points);
+            out.writeInt(shapes.getPoints(index).length);
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+        else {
+            out.writeInt(shapes.getX1(index));
+            out.writeInt(shapes.getY1(index));
+            out.writeInt(shapes.getX2(index));
+            out.writeInt(shapes.getY2(index));
+        }
+        out.writeInt(shapes.getStrokeIndex(index) << 8
+                | (shapes.isFilled(index) ? FILLED : 0) | shapes.getType(index));
+        out.writeInt(shapes.getPaintIndex(index));
+    }
+
+    // Writes the parameters of a stroke as TextFieldHandler builds it
+    static void writeStroke(Stroke stroke, DataOutput out) throws IOException {
+        if( !(stroke instanceof BasicStroke) )
+            throw new IOException("only BasicStroke can be saved: " + stroke);
+
+        BasicStroke basic = (BasicStroke) stroke;
+        out.writeFloat(basic.getLineWidth());
+        out.writeByte(basic.getEndCap());
+        out.writeByte(basic.getLineJoin());
+        out.writeFloat(basic.getMiterLimit());
+        out.writeFloat(basic.getDashPhase());
+
+        float[] dashes = basic.getDashArray();
+        out.writeShort(dashes == null ? 0 : dashes.length);
+        if( dashes != null ) {
+            for( float dash : dashes )
+                out.writeFloat(dash);
+        }
+    }
+
+    static Stroke readStroke(DataInput in) throws IOException {
+        float width = in.readFloat();
+        int cap = in.readByte();
+        int join = in.readByte();
+        float miterLimit = in.readFloat();
+        float dashPhase = in.readFloat();
+        int dashCount = in.readUnsignedShort();
+        if( dashCount == 0 )
+            return StyleCache.SHARED.stroke(width, cap, join, miterLimit, null, dashPhase);
+
+        float[] dashes = new float[dashCount];
+        for( int i = 0; i < dashCount; i++ )
+            dashes[i] = in.readFloat();
+        return StyleCache.SHARED.stroke(width, cap, join, miterLimit, dashes, dashPhase);
+    }
+
+    // Writes a Color, or a GradientPaint as ColorButtonHandler builds it
+    static void writePaint(Paint paint, DataOutput out) throws IOException {
+        if( paint instanceof Color ) {
+            out.writeByte(COLOR);
+            out.writeInt(((Color) paint).getRGB());
+        }
+        else if( paint instanceof GradientPaint ) {
+            GradientPaint gradient = (GradientPaint) paint;
+            out.writeByte(GRADIENT);
+            out.writeFloat((float) gradient.getPoint1().getX());
+            out.writeFloat((float) gradient.getPoint1().getY());
+            out.writeInt(gradient.getColor1().getRGB());
+            out.writeFloat((float) gradient.getPoint2().getX());
+            out.writeFloat((float) gradient.getPoint2().getY());
+            out.writeInt(gradient.getColor2().getRGB());
+            out.writeBoolean(gradient.isCyclic());
+        }
+        else {
+            throw new IOException("only Color and GradientPaint can be saved: " + paint);
+        }
+    }
+
+    static Paint readPaint(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        if( kind == COLOR )
+            return StyleCache.SHARED.intern(new Color(in.readInt(), true));
+        if( kind != GRADIENT )
+            throw new IOException("unknown paint kind " + kind);
+
+        float x1 = in.readFloat();
+        float y1 = in.readFloat();
+        Color color1 = new Color(in.readInt(), true);
+        float x2 = in.readFloat();
+        float y2 = in.readFloat();
+        Color color2 = new Color(in.readInt(), true);
+        return StyleCache.SHARED.intern(new GradientPaint(x1, y1, color1, x2, y2, color2, in.readBoolean()));
+    }
+
+
+    // FileContent writes the whole content of a file replace puts in place
+    interface FileContent {
+        void writeTo(OutputStream out) throws IOException;
+    } // end of inner interface FileContent
+
+} // end of DrawingFile class
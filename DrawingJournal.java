@@ -0,0 +1,425 @@
+package drawingapplication;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// DrawingJournal keeps the drawing safe from a dying JVM. Every change to the drawing is
+// appended to a journal file by a background writer thread, which batches whatever has
+// queued up into one write and one fsync (group commit), so the EDT never waits on the disk.
+//
+// The journal is split into generations. Every SNAPSHOT_INTERVAL changes a snapshot of
+// the whole drawing is written as snapshot-<n>.jdraw and later changes go to journal-<n>.log;
+// once the snapshot is safely on disk the older files are deleted. Recovery loads the
+// newest complete snapshot and replays the journals from its generation on, so it only
+// ever replays a bounded tail.
+//
+// A record is the kind byte followed by the change: ADD carries the whole shape with its
+// stroke and paint, MOVE the offset and the ascending indexes of the shapes moved by it,
+// REMOVE_LAST and CLEAR nothing more. DrawingServer sends the same records over the network.
+class DrawingJournal {
+
+    static final int SNAPSHOT_INTERVAL = 10_000; // changes between snapshots
+
+    static final byte ADD = 1; // journal record kinds
+    static final byte REMOVE_LAST = 2;
+    static final byte CLEAR = 3;
+    static final byte MOVE = 4;
+    static final int MAX_RECORD = 1 << 24; // longest record, long enough for any freehand stroke
+    private static final int MOVE_SHAPES = 1 << 20; // most shapes in one MOVE record, a bigger move takes several
+
+    private final Path directory;
+    private final BlockingQueue<Object> queue; // encoded records (byte[]) and snapshots (Snapshot)
+    private final Thread writer;
+    private final Thread shutdownHook; // closes the journal if the JVM exits while it is open
+    private int changesSinceSnapshot; // only touched by the thread making changes
+    private int generation; // generation of the journal the writer appends to
+    private FileChannel journal; // only touched by the writer thread
+    private volatile boolean closed;
+
+
+    private DrawingJournal(Path directory, int generation) throws IOException {
+        this.directory = directory;
+        this.generation = generation;
+        queue = new LinkedBlockingQueue<>();
+        journal = openJournal(generation);
+        writer = new Thread(this::writeLoop, "drawing-journal");
+        writer.setDaemon(true);
+        writer.start();
+        shutdownHook = new Thread(this::close, "drawing-journal-close");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Rebuilds the drawing kept in the directory into the empty store and returns a journal
+    // that appends to it. The recovered drawing is compacted into a fresh snapshot.
+    public static DrawingJournal open(Path directory, ShapeStore shapes) throws IOException {
+        Files.createDirectories(directory);
+
+        int generation = latestSnapshot(directory);
+        if( generation > 0 )
+            DrawingFile.open(snapshotFile(directory, generation)).copyTo(shapes);
+
+        int last = generation;
+        while( Files.exists(journalFile(directory, last)) ) {
+            replay(journalFile(directory, last), shapes);
+            last++;
+        }
+
+        DrawingJournal journal = new DrawingJournal(directory, Math.max(last, 1));
+        journal.snapshot(shapes);
+        return journal;
+    } // end of open
+
+    // Records a shape appended to the store. A shape the journal can not hold, which only
+    // a stroke or paint the file format can not hold is, closes the journal and the error
+    // is thrown: the records after a missing ADD would address the wrong shapes on replay.
+    public void shapeAdded(ShapeStore shapes, int index) throws IOException {
+        byte[] record;
+        try {
+            record = encodeAdd(shapes, index);
+        } catch (IOException e) {
+            close();
+            throw new IOException("the drawing journal stopped at a shape it can not record: " + e.getMessage(), e);
+        }
+        append(record, shapes);
+    }
+
+    // Returns the ADD record of the shape at the given index
+    static byte[] encodeAdd(ShapeStore shapes, int index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD);
+        out.writeByte(shapes.getType(index) | (shapes.isFilled(index) ? 0x80 : 0));
+        if( shapes.getType(index) == ShapeStore.FREEHAND ) {
+            // a freehand stroke records its points instead of the two corners
+            int[] points = shapes.getPoints(index);
+            out.writeInt(points.length);
+            for( int value : points )
+                out.writeInt(value);
+        }
+        else {
+            out.writeInt(shapes.getX1(index));
+            out.writeInt(shapes.getY1(index));
+            out.writeInt(shapes.getX2(index));
+            out.writeInt(shapes.getY2(index));
+        }
+        DrawingFile.writeStroke(shapes.getStroke(index), out);
+        DrawingFile.writePaint(shapes.getPaint(index), out);
+        return bytes.toByteArray();
+    }
+
+    // Records shapes being moved, given a MOVE record encodeMove made for them
+    public void shapesMoved(ShapeStore shapes, byte[] record) {
+        append(record, shapes);
+    }
+
+    // Returns the MOVE records of the shapes at the given ascending indexes moving by dx and dy
+    static List<byte[]> encodeMove(IntList indexes, int dx, int dy) {
+        List<byte[]> records = new ArrayList<>();
+        for( int first = 0; first < indexes.size(); first += MOVE_SHAPES ) {
+            int count = Math.min(indexes.size() - first, MOVE_SHAPES);
+            ByteBuffer record = ByteBuffer.allocate(13 + 4 * count);
+            record.put(MOVE).putInt(dx).putInt(dy).putInt(count);
+            for( int i = first; i < first + count; i++ )
+                record.putInt(indexes.get(i));
+            records.add(record.array());
+        }
+        return records;
+    }
+
+    // Reads a MOVE record, adding the indexes below size to indexes, and returns the offset
+    // as dx and dy. Indexes from size on are left out: on a shared drawing they are shapes
+    // another user's edit removed first, and every copy leaves them out alike.
+    static int[] readMove(byte[] record, IntList indexes, int size) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        if( record.length < 13 || in.get() != MOVE )
+            throw new IOException("not a move record");
+        int dx = in.getInt();
+        int dy = in.getInt();
+        int count = in.getInt();
+        if( count < 0 || (long) count * 4 != in.remaining() )
+            throw new IOException("move record with " + count + " shapes in " + record.length + " bytes");
+
+        int previous = -1;
+        for( int i = 0; i < count; i++ ) {
+            int index = in.getInt();
+            if( index <= previous )
+                throw new IOException("move record with shape " + index + " after " + previous);
+            if( index < size )
+                indexes.add(index);
+            previous = index;
+        }
+        return new int[] {dx, dy};
+    } // end of readMove
+
+    // Records the last shape being removed from the store
+    public void lastShapeRemoved(ShapeStore shapes) {
+        append(new byte[] {REMOVE_LAST}, shapes);
+    }
+
+    // Records every shape being removed from the store
+    public void drawingCleared(ShapeStore shapes) {
+        append(new byte[] {CLEAR}, shapes);
+    }
+
+    // Records the whole drawing being replaced, for example by opening a file
+    public void drawingReplaced(ShapeStore shapes) {
+        snapshot(shapes);
+    }
+
+    private void append(byte[] record, ShapeStore shapes) {
+        if( closed )
+            return;
+        queue.add(record);
+        if( ++changesSinceSnapshot >= SNAPSHOT_INTERVAL )
+            snapshot(shapes);
+    }
+
+    // Queues a copy of the drawing to be written as the start of a new generation
+    private void snapshot(ShapeStore shapes) {
+        if( closed )
+            return;
+        changesSinceSnapshot = 0;
+        queue.add(new Snapshot(shapes.copy()));
+    }
+
+    // Writes everything still queued and stops the writer thread
+    public void close() {
+        if( closed )
+            return;
+        closed = true;
+        // a closed journal takes its hook with it, so the hooks of the journals a layer or
+        // reopened drawing left behind do not keep them and their stores reachable
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, this is the hook running
+        }
+        queue.add(Snapshot.END);
+        try {
+            writer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops the journal and deletes its snapshots and journals, for a drawing that is
+    // thrown away. The directory is deleted too once nothing else is left in it.
+    public void discard() throws IOException {
+        close();
+        for( String pattern : new String[] {"snapshot-*.jdraw", "journal-*.log", "snapshot.tmp"} ) {
+            try( DirectoryStream<Path> files = Files.newDirectoryStream(directory, pattern) ) {
+                for( Path file : files )
+                    Files.deleteIfExists(file);
+            }
+        }
+        try( DirectoryStream<Path> rest = Files.newDirectoryStream(directory) ) {
+            if( !rest.iterator().hasNext() )
+                Files.delete(directory);
+        }
+    } // end of discard
+
+    // Body of the writer thread: drains the queue in batches, one fsync per batch
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while( true ) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                boolean written = false;
+                for( Object item : batch ) {
+                    if( item == Snapshot.END ) {
+                        if( written )
+                            journal.force(false);
+                        journal.close();
+                        return;
+                    }
+                    if( item instanceof Snapshot ) {
+                        if( written )
+                            journal.force(false);
+                        written = false;
+                        writeSnapshot(((Snapshot) item).shapes);
+                    }
+                    else {
+                        writeRecord((byte[]) item);
+                        written = true;
+                    }
+                }
+                if( written )
+                    journal.force(false);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Drawing journal stopped: " + e.getMessage());
+            closed = true;
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+    } // end of writeLoop
+
+    // Appends one record framed by its length and checksum, so a torn write at the end of
+    // the file is detected and ignored on recovery
+    private void writeRecord(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer frame = ByteBuffer.allocate(8 + record.length);
+        frame.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+        while( frame.hasRemaining() )
+            journal.write(frame);
+    }
+
+    // Starts a new generation: later records go to a new journal, the snapshot is written
+    // beside it and only then are the files of older generations deleted
+    private void writeSnapshot(ShapeStore shapes) throws IOException {
+        journal.close();
+        generation++;
+        journal = openJournal(generation);
+
+        Path temporary = directory.resolve("snapshot.tmp");
+        DrawingFile.save(shapes, temporary);
+        try( FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE) ) {
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile(directory, generation), StandardCopyOption.ATOMIC_MOVE);
+
+        for( int old = generation - 1; old >= 0; old-- ) {
+            boolean deleted = Files.deleteIfExists(snapshotFile(directory, old));
+            deleted |= Files.deleteIfExists(journalFile(directory, old));
+            if( !deleted && old < generation - 1 )
+                break; // everything older was removed by an earlier snapshot
+        }
+    } // end of writeSnapshot
+
+    private FileChannel openJournal(int journalGeneration) throws IOException {
+        return FileChannel.open(journalFile(directory, journalGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Applies the records of one journal file to the store, stopping at a torn record
+    private static void replay(Path file, ShapeStore shapes) throws IOException {
+        try( InputStream stream = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream)) ) {
+            CRC32 crc = new CRC32();
+            while( true ) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if( length <= 0 || length > MAX_RECORD )
+                        return;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if( (int) crc.getValue() != checksum )
+                        return;
+                } catch (EOFException e) {
+                    return; // the end of the journal, or a record cut short by a crash
+                }
+                apply(record, shapes);
+            }
+        }
+    } // end of replay
+
+    // Applies one record to the store, throwing if it is not a valid record. A record that
+    // fails leaves the store as it was.
+    static void apply(byte[] record, ShapeStore shapes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            switch( in.readByte() ) {
+                case ADD:
+                    int style = in.readByte();
+                    if( (style & 0x7F) > ShapeStore.FREEHAND )
+                        throw new IOException("unknown shape type " + (style & 0x7F));
+                    if( (style & 0x7F) == ShapeStore.FREEHAND ) {
+                        int count = in.readInt();
+                        if( count < 4 || count % 2 != 0 || count > record.length / 4 )
+                            throw new IOException("freehand record with " + count + " point ints");
+                        int[] points = new int[count];
+                        for( int i = 0; i < count; i++ )
+                            points[i] = in.readInt();
+                        shapes.addFreehand(points, DrawingFile.readStroke(in), DrawingFile.readPaint(in));
+                        break;
+                    }
+                    int x1 = in.readInt();
+                    int y1 = in.readInt();
+                    int x2 = in.readInt();
+                    int y2 = in.readInt();
+                    shapes.add(style & 0x7F, x1, y1, x2, y2, (style & 0x80) != 0,
+                            DrawingFile.readStroke(in), DrawingFile.readPaint(in));
+                    break;
+                case REMOVE_LAST:
+                    shapes.removeLast();
+                    break;
+                case CLEAR:
+                    shapes.clear();
+                    break;
+                case MOVE:
+                    IntList indexes = new IntList();
+                    int[] offset = readMove(record, indexes, shapes.size());
+                    shapes.move(indexes, offset[0], offset[1]);
+                    break;
+                default:
+                    throw new IOException("unknown journal record " + record[0]);
+            }
+        } catch (IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("invalid stroke or paint: " + e.getMessage(), e); // BasicStroke rejected it
+        }
+    } // end of apply
+
+    // Returns the generation of the newest snapshot in the directory, or 0 if there is none
+    private static int latestSnapshot(Path directory) throws IOException {
+        int latest = 0;
+        try( DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.jdraw") ) {
+            for( Path file : files ) {
+                String name = file.getFileName().toString();
+                try {
+                    latest = Math.max(latest, Integer.parseInt(name.substring(9, name.length() - 6)));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return latest;
+    }
+
+    private static Path snapshotFile(Path directory, int generation) {
+        return directory.resolve("snapshot-" + generation + DrawingFile.EXTENSION);
+    }
+
+    private static Path journalFile(Path directory, int generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+
+
+    // Snapshot carries a copy of the drawing through the writer queue
+    private static class Snapshot {
+
+        static final Snapshot END = new Snapshot(null); // tells the writer to stop
+
+        final ShapeStore shapes;
+
+        Snapshot(ShapeStore shapes) {
+            this.shapes = shapes;
+        }
+    } // end of inner class Snapshot
+
+} // end of DrawingJournal class
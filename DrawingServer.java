@@ -0,0 +1,369 @@
+package drawingapplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// DrawingServer owns the copy of a shared drawing every client follows. Clients send the
+// edits their users make as DrawingJournal records, each framed by its length, and the
+// server applies them in the order they arrive and sends every applied record to all the
+// clients, the sender included. So every copy goes through the same edits in the same
+// order, and a client applies its own edits only when they come back. A client that
+// connects is first sent a CLEAR and the whole drawing.
+//
+// One thread runs a selector over every connection. The records applied in one pass over
+// the ready connections go out as one batch, a single buffer every client's queue shares.
+// A client that reads slower than the drawing changes builds up a queue: past PAUSE_BYTES
+// the server stops reading its edits until it has caught up, and past DROP_BYTES, beyond
+// the copy of the drawing it was sent on connecting, it is disconnected. Usage:
+//     java drawingapplication.DrawingServer [port [journal directory]]
+public class DrawingServer implements Runnable {
+
+    static final int DEFAULT_PORT = 4815;
+    // queued bytes at which a client's edits stop being read, and at which it is disconnected
+    static final int PAUSE_BYTES = Integer.getInteger("drawing.server.pauseBytes", 1 << 20);
+    static final int DROP_BYTES = Integer.getInteger("drawing.server.dropBytes", 16 << 20);
+
+    private static final int READ_BUFFER = 1 << 16;
+
+    private final ShapeStore shapes; // the drawing, only touched by the server thread
+    private final DrawingJournal journal; // keeps the drawing on disk, null if it is not kept
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Connection> connections;
+    private ByteBuffer pending; // framed records applied since the last batch went out
+    private ByteBuffer snapshot; // the framed drawing sent to new clients, null once an edit changes it
+    private volatile boolean closed;
+    private volatile long recordsApplied;
+    private volatile long batchesSent;
+    private volatile long bytesSent;
+    private volatile long clientsDropped;
+
+
+    // Serves the drawing in the store, which the server owns from now on, on the address
+    public DrawingServer(ShapeStore shapes, DrawingJournal journal, InetSocketAddress address) throws IOException {
+        this.shapes = shapes;
+        this.journal = journal;
+        connections = new ArrayList<>();
+        pending = ByteBuffer.allocate(READ_BUFFER);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    } // end of DrawingServer constructor
+
+    // Runs the server on a thread of its own
+    public Thread start() {
+        Thread thread = new Thread(this, "drawing-server");
+        thread.start();
+        return thread;
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // Stops the server and disconnects every client
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    public long getRecordsApplied() {
+        return recordsApplied;
+    }
+
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getClientsDropped() {
+        return clientsDropped;
+    }
+
+    // Body of the server thread
+    @Override
+    public void run() {
+        try {
+            while( !closed ) {
+                selector.select();
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while( ready.hasNext() ) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if( !key.isValid() )
+                        continue;
+                    if( key.isAcceptable() ) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if( key.isWritable() )
+                            flush(connection);
+                        if( key.isValid() && key.isReadable() )
+                            read(connection);
+                    } catch (IOException e) {
+                        disconnect(connection); // gone, or sent something that is not a record
+                    }
+                }
+                broadcast();
+            }
+        } catch (IOException e) {
+            System.err.println("Drawing server stopped: " + e.getMessage());
+        } finally {
+            for( Connection connection : new ArrayList<>(connections) )
+                disconnect(connection);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            if( journal != null )
+                journal.close();
+        }
+    } // end of run
+
+    // Takes every waiting connection and sends it the drawing
+    private void accept() throws IOException {
+        // the edits applied so far go out first, the copy of the drawing already holds them
+        broadcast();
+
+        SocketChannel channel;
+        while( (channel = server.accept()) != null ) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+
+            ByteBuffer drawing = snapshot().duplicate();
+            connection.allowance = DROP_BYTES + drawing.remaining();
+            enqueue(connection, drawing);
+        }
+    }
+
+    // Returns the framed records that rebuild the drawing, a CLEAR and an ADD per shape
+    private ByteBuffer snapshot() throws IOException {
+        if( snapshot != null )
+            return snapshot;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * shapes.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeByte(DrawingJournal.CLEAR);
+        for( int i = 0; i < shapes.size(); i++ ) {
+            byte[] record = DrawingJournal.encodeAdd(shapes, i);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        snapshot = ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+        return snapshot;
+    }
+
+    // Reads what the client sent and applies every complete record in it
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if( connection.channel.read(in) < 0 ) {
+            disconnect(connection);
+            return;
+        }
+
+        in.flip();
+        int needed = 0; // length of a frame that does not fit the buffer
+        while( in.remaining() >= 4 ) {
+            int length = in.getInt(in.position());
+            if( length <= 0 || length > DrawingJournal.MAX_RECORD )
+                throw new IOException("record of " + length + " bytes");
+            if( in.remaining() < 4 + length ) {
+                needed = 4 + length;
+                break;
+            }
+
+            in.getInt();
+            byte[] record = new byte[length];
+            in.get(record);
+            DrawingJournal.apply(record, shapes);
+            applied(record);
+        }
+        in.compact();
+
+        if( needed > in.capacity() ) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            in.flip();
+            larger.put(in);
+            connection.in = larger;
+        }
+    } // end of read
+
+    // Journals the shape just added. A journal that can not record it has closed itself,
+    // and the drawing is served on without being kept.
+    private void journalShapeAdded() {
+        try {
+            journal.shapeAdded(shapes, shapes.size() - 1);
+        } catch (IOException e) {
+            System.err.println("Drawing server: " + e.getMessage());
+        }
+    }
+
+    // Keeps a record that was applied to the drawing, for the journal and the next batch
+    private void applied(byte[] record) {
+        recordsApplied++;
+        snapshot = null;
+        if( journal != null ) {
+            if( record[0] == DrawingJournal.ADD )
+                journalShapeAdded();
+            else if( record[0] == DrawingJournal.REMOVE_LAST )
+                journal.lastShapeRemoved(shapes);
+            else if( record[0] == DrawingJournal.MOVE )
+                journal.shapesMoved(shapes, record);
+            else
+                journal.drawingCleared(shapes);
+        }
+
+        if( pending.remaining() < 4 + record.length ) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(2 * pending.capacity(), pending.position() + 4 + record.length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.putInt(record.length).put(record);
+    }
+
+    // Sends the records applied since the last batch to every client
+    private void broadcast() {
+        if( pending.position() == 0 )
+            return;
+
+        ByteBuffer batch = ByteBuffer.allocate(pending.position());
+        pending.flip();
+        batch.put(pending).flip();
+        pending.clear();
+        batchesSent++;
+
+        for( Connection connection : new ArrayList<>(connections) )
+            enqueue(connection, batch.asReadOnlyBuffer());
+    }
+
+    // Queues bytes for the client and writes as much of them as the socket takes
+    private void enqueue(Connection connection, ByteBuffer bytes) {
+        connection.out.add(bytes);
+        connection.queued += bytes.remaining();
+        try {
+            flush(connection);
+        } catch (IOException e) {
+            disconnect(connection);
+            return;
+        }
+
+        if( connection.queued > connection.allowance ) {
+            clientsDropped++;
+            System.err.println("Drawing server: dropping " + connection.describe() + ", "
+                    + connection.queued + " bytes behind");
+            disconnect(connection);
+        }
+    }
+
+    // Writes queued bytes until the socket is full, then updates what the selector waits for
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer head;
+        while( (head = connection.out.peek()) != null ) {
+            int written = connection.channel.write(head);
+            connection.queued -= written;
+            bytesSent += written;
+            if( head.hasRemaining() )
+                break;
+            connection.out.poll();
+        }
+
+        // a client that has fallen behind is not read until it has caught up, so its
+        // own edits can not make it fall further behind
+        if( connection.queued > PAUSE_BYTES )
+            connection.paused = true;
+        else if( connection.queued < PAUSE_BYTES / 2 )
+            connection.paused = false;
+        if( connection.out.isEmpty() )
+            connection.allowance = DROP_BYTES; // the copy of the drawing has been sent
+
+        int interest = (connection.paused ? 0 : SelectionKey.OP_READ)
+                | (connection.out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if( connection.key.isValid() && connection.key.interestOps() != interest )
+            connection.key.interestOps(interest);
+    } // end of flush
+
+    private void disconnect(Connection connection) {
+        if( !connections.remove(connection) )
+            return;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+
+    // Connection is the server's side of one client
+    private static final class Connection {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in; // bytes of records not complete yet
+        final ArrayDeque<ByteBuffer> out; // batches not written yet, shared with the other clients
+        long queued; // bytes left in out
+        long allowance; // bytes the client may fall behind before it is disconnected
+        boolean paused; // its edits are not read until it catches up
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            in = ByteBuffer.allocate(READ_BUFFER);
+            out = new ArrayDeque<>();
+        }
+
+        String describe() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "a client";
+            }
+        }
+    } // end of inner class Connection
+
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        // the shared drawing survives a restart when it is journaled
+        ShapeStore shapes = new ShapeStore();
+        DrawingJournal journal = null;
+        if( args.length > 1 ) {
+            Path directory = Paths.get(args[1]);
+            journal = DrawingJournal.open(directory, shapes);
+        }
+
+        DrawingServer drawingServer = new DrawingServer(shapes, journal, new InetSocketAddress(port));
+        System.out.println("Serving a drawing of " + shapes.size() + " shapes on port " + drawingServer.getPort());
+        drawingServer.run();
+    } // end of main
+
+} // end of DrawingServer class
@@ -0,0 +1,114 @@
+package drawingapplication;
+
+import java.util.ArrayDeque;
+
+// EditHistory keeps the versions of the drawing that undo and redo move between. The
+// versions are ShapeVectors, which share their records with each other, so an entry
+// costs a few dozen bytes however large the drawing is, and the history is unbounded. A
+// move also keeps the indexes of the shapes it moved and by how much, so undoing it only
+// touches those and the journal can record it as the opposite move.
+class EditHistory {
+
+    static final int ONE_SHAPE = 1; // a shape was added, or the last one removed
+    static final int WHOLE_DRAWING = 2; // the drawing was cleared or replaced
+    static final int SOME_SHAPES = 3; // shapes were moved in place, the entry keeps which
+
+    private final ArrayDeque<Entry> undoStack;
+    private final ArrayDeque<Entry> redoStack;
+
+    public EditHistory() {
+        undoStack = new ArrayDeque<>();
+        redoStack = new ArrayDeque<>();
+    }
+
+    // Remembers the version of the drawing from before an edit of the given kind. A new
+    // edit starts a new branch, so whatever could be redone is dropped.
+    public void record(ShapeVector before, int kind) {
+        undoStack.push(new Entry(before, kind, null, 0, 0));
+        redoStack.clear();
+    }
+
+    // Remembers the version from before a SOME_SHAPES edit that moved the shapes at the
+    // given ascending indexes by dx and dy
+    public void recordMove(ShapeVector before, int[] shapes, int dx, int dy) {
+        undoStack.push(new Entry(before, SOME_SHAPES, shapes, dx, dy));
+        redoStack.clear();
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    // Kind of the edit undo() would take back
+    public int undoKind() {
+        return undoStack.peek().kind;
+    }
+
+    // Kind of the edit redo() would make again
+    public int redoKind() {
+        return redoStack.peek().kind;
+    }
+
+    // Shapes the SOME_SHAPES edit undo() would take back changed
+    public int[] undoShapes() {
+        return undoStack.peek().shapes;
+    }
+
+    // Shapes the SOME_SHAPES edit redo() would make again changes
+    public int[] redoShapes() {
+        return redoStack.peek().shapes;
+    }
+
+    // How far the SOME_SHAPES edit undo() would take back moved its shapes, as dx and dy
+    public int[] undoOffset() {
+        return new int[] {undoStack.peek().dx, undoStack.peek().dy};
+    }
+
+    // How far the SOME_SHAPES edit redo() would make again moves its shapes, as dx and dy
+    public int[] redoOffset() {
+        return new int[] {redoStack.peek().dx, redoStack.peek().dy};
+    }
+
+    // Returns the version from before the last edit and keeps the current one for redo
+    public ShapeVector undo(ShapeVector current) {
+        Entry entry = undoStack.pop();
+        redoStack.push(new Entry(current, entry.kind, entry.shapes, entry.dx, entry.dy));
+        return entry.version;
+    }
+
+    // Returns the version from after the last undone edit and keeps the current one for undo
+    public ShapeVector redo(ShapeVector current) {
+        Entry entry = redoStack.pop();
+        undoStack.push(new Entry(current, entry.kind, entry.shapes, entry.dx, entry.dy));
+        return entry.version;
+    }
+
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+    }
+
+
+    // Entry is one version of the drawing and the kind of edit that leads away from it
+    private static class Entry {
+
+        final ShapeVector version;
+        final int kind;
+        final int[] shapes; // indexes of the shapes a SOME_SHAPES edit changed, null for the others
+        final int dx; // how far a SOME_SHAPES edit moved them
+        final int dy;
+
+        Entry(ShapeVector version, int kind, int[] shapes, int dx, int dy) {
+            this.version = version;
+            this.kind = kind;
+            this.shapes = shapes;
+            this.dx = dx;
+            this.dy = dy;
+        }
+    } // end of inner class Entry
+
+} // end of EditHistory class
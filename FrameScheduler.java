@@ -0,0 +1,96 @@
+package drawingapplication;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.Timer;
+
+// FrameScheduler runs a frame callback on the EDT at most once per frame interval.
+// Callers request a frame whenever they have new work; a request arriving long enough
+// after the last frame runs at once, later ones are folded into a single frame run by
+// a Swing timer at the next tick, so a burst of input costs one frame per tick instead
+// of one per event.
+class FrameScheduler implements ActionListener {
+
+    static final int DEFAULT_FPS = 60;
+
+    private final Runnable frame; // the work done once per frame
+    private final Timer timer; // fires the next frame while requests keep coming
+    private long frameInterval; // nanoseconds between frames, 0 runs every request at once
+    private long lastFrameTime; // System.nanoTime() of the last frame
+    private boolean requested; // a frame has been requested and not run yet
+    private long frames; // number of frames run
+
+    public FrameScheduler(Runnable frame, int targetFps) {
+        this.frame = frame;
+        timer = new Timer(0, this);
+        timer.setCoalesce(true);
+        setTargetFps(targetFps);
+        lastFrameTime = System.nanoTime() - frameInterval;
+    }
+
+    // Sets how many frames a second are run at most, 0 runs every request at once
+    public void setTargetFps(int targetFps) {
+        if( targetFps < 0 )
+            throw new IllegalArgumentException("target FPS must not be negative: " + targetFps);
+        frameInterval = targetFps == 0 ? 0 : 1_000_000_000L / targetFps;
+        timer.setDelay((int) Math.max(frameInterval / 1_000_000, 1));
+        if( targetFps == 0 ) {
+            timer.stop();
+            flush();
+        }
+    }
+
+    public int getTargetFps() {
+        return frameInterval == 0 ? 0 : (int) (1_000_000_000L / frameInterval);
+    }
+
+    // Asks for a frame, either run now or at the next tick
+    public void request() {
+        requested = true;
+        if( timer.isRunning() )
+            return; // the coming tick picks it up
+
+        long sinceLastFrame = System.nanoTime() - lastFrameTime;
+        if( sinceLastFrame >= frameInterval ) {
+            runFrame();
+            if( frameInterval > 0 )
+                startTimer(frameInterval);
+        }
+        else {
+            startTimer(frameInterval - sinceLastFrame);
+        }
+    } // end of request
+
+    // Runs a requested frame now instead of waiting for the tick, for input that must
+    // see the latest state such as a mouse release
+    public void flush() {
+        if( requested )
+            runFrame();
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    // Timer tick: runs the frame if one was requested, otherwise goes idle
+    @Override
+    public void actionPerformed(ActionEvent event) {
+        if( requested )
+            runFrame();
+        else
+            timer.stop();
+    }
+
+    private void startTimer(long delay) {
+        timer.setInitialDelay((int) Math.max(delay / 1_000_000, 1));
+        timer.start();
+    }
+
+    private void runFrame() {
+        requested = false;
+        lastFrameTime = System.nanoTime();
+        frames++;
+        frame.run();
+    }
+
+} // end of FrameScheduler class
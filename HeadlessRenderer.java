@@ -0,0 +1,139 @@
+package drawingapplication;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+// HeadlessRenderer replays saved drawings (.drawing text or .jdraw binary files) onto a BufferedImage and writes them out as
+// PNG files, without a JFrame or a display. Usage:
+//     java drawingapplication.HeadlessRenderer <drawing file or directory> <output directory> [width height]
+public class HeadlessRenderer {
+
+    // canvases with more pixels than this are split into tiles and drawn on every core
+    static final long PARALLEL_PIXELS = 2048L * 2048;
+
+    private HeadlessRenderer() {
+    }
+
+    // Draws the shapes in order onto a white canvas, the same way DrawPanel shows them
+    public static BufferedImage render(List<MyShape> shapes, int width, int height) {
+        if( (long) width * height > PARALLEL_PIXELS )
+            return TileRenderer.render(shapes, width, height);
+        return renderSerial(shapes, width, height);
+    }
+
+    // Draws every shape on a single Graphics2D
+    static BufferedImage renderSerial(List<MyShape> shapes, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+
+        for( MyShape shape : shapes )
+            shape.draw(g);
+
+        g.dispose();
+        return image;
+    }
+
+    // Encodes the image as PNG straight onto the stream
+    public static void writePng(BufferedImage image, OutputStream out) throws IOException {
+        if( !ImageIO.write(image, "png", out) )
+            throw new IOException("no PNG writer available");
+        out.flush();
+    }
+
+    // Reads one drawing file, either a binary DrawingFile or a text drawing
+    static List<MyShape> readDrawing(Path file) throws IOException {
+        if( file.getFileName().toString().endsWith(DrawingFile.EXTENSION) ) {
+            DrawingFile drawing = DrawingFile.open(file);
+            List<MyShape> shapes = new ArrayList<>(drawing.size());
+            for( int i = 0; i < drawing.size(); i++ )
+                shapes.add(drawing.getShape(i));
+            return shapes;
+        }
+        
+        try( Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+            return TextDrawingFormat.read(in);
+        }
+    }
+
+    // Renders one drawing file to <output>/<name>.png and returns the number of shapes drawn
+    static int renderFile(Path drawing, Path outputDirectory, int width, int height) throws IOException {
+        List<MyShape> shapes = readDrawing(drawing);
+        BufferedImage image = render(shapes, width, height);
+
+        String name = drawing.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if( dot > 0 )
+            name = name.substring(0, dot);
+
+        try( OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(outputDirectory.resolve(name + ".png"))) ) {
+            writePng(image, out);
+        }
+        return shapes.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        // must be set before any AWT class is loaded
+        System.setProperty("java.awt.headless", "true");
+
+        if( args.length != 2 && args.length != 4 ) {
+            System.err.println("usage: HeadlessRenderer <drawing file or directory> <output directory> [width height]");
+            System.exit(2);
+        }
+
+        Path input = Paths.get(args[0]);
+        Path outputDirectory = Paths.get(args[1]);
+        int width = args.length == 4 ? Integer.parseInt(args[2]) : 580; // DrawPanel's size
+        int height = args.length == 4 ? Integer.parseInt(args[3]) : 470;
+        Files.createDirectories(outputDirectory);
+
+        // batch mode renders every drawing in the directory
+        List<Path> drawings = new ArrayList<>();
+        if( Files.isDirectory(input) ) {
+            try( DirectoryStream<Path> files = Files.newDirectoryStream(input,
+                    "*{" + TextDrawingFormat.EXTENSION + "," + DrawingFile.EXTENSION + "}") ) {
+                for( Path file : files )
+                    drawings.add(file);
+            }
+        }
+        else {
+            drawings.add(input);
+        }
+
+        long start = System.nanoTime();
+        long shapeCount = 0;
+        int failures = 0;
+        for( Path drawing : drawings ) {
+            try {
+                shapeCount += renderFile(drawing, outputDirectory, width, height);
+            } catch (IOException e) {
+                System.err.println(drawing + ": " + e.getMessage());
+                failures++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int rendered = drawings.size() - failures;
+        System.out.printf("rendered %d drawings (%d shapes) in %.2f s: %.1f drawings/s, %.0f shapes/s%n",
+                rendered, shapeCount, seconds, rendered / seconds, shapeCount / seconds);
+        if( failures > 0 )
+            System.exit(1);
+    } // end of main
+
+} // end of HeadlessRenderer class
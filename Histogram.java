@@ -0,0 +1,91 @@
+package drawingapplication;
+
+import java.util.Arrays;
+
+// Histogram counts durations in nanoseconds in buckets that grow with the value: every
+// power of two is split into eight buckets, so any percentile it reports is within
+// 12.5% of the true value, and recording a value is a few shifts and an increment.
+// It is written by one thread; other threads may read slightly stale numbers.
+class Histogram {
+
+    private static final int SUB_BITS = 3; // eight buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts;
+    private long count;
+    private long total; // sum of all values, for the mean
+    private long max;
+
+    public Histogram() {
+        counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+    }
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    // Returns the value the given fraction of the recorded values is at or below, as the
+    // upper end of the bucket holding it
+    public long percentile(double fraction) {
+        if( count == 0 )
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for( int bucket = 0; bucket < counts.length; bucket++ ) {
+            seen += counts[bucket];
+            if( seen >= rank )
+                return Math.min(upperBound(bucket), max);
+        }
+        return max;
+    }
+
+    // Returns the counts of the non-empty buckets as "upper bound in ms: count" lines
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        for( int bucket = 0; bucket < counts.length; bucket++ ) {
+            if( counts[bucket] != 0 )
+                text.append(String.format("<= %.3f ms: %d%n", upperBound(bucket) / 1e6, counts[bucket]));
+        }
+        return text.toString();
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    private static int bucketOf(long value) {
+        if( value < SUB_BUCKETS )
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if( bucket < SUB_BUCKETS )
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS)) + width - 1;
+    }
+
+} // end of Histogram class
@@ -0,0 +1,97 @@
+package drawingapplication;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// IntList is a growable list of primitive ints, used where a List<Integer> would
+// box every element
+class IntList {
+
+    private int[] values;
+    private int size;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+        size = 0;
+    }
+
+    public void add(int value) {
+        if( size == values.length )
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
+        values[size++] = value;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        values[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Removes and returns the last value
+    public int removeLast() {
+        return values[--size];
+    }
+
+    public int last() {
+        return values[size - 1];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Keeps only the first size values
+    public void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    public void sort() {
+        Arrays.sort(values, 0, size);
+    }
+
+    // Removes every value that is set in values, keeping the order of the others
+    public void removeAll(BitSet values) {
+        int kept = 0;
+        for( int i = 0; i < size; i++ ) {
+            if( !values.get(this.values[i]) )
+                this.values[kept++] = this.values[i];
+        }
+        size = kept;
+    }
+
+    // Adds the values of another sorted list to this sorted one, keeping it sorted, in one
+    // pass from the back
+    public void addSorted(IntList other) {
+        if( size + other.size > values.length )
+            values = Arrays.copyOf(values, size + other.size + (size >> 1));
+        int i = size - 1;
+        int j = other.size - 1;
+        int k = size + other.size - 1;
+        while( j >= 0 ) {
+            if( i >= 0 && values[i] > other.values[j] )
+                values[k--] = values[i--];
+            else
+                values[k--] = other.values[j--];
+        }
+        size += other.size;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+} // end of IntList class
@@ -0,0 +1,444 @@
+package drawingapplication;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// LayerRenderer draws the committed shapes of a DrawPanel into an off-screen layer on a
+// thread of its own, so a drawing that takes seconds to render never holds up the EDT.
+// The panel hands it jobs: an immutable snapshot of the shapes, the view and size to
+// show them in, the lowest shape index added or removed since the job before and the
+// shapes below it that were moved in place. The renderer keeps its own index and density
+// layer over the snapshots and draws each job into one of two layer images, starting
+// from a copy of the last frame it finished so only what changed has to be drawn again.
+//
+// Finished frames are published through an atomic reference. The EDT takes the newest
+// one and hands back the image it showed until then, so neither thread ever holds a
+// lock the other waits for; the render thread only waits for an image when the EDT has
+// not taken its last frame yet. Until submit starts the thread, render can be called
+// straight from the EDT instead, and then draws each job into the same image in place.
+//
+// A renderer keeps two panel-sized images and an index over its drawing, which for a
+// hidden layer is memory held for nothing. evict drops all of it, and the next job
+// rebuilds it from the job's snapshot as if it were the first.
+class LayerRenderer {
+
+    // most shapes drawn one by one into the layer, beyond this a view zoomed out far enough
+    // shows the density layer instead
+    static final int DETAIL_BUDGET = 4_000;
+    private static final int IMAGES = 2; // layer images in use at a time
+
+    private final Consumer<Rectangle> frameListener; // told which panel pixels a published frame changed
+    private final ShapeStore store; // the drawing of the last job, synced from its snapshot
+    private final SpatialGrid shapeIndex; // finds the shapes inside a damaged region
+    private final DensityLayer densityLayer; // coarse summary of the shapes for far zoomed out views
+    private final ShapeBatcher batcher; // draws shapes grouped by stroke and paint
+    private final IntList visibleShapes; // scratch list for index queries
+    private final Rectangle bounds; // scratch rectangle for shape bounds
+    private final Rectangle pixels; // scratch rectangle for panel pixels
+    private Frame latest; // the last frame drawn, null before the first
+
+    private final AtomicReference<Job> pendingJob; // the newest job not started yet
+    private final AtomicReference<Frame> readyFrame; // the newest frame the EDT has not taken yet
+    private final AtomicReference<BufferedImage> spareImage; // an image the EDT stopped showing
+    private BufferedImage ownImage; // an image the render thread got back without it being shown
+    private int images; // layer images made, not counting ones replaced after a resize
+    private volatile Thread thread; // the render thread, null until the first submit
+    private volatile boolean evictPending; // the render thread drops its caches before the next job
+    private volatile boolean closed; // the render thread stops
+
+    public LayerRenderer(Consumer<Rectangle> frameListener) {
+        this.frameListener = frameListener;
+        store = new ShapeStore();
+        shapeIndex = new SpatialGrid(store);
+        densityLayer = new DensityLayer(store);
+        batcher = new ShapeBatcher(store);
+        visibleShapes = new IntList();
+        bounds = new Rectangle();
+        pixels = new Rectangle();
+        pendingJob = new AtomicReference<>();
+        readyFrame = new AtomicReference<>();
+        spareImage = new AtomicReference<>();
+    }
+
+    // Hands a job to the render thread, starting it the first time. A job the thread has
+    // not started yet is replaced, with its changes folded into the new one.
+    public void submit(Job job) {
+        Job older;
+        Job merged;
+        do {
+            older = pendingJob.get();
+            merged = older == null ? job : job.after(older);
+        } while( !pendingJob.compareAndSet(older, merged) );
+
+        if( thread == null ) {
+            thread = new Thread(this::run, "Layer renderer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    // True once submit has handed the drawing to the render thread
+    public boolean isStarted() {
+        return thread != null;
+    }
+
+    // Returns the newest published frame, or shown if there is none newer. A newer frame
+    // takes the place of shown, whose image goes back to the render thread, so the
+    // caller must not use shown afterwards. Called on the EDT.
+    public Frame takeFrame(Frame shown) {
+        Frame next = readyFrame.getAndSet(null);
+        if( next == null )
+            return shown;
+        if( shown != null && shown.image != next.image ) {
+            spareImage.set(shown.image);
+            LockSupport.unpark(thread);
+        }
+        return next;
+    }
+
+    // Drops the images, the index and the density layer, so a layer that is not shown
+    // holds no more than its shapes. Frames already taken stay valid, but the caller
+    // must not hand their images back. Called on the EDT.
+    public void evict() {
+        if( thread == null ) {
+            dropCaches();
+            return;
+        }
+        evictPending = true;
+        LockSupport.unpark(thread);
+    }
+
+    // Stops the render thread for good, once the layer it draws is gone. Called on the EDT.
+    public void close() {
+        closed = true;
+        if( thread != null )
+            LockSupport.unpark(thread);
+    }
+
+    private void dropCaches() {
+        store.clear(); // the next job finds no shapes to keep, so it indexes and draws them all
+        shapeIndex.clear();
+        densityLayer.clear();
+        latest = null;
+        ownImage = null;
+        spareImage.set(null);
+        readyFrame.set(null);
+        images = 0;
+    }
+
+    // Renders jobs as they come, publishing every finished frame
+    private void run() {
+        while( !closed ) {
+            if( evictPending ) {
+                evictPending = false;
+                dropCaches();
+            }
+            Job job = pendingJob.getAndSet(null);
+            if( job == null ) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            Frame frame = render(job);
+            Frame unshown = readyFrame.getAndSet(frame);
+            if( unshown != null )
+                ownImage = unshown.image; // the EDT never took it, so it is free again
+            frameListener.accept(frame.changed);
+        }
+    } // end of run
+
+    // Draws a job into a layer image and returns the finished frame. Called on the render
+    // thread, or on the EDT before the thread is started.
+    public Frame render(Job job) {
+        int width = job.width;
+        int height = job.height;
+        Viewport view = job.view;
+        Rectangle layerArea = new Rectangle(0, 0, width, height);
+        BufferedImage image = acquireImage(width, height);
+
+        // bring the index and the density layer up to the job's drawing: the shapes from
+        // the first changed one on are taken out, last first, and the job's shapes put in.
+        // Shapes moved in place below that are taken out where they were and put back
+        // where they are now.
+        int first = Math.min(job.firstChanged, store.size());
+        IntList moved = new IntList(); // the moved shapes below first
+        for( int i = 0; first > 0 && i < job.moved.length && job.moved[i] < first; i++ )
+            moved.add(job.moved[i]);
+        Rectangle removed = null; // drawing area of the shapes taken out or moved
+        if( first == 0 ) {
+            shapeIndex.clear();
+            densityLayer.clear();
+        }
+        else {
+            for( int i = store.size() - 1; i >= first; i-- ) {
+                store.getBounds(i, bounds);
+                removed = include(removed, bounds);
+                shapeIndex.removeLast(i);
+                densityLayer.removeLast(i);
+            }
+            for( int i = 0; i < moved.size(); i++ ) {
+                store.getBounds(moved.get(i), bounds);
+                removed = include(removed, bounds);
+                densityLayer.remove(moved.get(i));
+            }
+            shapeIndex.remove(moved);
+        }
+        store.sync(job.shapes);
+        for( int i = 0; i < moved.size(); i++ ) {
+            store.getBounds(moved.get(i), bounds);
+            removed = include(removed, bounds);
+            densityLayer.add(moved.get(i));
+        }
+        shapeIndex.insert(moved);
+        for( int i = first; i < store.size(); i++ ) {
+            shapeIndex.add(i);
+            densityLayer.add(i);
+        }
+
+        Rectangle viewArea = new Rectangle(); // the part of the drawing the panel shows
+        view.toDrawing(layerArea, viewArea);
+        boolean coarse = view.getScale() <= DensityLayer.MAX_SCALE
+                && densityLayer.count(viewArea) > DETAIL_BUDGET;
+
+        // the last frame is reused, moved along if the view was panned, unless the size,
+        // the scale, the kind of layer or every shape changed, or the job asks for a redraw
+        int layerShapeCount = latest == null ? 0 : Math.min(latest.shapeCount, first); // shapes it shows still there
+        int dx = 0;
+        int dy = 0;
+        boolean full = latest == null || job.redraw || first == 0 || latest.width != width || latest.height != height
+                || latest.view.getScale() != view.getScale() || latest.coarse != coarse;
+        if( !full ) {
+            dx = (int) Math.round((latest.view.getOriginX() - view.getOriginX()) * view.getScale());
+            dy = (int) Math.round((latest.view.getOriginY() - view.getOriginY()) * view.getScale());
+            full = Math.abs(dx) >= width || Math.abs(dy) >= height;
+        }
+
+        Graphics2D layerGraphics = image.createGraphics();
+        Rectangle damage = new Rectangle(); // part of the layer to wipe and draw again
+        if( full ) {
+            damage.setBounds(layerArea);
+        }
+        else {
+            layerGraphics.setComposite(AlphaComposite.Src); // move the pixels, not blend them
+            if( image != latest.image )
+                layerGraphics.drawImage(latest.image, dx, dy, null);
+            else if( dx != 0 || dy != 0 )
+                layerGraphics.copyArea(0, 0, width, height, dx, dy);
+            layerGraphics.setComposite(AlphaComposite.SrcOver);
+
+            if( dx != 0 )
+                addDamage(damage, new Rectangle(dx > 0 ? 0 : width + dx, 0, Math.abs(dx), height));
+            if( dy != 0 )
+                addDamage(damage, new Rectangle(0, dy > 0 ? 0 : height + dy, width, Math.abs(dy)));
+            if( removed != null ) {
+                if( coarse )
+                    densityLayer.getCellPixels(removed, view, pixels);
+                else
+                    view.toPixels(removed, pixels);
+                addDamage(damage, pixels);
+            }
+        }
+
+        // the density layer already counts the new shapes, only their cells need redrawing
+        if( coarse ) {
+            for( int i = layerShapeCount; i < store.size() && !full; i++ ) {
+                store.getBounds(i, bounds);
+                densityLayer.getCellPixels(bounds, view, pixels);
+                addDamage(damage, pixels);
+            }
+            layerShapeCount = store.size();
+        }
+
+        // wipe the damaged region to transparent and redraw only the shapes crossing it
+        batcher.setScale(view.getScale());
+        long shapesBefore = batcher.getShapeCount();
+        damage = damage.intersection(layerArea);
+        if( !damage.isEmpty() ) {
+            layerGraphics.setClip(damage);
+            layerGraphics.setComposite(AlphaComposite.Clear);
+            layerGraphics.fillRect(damage.x, damage.y, damage.width, damage.height);
+            layerGraphics.setComposite(AlphaComposite.SrcOver);
+
+            if( coarse ) {
+                densityLayer.draw(layerGraphics, view, damage);
+            }
+            else {
+                Rectangle damagedArea = new Rectangle();
+                view.toDrawing(damage, damagedArea);
+                shapeIndex.query(damagedArea, visibleShapes);
+                for( int i = 0; i < visibleShapes.size() && visibleShapes.get(i) < layerShapeCount; i++ ) {
+                    batcher.add(visibleShapes.get(i));
+                }
+                Graphics2D viewGraphics = (Graphics2D) layerGraphics.create();
+                view.applyTo(viewGraphics);
+                batcher.draw(viewGraphics);
+                viewGraphics.dispose();
+            }
+            layerGraphics.setClip(null);
+        }
+
+        // then the shapes added since the last frame go on top
+        Rectangle changed = full || dx != 0 || dy != 0 ? layerArea : damage;
+        for( int i = layerShapeCount; i < store.size(); i++ ) {
+            store.getBounds(i, bounds);
+            if( bounds.intersects(viewArea) ) {
+                batcher.add(i);
+                if( changed != layerArea ) {
+                    view.toPixels(bounds, pixels);
+                    addDamage(changed, pixels.intersection(layerArea));
+                }
+            }
+        }
+        view.applyTo(layerGraphics);
+        batcher.draw(layerGraphics);
+        layerGraphics.dispose();
+
+        latest = new Frame(image, view, width, height, store.size(), job.removals, coarse,
+                (int) (batcher.getShapeCount() - shapesBefore), changed);
+        return latest;
+    } // end of render
+
+    // Returns an image of the given size to draw the next frame in. Before the render
+    // thread is started that is the last frame's image; on the thread it is one the EDT
+    // is not showing, waiting for the EDT to hand one back if both are in use.
+    private BufferedImage acquireImage(int width, int height) {
+        BufferedImage image;
+        if( thread == null && latest != null ) {
+            image = latest.image;
+        }
+        else {
+            image = ownImage;
+            ownImage = null;
+            if( image == null )
+                image = spareImage.getAndSet(null);
+            if( image == null && images < IMAGES ) {
+                images++;
+                image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            while( image == null ) {
+                LockSupport.park(this);
+                image = spareImage.getAndSet(null);
+                if( image == null && (evictPending || closed) ) {
+                    // the EDT dropped the frame it was showing instead of handing it back
+                    evictPending = false;
+                    dropCaches();
+                    images++;
+                    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                }
+            }
+        }
+
+        // the panel was resized, so the old image no longer fits
+        if( image.getWidth() != width || image.getHeight() != height )
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        return image;
+    } // end of acquireImage
+
+    // Returns area grown to cover bounds as well, or a copy of bounds if area is null
+    private static Rectangle include(Rectangle area, Rectangle bounds) {
+        if( area == null )
+            return new Rectangle(bounds);
+        area.add(bounds);
+        return area;
+    }
+
+    // Grows damage to cover region as well
+    private static void addDamage(Rectangle damage, Rectangle region) {
+        if( damage.isEmpty() )
+            damage.setBounds(region);
+        else
+            damage.add(region);
+    }
+
+
+    // Job is what the layer should show: the panel's drawing and view when it was made
+    static final class Job {
+
+        final ShapeStore shapes; // a copy of the panel's shapes, nothing changes it
+        final Viewport view;
+        final int width; // size of the layer in panel pixels
+        final int height;
+        final int firstChanged; // lowest index of a shape added or removed since the job before
+        final int[] moved; // ascending indexes of the shapes moved in place since the job before
+        final long removals; // the panel's count of edits that took shapes out, passed on to the frame
+        final boolean redraw; // draw the whole layer again even if nothing changed
+
+        public Job(ShapeStore shapes, Viewport view, int width, int height, int firstChanged, int[] moved,
+                long removals, boolean redraw) {
+            this.shapes = shapes;
+            this.view = view;
+            this.width = width;
+            this.height = height;
+            this.firstChanged = firstChanged;
+            this.moved = moved;
+            this.removals = removals;
+            this.redraw = redraw;
+        }
+
+        // Returns this job with the changes of an older one that was never started
+        Job after(Job older) {
+            return new Job(shapes, view, width, height, Math.min(firstChanged, older.firstChanged),
+                    union(moved, older.moved), removals, redraw || older.redraw);
+        }
+
+        // Returns the ascending indexes found in either of two ascending arrays
+        static int[] union(int[] a, int[] b) {
+            if( a.length == 0 )
+                return b;
+            if( b.length == 0 )
+                return a;
+            int[] result = new int[a.length + b.length];
+            int i = 0;
+            int j = 0;
+            int count = 0;
+            while( i < a.length || j < b.length ) {
+                if( j == b.length || (i < a.length && a[i] < b[j]) )
+                    result[count++] = a[i++];
+                else if( i == a.length || b[j] < a[i] )
+                    result[count++] = b[j++];
+                else {
+                    result[count++] = a[i++];
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+    } // end of inner class Job
+
+
+    // Frame is a finished layer. Once published nothing draws into its image until the
+    // EDT hands the image back.
+    static final class Frame {
+
+        final BufferedImage image;
+        final Viewport view; // the view the shapes were drawn for
+        final int width;
+        final int height;
+        final int shapeCount; // the frame shows the job's shapes below this index
+        final long removals; // the job's count of edits that took shapes out
+        final boolean coarse; // the image shows the density layer instead of the shapes
+        final int shapesDrawn; // shapes drawn for this frame, the rest came from the last one
+        final Rectangle changed; // panel pixels that differ from the last frame
+
+        Frame(BufferedImage image, Viewport view, int width, int height, int shapeCount, long removals,
+                boolean coarse, int shapesDrawn, Rectangle changed) {
+            this.image = image;
+            this.view = view;
+            this.width = width;
+            this.height = height;
+            this.shapeCount = shapeCount;
+            this.removals = removals;
+            this.coarse = coarse;
+            this.shapesDrawn = shapesDrawn;
+            this.changed = changed;
+        }
+    } // end of inner class Frame
+
+} // end of LayerRenderer class
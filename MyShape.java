@@ -1,19 +1,26 @@
-
 package drawingapplication;
 
 import java.awt.Color;
+import java.awt.GradientPaint;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Stroke;
 import java.awt.Paint;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 
 public abstract class MyShape {
     
     protected Paint shapeColor; // color of the shape being drawn
     protected Stroke myStroke;
-    protected Point point1; // first point that makes up the shape
-    protected Point point2; // second point that makes up the shape
+    private Point point1; // first point that makes up the shape
+    private Point point2; // second point that makes up the shape
+    // geometry computed from the points. Only the thread drawing the shape out may change
+    // it, in place or by replacing it, and only until the shape is handed over to the
+    // drawing's other threads; the hand-over publishes it, so the field is not volatile.
+    protected ShapeBounds bounds;
     
     
     public MyShape() {
@@ -21,6 +28,7 @@ public abstract class MyShape {
         point1 = new Point(0,0);
         point2 = new Point(0,0);
         myStroke = new BasicStroke();
+        bounds = new ShapeBounds(point1, point2, myStroke);
     }
     
     public MyShape( Paint color, Stroke newStroke, int x1, int y1, int x2, int y2 ) {
@@ -28,6 +36,7 @@ public abstract class MyShape {
         myStroke = newStroke;
         point1 = new Point(x1,y1);
         point2 = new Point(x2,y2);
+        bounds = new ShapeBounds(point1, point2, myStroke);
     }
 
     public Paint getShapeColor() {
@@ -38,35 +47,153 @@ public abstract class MyShape {
         shapeColor = newShapeColor;
     }
 
+    // The points are copied in and out so the cached bounds can not go stale behind
+    // the shape's back
     public Point getPoint1() {
-        return point1;
+        return new Point(point1);
     }
 
     public void setPoint1(Point point1) {
-        this.point1 = point1;
+        this.point1 = new Point(point1);
+        bounds = new ShapeBounds(this.point1, point2, myStroke);
     }
 
 
     public Point getPoint2() {
-        return point2;
+        return new Point(point2);
     }
 
     public void setPoint2(Point point2) {
-        this.point2 = point2;
+        this.point2 = new Point(point2);
+        bounds = new ShapeBounds(point1, this.point2, myStroke);
+    }
+    
+    // Moves the second point without allocating, for the drag path. The bounds are
+    // updated in place, so this is only for a shape still being drawn out, which no other
+    // thread sees until it is finished.
+    public void setPoint2(int x, int y) {
+        point2.setLocation(x, y);
+        bounds.setSecondPoint(x, y);
+    }
+    
+    // Moves both points by dx and dy and rebuilds the bounds from them, for the shapes
+    // whose geometry is more than the two points
+    protected void translatePoints(int dx, int dy) {
+        point1 = new Point(point1.x + dx, point1.y + dy);
+        point2 = new Point(point2.x + dx, point2.y + dy);
+        bounds = new ShapeBounds(point1, point2, myStroke);
     }
     
+    // Returns the precomputed geometry of the shape
+    public ShapeBounds getBounds() {
+        return bounds;
+    }
+    
+    // Returns how far a stroke can reach past the geometry it outlines. The extra pixel
+    // covers the right and bottom edges drawRect and drawOval paint at x + width, y + height
+    static int strokePadding(Stroke stroke) {
+        if( stroke instanceof BasicStroke )
+            return (int) Math.ceil(((BasicStroke) stroke).getLineWidth()) + 1;
+        return stroke.createStrokedShape(new Rectangle()).getBounds().width + 1;
+    }
+    
+    // Returns the color a paint averages to over a large area, used where the shape is too
+    // small on screen for the paint's detail to show. A gradient averages its two colors.
+    static Color averageColor(Paint paint) {
+        if( paint instanceof Color )
+            return (Color) paint;
+        if( paint instanceof GradientPaint ) {
+            Color first = ((GradientPaint) paint).getColor1();
+            Color second = ((GradientPaint) paint).getColor2();
+            return new Color((first.getRed() + second.getRed()) / 2, (first.getGreen() + second.getGreen()) / 2,
+                    (first.getBlue() + second.getBlue()) / 2, (first.getAlpha() + second.getAlpha()) / 2);
+        }
+        return Color.GRAY;
+    }
+    
+    // Draws the shape. Implementations only read the cached bounds, so draw does not
+    // allocate or change the shape, and a finished shape may be drawn from several threads
+    // at once. A shape still being drawn out changes its bounds in place and is only drawn
+    // on the thread changing it.
     public abstract void draw( Graphics2D g );
     
 }
 
 
+// ShapeBounds is the geometry of a shape: its two points, the box the draw methods fill
+// or outline, and that box inflated by the stroke. It changes after construction only
+// while its shape is being drawn out, through MyShape.setPoint2(int, int) and
+// MyFreehand.addPoint, and is fixed from then on.
+final class ShapeBounds {
+    
+    final int x1, y1; // the first point the shape was built from
+    int x2, y2; // the second point, which moves while the shape is dragged out
+    int smallX; // the smaller x-value between point1 and point2
+    int smallY; // the smaller y-value between point1 and point2
+    int width;
+    int height;
+    final int padding; // how far the stroke reaches past the box
+    
+    ShapeBounds(Point point1, Point point2, Stroke stroke) {
+        x1 = point1.x;
+        y1 = point1.y;
+        x2 = point2.x;
+        y2 = point2.y;
+        smallX = Math.min(x1, x2);
+        smallY = Math.min(y1, y2);
+        width = Math.abs(x1 - x2);
+        height = Math.abs(y1 - y2);
+        padding = MyShape.strokePadding(stroke);
+    }
+    
+    void setSecondPoint(int x, int y) {
+        x2 = x;
+        y2 = y;
+        smallX = Math.min(x1, x2);
+        smallY = Math.min(y1, y2);
+        width = Math.abs(x1 - x2);
+        height = Math.abs(y1 - y2);
+    }
+    
+    // Grows the box to also cover the point, for shapes made of more than two points
+    void include(int x, int y) {
+        int right = Math.max(smallX + width, x);
+        int bottom = Math.max(smallY + height, y);
+        smallX = Math.min(smallX, x);
+        smallY = Math.min(smallY, y);
+        width = right - smallX;
+        height = bottom - smallY;
+    }
+    
+    // Returns true if the stroke-inflated box overlaps the rectangle
+    boolean intersects(Rectangle rectangle) {
+        return rectangle.intersects(smallX - padding, smallY - padding,
+                width + 2 * padding, height + 2 * padding);
+    }
+    
+    // Returns the stroke-inflated box as a new rectangle
+    Rectangle toRectangle() {
+        return toRectangle(new Rectangle());
+    }
+    
+    // Stores the stroke-inflated box in rectangle and returns it
+    Rectangle toRectangle(Rectangle rectangle) {
+        rectangle.setBounds(smallX - padding, smallY - padding,
+                width + 2 * padding, height + 2 * padding);
+        return rectangle;
+    }
+    
+    // Grows rectangle to also cover the stroke-inflated box
+    void addTo(Rectangle rectangle) {
+        rectangle.add(smallX - padding, smallY - padding);
+        rectangle.add(smallX + width + padding, smallY + height + padding);
+    }
+}
+
+
 abstract class MyBoundedShape extends MyShape {
     
     protected Boolean filled;
-    protected int width; 
-    protected int height; 
-    protected int smallX; // the smaller x-value between point1 and point2
-    protected int smallY; // the smaller y-value between point1 and point2
     
     public MyBoundedShape() {
         super(); // call to MyShape's (superclass) constructor
@@ -94,10 +221,11 @@ class MyLine extends MyShape {
     
     @Override
     public void draw(Graphics2D g) {
+        ShapeBounds b = bounds; // the points and box are precomputed
         g.setStroke(myStroke); // first set the stroke type
         g.setPaint(shapeColor); // and set the color
         // then draw the line connectng points 1 and 2
-        g.drawLine(point1.x, point1.y, point2.x, point2.y);
+        g.drawLine(b.x1, b.y1, b.x2, b.y2);
     }
 }
 
@@ -118,27 +246,16 @@ class MyRectangle extends MyBoundedShape {
     @Override
     public void draw(Graphics2D g) {
         
-        width = Math.abs(point1.x-point2.x);
-        height = Math.abs(point1.y-point2.y);
-        
-        if( point1.x < point2.x )
-            smallX = point1.x;
-        else
-            smallX = point2.x;
-        
-        if( point1.y < point2.y )
-            smallY = point1.y;
-        else
-            smallY = point2.y;
+        ShapeBounds b = bounds; // width, height, smallX and smallY are precomputed
         
         g.setStroke(myStroke); // set the stroke type
         g.setPaint(shapeColor); // and the color of the shape
         
         // then draw either a filled shape or empty shape depending on filled boolean
         if( !filled )
-            g.drawRect(smallX, smallY, width, height);
+            g.drawRect(b.smallX, b.smallY, b.width, b.height);
         else
-            g.fillRect(smallX, smallY, width, height);
+            g.fillRect(b.smallX, b.smallY, b.width, b.height);
     }
 }
 
@@ -159,26 +276,151 @@ class MyOval extends MyBoundedShape {
     @Override
     public void draw(Graphics2D g) {
         
-        width = Math.abs(point1.x-point2.x);
-        height = Math.abs(point1.y-point2.y);
-        
-        if( point1.x < point2.x )
-            smallX = point1.x;
-        else
-            smallX = point2.x;
-        
-        if( point1.y < point2.y )
-            smallY = point1.y;
-        else
-            smallY = point2.y;
+        ShapeBounds b = bounds; // width, height, smallX and smallY are precomputed
         
         g.setStroke(myStroke);
         g.setPaint(shapeColor);
         
         if( !filled )
-            g.drawOval(smallX, smallY, width, height);
+            g.drawOval(b.smallX, b.smallY, b.width, b.height);
         else
-            g.fillOval(smallX, smallY, width, height);
+            g.fillOval(b.smallX, b.smallY, b.width, b.height);
+        
+    }
+}
+
+
+
+
+
+// MyFreehand is a pen stroke. The samples it is given are thinned as they arrive by a
+// PolylineSimplifier, so only the vertices are kept, packed into an IntList, and drawn as
+// one Path2D that grows a segment at a time instead of being rebuilt for every frame.
+class MyFreehand extends MyShape {
+    
+    private final IntList vertices; // x and y of each vertex of the simplified stroke
+    private final Path2D.Float path; // the vertices as a path, extended as vertices are fixed
+    private final PolylineSimplifier simplifier; // null for a stroke built finished from its points
+    private int penX, penY; // the latest sample, the end of the stroke while it is drawn
+    
+    // Starts a stroke at the given point. Samples closer than tolerance to the drawn
+    // polyline may be dropped.
+    public MyFreehand(Paint color, Stroke newStroke, int x, int y, double tolerance) {
+        super(color, newStroke, x, y, x, y);
+        vertices = new IntList(64);
+        simplifier = new PolylineSimplifier(tolerance, vertices, x, y);
+        path = new Path2D.Float();
+        path.moveTo(x, y);
+        penX = x;
+        penY = y;
+    }
+    
+    // Creates a finished stroke through the given x and y pairs
+    public MyFreehand(Paint color, Stroke newStroke, int[] points) {
+        super(color, newStroke, points[0], points[1], points[0], points[1]);
+        vertices = new IntList(points.length);
+        for( int i = 0; i < points.length; i += 2 ) {
+            vertices.add(points[i]);
+            vertices.add(points[i + 1]);
+            bounds.include(points[i], points[i + 1]);
+        }
+        simplifier = null;
+        path = toPath(points, points.length);
+        penX = points[points.length - 2];
+        penY = points[points.length - 1];
+    }
+    
+    // Adds the next sample of the stroke and grows changed, unless it is null, to cover the
+    // part of the drawing that has to be repainted for it, which is only the stroke's last
+    // segments. A stroke built finished from its points can not be extended.
+    public void addPoint(int x, int y, Rectangle changed) {
+        if( simplifier == null )
+            throw new IllegalStateException("a finished stroke can not be extended");
+        if( changed != null ) {
+            int padding = bounds.padding;
+            addPadded(changed, vertices.get(vertices.size() - 2), vertices.get(vertices.size() - 1), padding);
+            addPadded(changed, penX, penY, padding);
+            addPadded(changed, x, y, padding);
+        }
+        
+        if( simplifier.add(x, y) )
+            path.lineTo(penX, penY); // the previous sample became a vertex
+        penX = x;
+        penY = y;
+        bounds.include(x, y);
+    }
+    
+    private static void addPadded(Rectangle rectangle, int x, int y, int padding) {
+        rectangle.add(x - padding, y - padding);
+        rectangle.add(x + padding, y + padding);
+    }
+    
+    // Dragging a freehand stroke extends it rather than moving its end, which a finished
+    // stroke does not support
+    @Override
+    public void setPoint2(int x, int y) {
+        addPoint(x, y, null);
+    }
+    
+    @Override
+    public void setPoint2(Point point2) {
+        setPoint2(point2.x, point2.y);
+    }
+    
+    // Moving the first point moves the whole stroke with it
+    @Override
+    public void setPoint1(Point point1) {
+        Point start = getPoint1();
+        int dx = point1.x - start.x;
+        int dy = point1.y - start.y;
+        translatePoints(dx, dy);
+        for( int i = 0; i < vertices.size(); i += 2 ) {
+            vertices.set(i, vertices.get(i) + dx);
+            vertices.set(i + 1, vertices.get(i + 1) + dy);
+            bounds.include(vertices.get(i), vertices.get(i + 1));
+        }
+        penX += dx;
+        penY += dy;
+        bounds.include(penX, penY);
+        path.transform(AffineTransform.getTranslateInstance(dx, dy));
+        if( simplifier != null )
+            simplifier.translate(dx, dy);
+    }
+    
+    // Returns the x and y pairs of the stroke as it is drawn, its vertices and then the
+    // latest sample. There are always at least two points, a dot repeats its one point.
+    public int[] getPoints() {
+        int size = vertices.size();
+        boolean open = size == 2 || penX != vertices.get(size - 2) || penY != vertices.get(size - 1);
+        int[] points = new int[open ? size + 2 : size];
+        for( int i = 0; i < size; i++ )
+            points[i] = vertices.get(i);
+        if( open ) {
+            points[size] = penX;
+            points[size + 1] = penY;
+        }
+        return points;
+    }
+    
+    // Returns the first count ints of points, x and y pairs, as a path through them
+    static Path2D.Float toPath(int[] points, int count) {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, count / 2);
+        path.moveTo(points[0], points[1]);
+        for( int i = 2; i < count; i += 2 )
+            path.lineTo(points[i], points[i + 1]);
+        return path;
+    }
+    
+    @Override
+    public void draw(Graphics2D g) {
+        g.setStroke(myStroke);
+        g.setPaint(shapeColor);
+        g.draw(path);
         
+        // the samples since the last vertex, or a dot for a stroke that never moved
+        int lastX = vertices.get(vertices.size() - 2);
+        int lastY = vertices.get(vertices.size() - 1);
+        if( penX != lastX || penY != lastY || (bounds.width == 0 && bounds.height == 0) )
+            g.drawLine(lastX, lastY, penX, penY);
     }
 }
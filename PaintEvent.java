@@ -0,0 +1,41 @@
+package drawingapplication;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// PaintEvent is a Java Flight Recorder event for one DrawPanel paint. DrawPanel only
+// creates them in the JFR mode of RenderMetrics, and they cost next to nothing unless a
+// recording has the event enabled.
+@Name("drawingapplication.Paint")
+@Label("Paint")
+@Category("Drawing Application")
+@Description("One paint of the drawing pad")
+@StackTrace(false)
+class PaintEvent extends jdk.jfr.Event {
+
+    @Label("Shapes Drawn")
+    @Description("Shapes rasterized into the committed layer by this paint")
+    int shapesDrawn;
+
+    @Label("Shapes Culled")
+    @Description("Shapes in the drawing this paint did not rasterize")
+    int shapesCulled;
+
+    @Label("Density")
+    @Description("The layer showed the density summary instead of the shapes")
+    boolean density;
+
+    @Label("Scale")
+    @Description("Panel pixels per drawing unit")
+    double scale;
+
+    @Label("Input Latency")
+    @Description("Time from the input this paint shows to the end of the paint, 0 if none")
+    @Timespan(Timespan.NANOSECONDS)
+    long inputLatency;
+
+} // end of PaintEvent class
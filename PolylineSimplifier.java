@@ -0,0 +1,119 @@
+package drawingapplication;
+
+// PolylineSimplifier thins a stream of points, such as the samples of a pen stroke, down
+// to the vertices of a polyline that passes within a tolerance of every point. It decides
+// as each point arrives, in constant time and without keeping the points it drops, so a
+// long stroke costs memory for its vertices only.
+//
+// Douglas-Peucker needs the whole stroke up front, so this uses cone intersection
+// instead. Every point farther than the tolerance from the last vertex allows only the
+// directions from that vertex which pass close enough to it, a cone of
+// +-asin(reach / distance) around the point's own direction. While the cones of all
+// points since the vertex still overlap, one segment can stand for all of them; the first
+// point whose direction falls outside the overlap makes the point before it a vertex.
+// The latest point always ends a valid segment, so the caller closes the polyline with it.
+// The segment ends at that vertex, so a point may also lie past its end, which is limited
+// by breaking when the stroke turns back. Each limit gets a reach of tolerance / sqrt(2),
+// so together they keep every point within the tolerance.
+class PolylineSimplifier {
+
+    private final double tolerance;
+    private final double reach; // tolerance / sqrt(2), both for a cone and for turning back
+    private final IntList vertices; // x and y of each vertex, the output
+    private int anchorX; // the last vertex, the cone starts there
+    private int anchorY;
+    private int lastX; // the latest point, the next vertex when the cone breaks
+    private int lastY;
+    private boolean coneOpen; // a point beyond the tolerance has set the cone since the vertex
+    private double reference; // direction of that first point, the cone's limits are relative to it
+    private double low; // the cone's limits, in radians from reference
+    private double high;
+    private double farthest; // greatest distance from the vertex of a point beyond the tolerance
+
+
+    // Starts a polyline at the given point, writing its vertices to vertices
+    public PolylineSimplifier(double tolerance, IntList vertices, int x, int y) {
+        this.tolerance = tolerance;
+        reach = tolerance / Math.sqrt(2);
+        this.vertices = vertices;
+        vertices.add(x);
+        vertices.add(y);
+        anchorX = lastX = x;
+        anchorY = lastY = y;
+    }
+
+    // Takes the next point of the stroke and returns true if it made the point before it
+    // a vertex
+    public boolean add(int x, int y) {
+        double distance = Math.hypot(x - anchorX, y - anchorY);
+
+        // a point that turns back towards the vertex too far would leave the farthest
+        // point past the end of the segment, one outside the cone too far from its side.
+        // A point within the tolerance of the vertex is near any segment from it and sets
+        // no cone, but still has to lie in the cone to end the segment itself.
+        boolean breaks = distance < farthest - reach;
+        if( !breaks && distance > tolerance ) {
+            double direction = Math.atan2(y - anchorY, x - anchorX);
+            double spread = Math.asin(reach / distance);
+            if( !coneOpen ) {
+                reference = direction;
+                low = -spread;
+                high = spread;
+                coneOpen = true;
+            }
+            else {
+                double offset = normalize(direction - reference);
+                breaks = offset < low || offset > high;
+                if( !breaks ) {
+                    low = Math.max(low, offset - spread);
+                    high = Math.min(high, offset + spread);
+                }
+            }
+        }
+        else if( !breaks && coneOpen ) {
+            double offset = normalize(Math.atan2(y - anchorY, x - anchorX) - reference);
+            breaks = offset < low || offset > high;
+        }
+
+        if( breaks ) {
+            addVertex(lastX, lastY);
+            lastX = x;
+            lastY = y;
+            add(x, y); // opens the cone of the new vertex
+            return true;
+        }
+        if( distance > tolerance )
+            farthest = Math.max(farthest, distance);
+        lastX = x;
+        lastY = y;
+        return false;
+    } // end of add
+
+    // Moves the points taken so far by dx and dy, once the vertices written for them have
+    // been moved the same way. The cone is relative to the vertex and stays as it is.
+    public void translate(int dx, int dy) {
+        anchorX += dx;
+        anchorY += dy;
+        lastX += dx;
+        lastY += dy;
+    }
+
+    private void addVertex(int x, int y) {
+        vertices.add(x);
+        vertices.add(y);
+        anchorX = x;
+        anchorY = y;
+        coneOpen = false;
+        farthest = 0;
+    }
+
+    // Brings an angle difference into -pi..pi
+    private static double normalize(double angle) {
+        if( angle > Math.PI )
+            return angle - 2 * Math.PI;
+        if( angle < -Math.PI )
+            return angle + 2 * Math.PI;
+        return angle;
+    }
+
+} // end of PolylineSimplifier class
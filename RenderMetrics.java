@@ -0,0 +1,326 @@
+package drawingapplication;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// RenderMetrics measures the hot paths of a DrawPanel: how long paints take, how many
+// shapes each paint draws and leaves out, how fast input arrives and how much of it the
+// frame scheduler and Swing's repaint manager fold together, how long the EDT takes to
+// get to queued work, and the heap per shape. It is exposed through JMX, can emit a
+// PaintEvent per paint to Java Flight Recorder, and feeds the panel's debug overlay.
+//
+// Everything is recorded on the EDT; JMX reads from its own threads and may see slightly
+// stale numbers. While nothing is switched on the panel reads one volatile flag per
+// paint or event and does nothing else. The system properties drawing.metrics and
+// drawing.jfr switch collecting and the JFR events on at startup.
+class RenderMetrics implements RenderMetricsMBean {
+
+    static final String OBJECT_NAME = "drawingapplication:type=RenderMetrics";
+    private static final long EDT_PROBE_INTERVAL = 100; // milliseconds between EDT latency probes
+
+    private final IntSupplier shapeCount; // number of shapes in the drawing
+    private volatile boolean enabled;
+    private volatile boolean jfrEvents;
+    private volatile boolean overlayVisible;
+    private volatile boolean active; // any of the three, the one flag the hot paths check
+    private Runnable overlayListener; // run on the EDT when the overlay is switched
+    private ScheduledExecutorService edtProbe; // posts timed tasks to the EDT while collecting
+
+    private final Histogram paintTimes;
+    private final Histogram edtLatencies; // from posting a task to the EDT until it runs
+    private int lastShapesDrawn;
+    private int lastShapesCulled;
+    private long shapesDrawn; // totals over every measured paint
+    private long shapesCulled;
+    private long inputEvents;
+    private long windowStart; // System.nanoTime() the current input rate window began
+    private long windowEvents; // input events in the current window
+    private double inputRate; // events per second in the last full window
+    private long motionEvents; // drags and moves, which the frame scheduler coalesces
+    private long motionFrames;
+    private long repaintRequests;
+
+    public RenderMetrics(IntSupplier shapeCount) {
+        this.shapeCount = shapeCount;
+        paintTimes = new Histogram();
+        edtLatencies = new Histogram();
+        setEnabled(Boolean.getBoolean("drawing.metrics"));
+        setJfrEvents(Boolean.getBoolean("drawing.jfr"));
+    }
+
+    // Registers the metrics with the platform MBean server
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    // True if anything has to be measured, checked by the panel before measuring
+    public boolean isActive() {
+        return active;
+    }
+
+    // Sets what to run on the EDT when the overlay is shown or hidden
+    public void setOverlayListener(Runnable listener) {
+        overlayListener = listener;
+    }
+
+    // Called by the panel as a paint starts, returns the JFR event to finish or null
+    public PaintEvent paintStarted() {
+        if( !jfrEvents )
+            return null;
+        PaintEvent event = new PaintEvent();
+        event.begin();
+        return event;
+    }
+
+    // Called by the panel as a paint that started at paintStart ends
+    public void paintFinished(long paintStart, PaintEvent event, int drawn, int culled, boolean density,
+            double scale, long inputLatency) {
+        if( event != null ) {
+            event.end();
+            if( event.shouldCommit() ) {
+                event.shapesDrawn = drawn;
+                event.shapesCulled = culled;
+                event.density = density;
+                event.scale = scale;
+                event.inputLatency = inputLatency;
+                event.commit();
+            }
+        }
+        if( !enabled && !overlayVisible )
+            return;
+
+        paintTimes.record(System.nanoTime() - paintStart);
+        lastShapesDrawn = drawn;
+        lastShapesCulled = culled;
+        shapesDrawn += drawn;
+        shapesCulled += culled;
+    } // end of paintFinished
+
+    // Called by the panel for every mouse event it handles, motion is a drag or a move
+    public void inputReceived(long now, boolean motion) {
+        inputEvents++;
+        if( motion )
+            motionEvents++;
+        windowEvents++;
+        if( now - windowStart >= 1_000_000_000L ) {
+            inputRate = windowEvents * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowEvents = 0;
+        }
+    }
+
+    // Called by the panel when a frame applies coalesced motion
+    public void motionFrame() {
+        motionFrames++;
+    }
+
+    // Called by the panel for every repaint it asks Swing for
+    public void repaintRequested() {
+        repaintRequests++;
+    }
+
+    // The overlay's text, one line per entry
+    public String[] overlayLines() {
+        return new String[] {
+            String.format("paint  p50 %.2f  p99 %.2f  max %.2f ms  (%d)", getPaintP50Millis(),
+                    getPaintP99Millis(), getPaintMaxMillis(), getPaintCount()),
+            String.format("shapes drawn %d  culled %d", lastShapesDrawn, lastShapesCulled),
+            String.format("input  %.0f events/s  %.1f moves/frame  %.1f repaints/paint",
+                    getInputEventsPerSecond(), getMotionEventsPerFrame(), getRepaintRequestsPerPaint()),
+            String.format("EDT latency  mean %.2f  p99 %.2f ms", getEdtLatencyMeanMillis(), getEdtLatencyP99Millis()),
+            String.format("heap  %d bytes/shape  (%d shapes)", getHeapBytesPerShape(), getShapeCount())
+        };
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        update();
+    }
+
+    @Override
+    public boolean isJfrEvents() {
+        return jfrEvents;
+    }
+
+    @Override
+    public void setJfrEvents(boolean jfrEvents) {
+        this.jfrEvents = jfrEvents;
+        update();
+    }
+
+    @Override
+    public boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    @Override
+    public void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+        update();
+        if( overlayListener != null )
+            EventQueue.invokeLater(overlayListener);
+    }
+
+    @Override
+    public long getPaintCount() {
+        return paintTimes.getCount();
+    }
+
+    @Override
+    public double getPaintMeanMillis() {
+        return paintTimes.getMean() / 1e6;
+    }
+
+    @Override
+    public double getPaintP50Millis() {
+        return paintTimes.percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getPaintP90Millis() {
+        return paintTimes.percentile(0.9) / 1e6;
+    }
+
+    @Override
+    public double getPaintP99Millis() {
+        return paintTimes.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getPaintMaxMillis() {
+        return paintTimes.getMax() / 1e6;
+    }
+
+    @Override
+    public String getPaintHistogram() {
+        return paintTimes.describe();
+    }
+
+    @Override
+    public int getLastShapesDrawn() {
+        return lastShapesDrawn;
+    }
+
+    @Override
+    public int getLastShapesCulled() {
+        return lastShapesCulled;
+    }
+
+    @Override
+    public double getMeanShapesDrawn() {
+        long paints = paintTimes.getCount();
+        return paints == 0 ? 0 : (double) shapesDrawn / paints;
+    }
+
+    @Override
+    public double getMeanShapesCulled() {
+        long paints = paintTimes.getCount();
+        return paints == 0 ? 0 : (double) shapesCulled / paints;
+    }
+
+    @Override
+    public long getInputEventCount() {
+        return inputEvents;
+    }
+
+    // the rate of the last full second, or 0 once input has stopped for a while
+    @Override
+    public double getInputEventsPerSecond() {
+        return System.nanoTime() - windowStart > 2_000_000_000L ? 0 : inputRate;
+    }
+
+    @Override
+    public double getMotionEventsPerFrame() {
+        return motionFrames == 0 ? 0 : (double) motionEvents / motionFrames;
+    }
+
+    @Override
+    public double getRepaintRequestsPerPaint() {
+        long paints = paintTimes.getCount();
+        return paints == 0 ? 0 : (double) repaintRequests / paints;
+    }
+
+    @Override
+    public double getEdtLatencyMeanMillis() {
+        return edtLatencies.getMean() / 1e6;
+    }
+
+    @Override
+    public double getEdtLatencyP99Millis() {
+        return edtLatencies.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getEdtLatencyMaxMillis() {
+        return edtLatencies.getMax() / 1e6;
+    }
+
+    @Override
+    public int getShapeCount() {
+        return shapeCount.getAsInt();
+    }
+
+    // all of the heap in use divided by the shapes, so it includes whatever else is on the heap
+    @Override
+    public long getHeapBytesPerShape() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / Math.max(getShapeCount(), 1);
+    }
+
+    // Forgets everything measured so far, done on the EDT where the numbers are written
+    @Override
+    public void reset() {
+        EventQueue.invokeLater(() -> {
+            paintTimes.reset();
+            edtLatencies.reset();
+            lastShapesDrawn = 0;
+            lastShapesCulled = 0;
+            shapesDrawn = 0;
+            shapesCulled = 0;
+            inputEvents = 0;
+            windowEvents = 0;
+            inputRate = 0;
+            motionEvents = 0;
+            motionFrames = 0;
+            repaintRequests = 0;
+        });
+    }
+
+    // Recomputes the flag the hot paths check and starts or stops probing the EDT
+    private synchronized void update() {
+        active = enabled || jfrEvents || overlayVisible;
+        boolean collecting = enabled || overlayVisible;
+
+        if( collecting && edtProbe == null ) {
+            edtProbe = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "EDT latency probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            edtProbe.scheduleAtFixedRate(this::probeEdt, 0, EDT_PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        else if( !collecting && edtProbe != null ) {
+            edtProbe.shutdownNow();
+            edtProbe = null;
+        }
+    } // end of update
+
+    // Posts a task to the EDT that records how long it waited in the queue
+    private void probeEdt() {
+        long posted = System.nanoTime();
+        EventQueue.invokeLater(() -> edtLatencies.record(System.nanoTime() - posted));
+    }
+
+} // end of RenderMetrics class
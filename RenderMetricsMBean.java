@@ -0,0 +1,46 @@
+package drawingapplication;
+
+// RenderMetricsMBean is the JMX view of RenderMetrics, registered as
+// drawingapplication:type=RenderMetrics. Times are in milliseconds.
+public interface RenderMetricsMBean {
+
+    // collect the numbers below
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+
+    // emit a PaintEvent for every paint to Java Flight Recorder
+    boolean isJfrEvents();
+    void setJfrEvents(boolean jfrEvents);
+
+    // show the numbers on the drawing pad
+    boolean isOverlayVisible();
+    void setOverlayVisible(boolean visible);
+
+    long getPaintCount();
+    double getPaintMeanMillis();
+    double getPaintP50Millis();
+    double getPaintP90Millis();
+    double getPaintP99Millis();
+    double getPaintMaxMillis();
+    String getPaintHistogram();
+
+    int getLastShapesDrawn();
+    int getLastShapesCulled();
+    double getMeanShapesDrawn();
+    double getMeanShapesCulled();
+
+    long getInputEventCount();
+    double getInputEventsPerSecond();
+    double getMotionEventsPerFrame();
+    double getRepaintRequestsPerPaint();
+
+    double getEdtLatencyMeanMillis();
+    double getEdtLatencyP99Millis();
+    double getEdtLatencyMaxMillis();
+
+    int getShapeCount();
+    long getHeapBytesPerShape();
+
+    void reset();
+
+} // end of RenderMetricsMBean interface
@@ -0,0 +1,336 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+// ShapeBatcher draws shapes from a ShapeStore in batches that share a stroke and a paint,
+// so the Graphics2D state is set once per batch instead of once per shape. Shapes are
+// queued in drawing order; a shape joins the most recent batch with its style as long
+// as it does not overlap any batch queued after that one, so moving it earlier never
+// changes which shape ends up on top. Only the last WINDOW batches are searched.
+//
+// Lines in a batch with an opaque color and a wide solid stroke are merged into one
+// Path2D and drawn with a single call; overlapping parts of an opaque path look the
+// same whether they are painted once or twice.
+//
+// Below a scale of 1, set for a zoomed out view, the detail that no longer shows is
+// left out: a shape smaller than a pixel is drawn as a single pixel in the average color
+// of its paint, a dash pattern shorter than a pixel is drawn solid, and a gradient is
+// drawn in its average color on a shape only a few pixels wide, or when it is cyclic and
+// repeats within a few pixels.
+class ShapeBatcher {
+
+    private static final int WINDOW = 16; // batches searched back for a matching style
+    private static final int POINTS = -1; // stroke of a batch of shapes drawn as single pixels
+    private static final double MIN_GRADIENT_PIXELS = 4; // gradients shorter than this are averaged
+    private static final double MIN_GRADIENT_SHAPE_PIXELS = 8; // and so are gradients on shapes smaller than this
+    private static final int AVERAGED = 1 << 30; // flag on a batch's paint index, drawn in its average color
+    private static final AffineTransform PIXELS = new AffineTransform(); // draws in device pixels
+
+    private final ShapeStore shapes;
+    private final IntList queued; // store indexes in drawing order
+    private final IntList shapeBatch; // batch of each queued shape
+    private int batchCount;
+    private int[] batchStroke = new int[16]; // stroke index of each batch
+    private int[] batchPaint = new int[16]; // paint index of each batch
+    private int[] batchLines = new int[16]; // lines in each batch
+    private int[] batchStart = new int[17]; // first slot of each batch in sorted
+    private int[] batchMinX = new int[16]; // area covered by each batch, edges included
+    private int[] batchMinY = new int[16];
+    private int[] batchMaxX = new int[16];
+    private int[] batchMaxY = new int[16];
+    private int[] sorted = new int[16]; // queued shapes grouped by batch
+    private final Rectangle bounds; // scratch rectangle for shape bounds
+    private final Path2D.Float lines; // the merged lines of one batch
+    private double scale; // device pixels per drawing unit, the detail drawn is chosen by it
+    private Stroke[] detailStrokes = new Stroke[8]; // stroke drawn for each stroke index at this scale
+    private Paint[] detailPaints = new Paint[8]; // paint drawn for each paint index at this scale
+    private Color[] pointColors = new Color[8]; // color of single pixels for each paint index
+    private long shapeCount; // shapes drawn
+    private long drawnBatches;
+    private long stateChanges; // setStroke, setPaint and setTransform calls made
+    private long drawCalls; // draw and fill calls made
+
+    public ShapeBatcher(ShapeStore shapes) {
+        this.shapes = shapes;
+        queued = new IntList(64);
+        shapeBatch = new IntList(64);
+        bounds = new Rectangle();
+        lines = new Path2D.Float(Path2D.WIND_NON_ZERO, 64);
+        scale = 1;
+    }
+
+    // Sets how many device pixels a drawing unit covers on the Graphics2D passed to draw,
+    // below 1 less detail is drawn
+    public void setScale(double scale) {
+        if( scale == this.scale )
+            return;
+        this.scale = scale;
+        Arrays.fill(detailStrokes, null);
+        Arrays.fill(detailPaints, null);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    // Queues the shape at the given store index, on top of the shapes queued before it
+    public void add(int index) {
+        shapes.getBounds(index, bounds);
+        int minX = bounds.x;
+        int minY = bounds.y;
+        int maxX = bounds.x + bounds.width;
+        int maxY = bounds.y + bounds.height;
+        int stroke = shapes.getStrokeIndex(index);
+        int paint = shapes.getPaintIndex(index);
+        double extent = Math.max(bounds.width, bounds.height) * scale; // size on screen
+        if( scale < 1 && extent < 1 )
+            stroke = POINTS; // the whole shape, stroke included, fits in a pixel
+        else if( scale < 1 && extent < MIN_GRADIENT_SHAPE_PIXELS && shapes.getPaint(index) instanceof GradientPaint )
+            paint |= AVERAGED;
+
+        int batch = -1;
+        for( int b = batchCount - 1; b >= 0 && b >= batchCount - WINDOW; b-- ) {
+            if( batchStroke[b] == stroke && batchPaint[b] == paint ) {
+                batch = b;
+                break;
+            }
+            if( minX <= batchMaxX[b] && batchMinX[b] <= maxX && minY <= batchMaxY[b] && batchMinY[b] <= maxY )
+                break; // the shape has to stay on top of this batch
+        }
+
+        if( batch < 0 ) {
+            batch = newBatch(stroke, paint);
+            batchMinX[batch] = minX;
+            batchMinY[batch] = minY;
+            batchMaxX[batch] = maxX;
+            batchMaxY[batch] = maxY;
+        }
+        else {
+            batchMinX[batch] = Math.min(batchMinX[batch], minX);
+            batchMinY[batch] = Math.min(batchMinY[batch], minY);
+            batchMaxX[batch] = Math.max(batchMaxX[batch], maxX);
+            batchMaxY[batch] = Math.max(batchMaxY[batch], maxY);
+        }
+        if( stroke != POINTS && shapes.getType(index) == ShapeStore.LINE )
+            batchLines[batch]++;
+        batchStart[batch + 1]++;
+        queued.add(index);
+        shapeBatch.add(batch);
+    } // end of add
+
+    // Draws the queued shapes and empties the queue
+    public void draw(Graphics2D g) {
+        if( queued.isEmpty() )
+            return;
+
+        // group the shapes by batch, keeping their order within each batch
+        for( int b = 0; b < batchCount; b++ )
+            batchStart[b + 1] += batchStart[b];
+        if( sorted.length < queued.size() )
+            sorted = new int[queued.size() + (queued.size() >> 1)];
+        for( int i = 0; i < queued.size(); i++ )
+            sorted[batchStart[shapeBatch.get(i)]++] = queued.get(i);
+        // each start now holds the end of its batch, the start of the next one
+
+        AffineTransform view = g.getTransform();
+        Stroke currentStroke = null;
+        Paint currentPaint = null;
+        int first = 0;
+        for( int b = 0; b < batchCount; b++ ) {
+            int end = batchStart[b];
+            if( batchStroke[b] == POINTS ) {
+                Color color = pointColor(batchPaint[b]);
+                if( color != currentPaint ) {
+                    currentPaint = color;
+                    g.setPaint(color);
+                    stateChanges++;
+                }
+                drawPoints(g, view, first, end);
+                first = end;
+                continue;
+            }
+
+            Stroke stroke = detailStroke(batchStroke[b]);
+            Paint paint = (batchPaint[b] & AVERAGED) != 0
+                    ? pointColor(batchPaint[b] & ~AVERAGED) : detailPaint(batchPaint[b]);
+            if( stroke != currentStroke ) {
+                currentStroke = stroke;
+                g.setStroke(stroke);
+                stateChanges++;
+            }
+            if( paint != currentPaint ) {
+                currentPaint = paint;
+                g.setPaint(paint);
+                stateChanges++;
+            }
+            drawBatch(g, first, end, batchLines[b], stroke, paint);
+            first = end;
+        }
+
+        shapeCount += queued.size();
+        drawnBatches += batchCount;
+        clear();
+    } // end of draw
+
+    // Empties the queue without drawing
+    public void clear() {
+        queued.clear();
+        shapeBatch.clear();
+        Arrays.fill(batchStart, 0, batchCount + 1, 0);
+        Arrays.fill(batchLines, 0, batchCount, 0);
+        batchCount = 0;
+    }
+
+    public long getShapeCount() {
+        return shapeCount;
+    }
+
+    public long getBatchCount() {
+        return drawnBatches;
+    }
+
+    public long getStateChanges() {
+        return stateChanges;
+    }
+
+    public long getDrawCalls() {
+        return drawCalls;
+    }
+
+    // Draws sorted[first] up to sorted[end], which all have the stroke and paint g is set to
+    private void drawBatch(Graphics2D g, int first, int end, int lineCount, Stroke stroke, Paint paint) {
+        boolean mergeLines = lineCount > 1 && canMerge(stroke, paint);
+        if( mergeLines )
+            lines.reset();
+
+        for( int i = first; i < end; i++ ) {
+            int index = sorted[i];
+            if( mergeLines && shapes.getType(index) == ShapeStore.LINE ) {
+                lines.moveTo(shapes.getX1(index), shapes.getY1(index));
+                lines.lineTo(shapes.getX2(index), shapes.getY2(index));
+            }
+            else {
+                shapes.drawGeometry(index, g);
+                drawCalls++;
+            }
+        }
+
+        if( mergeLines ) {
+            g.draw(lines);
+            drawCalls++;
+        }
+    } // end of drawBatch
+
+    // Draws sorted[first] up to sorted[end] as the device pixels holding their centers.
+    // view is the transform g was given, the pixels are set with the plain device transform.
+    private void drawPoints(Graphics2D g, AffineTransform view, int first, int end) {
+        g.setTransform(PIXELS);
+        stateChanges++;
+        for( int i = first; i < end; i++ ) {
+            int index = sorted[i];
+            double x = (shapes.getX1(index) + shapes.getX2(index)) / 2.0;
+            double y = (shapes.getY1(index) + shapes.getY2(index)) / 2.0;
+            g.fillRect((int) Math.floor(view.getScaleX() * x + view.getTranslateX()),
+                    (int) Math.floor(view.getScaleY() * y + view.getTranslateY()), 1, 1);
+            drawCalls++;
+        }
+        g.setTransform(view);
+        stateChanges++;
+    } // end of drawPoints
+
+    // Returns the stroke to draw the given stroke index with at the current scale: the
+    // stroke itself, or a solid one where its dash pattern would repeat within a pixel
+    private Stroke detailStroke(int strokeIndex) {
+        if( strokeIndex >= detailStrokes.length )
+            detailStrokes = Arrays.copyOf(detailStrokes, Math.max(strokeIndex + 1, detailStrokes.length * 2));
+        Stroke stroke = detailStrokes[strokeIndex];
+        if( stroke != null )
+            return stroke;
+
+        stroke = shapes.getStrokeTable().get(strokeIndex);
+        if( scale < 1 && stroke instanceof BasicStroke && ((BasicStroke) stroke).getDashArray() != null ) {
+            BasicStroke dashed = (BasicStroke) stroke;
+            float[] dashes = dashed.getDashArray();
+            double period = 0;
+            for( float dash : dashes )
+                period += dash;
+            if( dashes.length % 2 != 0 )
+                period *= 2; // an odd pattern alternates on and off between repeats
+            if( period * scale < 1 )
+                stroke = StyleCache.SHARED.intern(new BasicStroke(dashed.getLineWidth(), dashed.getEndCap(),
+                        dashed.getLineJoin(), dashed.getMiterLimit()));
+        }
+        detailStrokes[strokeIndex] = stroke;
+        return stroke;
+    } // end of detailStroke
+
+    // Returns the paint to draw the given paint index with at the current scale: the paint
+    // itself, or the average color of a cyclic gradient repeating within a few pixels
+    private Paint detailPaint(int paintIndex) {
+        if( paintIndex >= detailPaints.length )
+            detailPaints = Arrays.copyOf(detailPaints, Math.max(paintIndex + 1, detailPaints.length * 2));
+        Paint paint = detailPaints[paintIndex];
+        if( paint != null )
+            return paint;
+
+        paint = shapes.getPaintTable().get(paintIndex);
+        if( scale < 1 && paint instanceof GradientPaint && ((GradientPaint) paint).isCyclic() ) {
+            GradientPaint gradient = (GradientPaint) paint;
+            if( gradient.getPoint1().distance(gradient.getPoint2()) * scale < MIN_GRADIENT_PIXELS )
+                paint = pointColor(paintIndex);
+        }
+        detailPaints[paintIndex] = paint;
+        return paint;
+    }
+
+    // Returns the average color of the given paint index, as single pixels are drawn in
+    private Color pointColor(int paintIndex) {
+        if( paintIndex >= pointColors.length )
+            pointColors = Arrays.copyOf(pointColors, Math.max(paintIndex + 1, pointColors.length * 2));
+        if( pointColors[paintIndex] == null )
+            pointColors[paintIndex] = (Color) StyleCache.SHARED.intern(
+                    MyShape.averageColor(shapes.getPaintTable().get(paintIndex)));
+        return pointColors[paintIndex];
+    }
+
+    // Lines are merged only where one path looks exactly like the separate lines: the
+    // paint has to be an opaque color, since a gradient is rounded differently across
+    // larger areas, and the stroke wider than a pixel, since Java2D draws thin lines and
+    // thin paths with different algorithms that can disagree on a few pixels. Dashed
+    // strokes are left out as well: every dash becomes a piece of outline of its own, and
+    // a merged path of thousands of them fills several times slower than the lines drawn
+    // one by one.
+    private static boolean canMerge(Stroke stroke, Paint paint) {
+        return paint instanceof Color && ((Color) paint).getAlpha() == 255
+                && stroke instanceof BasicStroke && ((BasicStroke) stroke).getLineWidth() > 1
+                && ((BasicStroke) stroke).getDashArray() == null;
+    }
+
+    // Starts a batch at the end of the queue and returns its number
+    private int newBatch(int stroke, int paint) {
+        if( batchCount == batchStroke.length ) {
+            int capacity = batchCount * 2;
+            batchStroke = Arrays.copyOf(batchStroke, capacity);
+            batchPaint = Arrays.copyOf(batchPaint, capacity);
+            batchLines = Arrays.copyOf(batchLines, capacity);
+            batchStart = Arrays.copyOf(batchStart, capacity + 1);
+            batchMinX = Arrays.copyOf(batchMinX, capacity);
+            batchMinY = Arrays.copyOf(batchMinY, capacity);
+            batchMaxX = Arrays.copyOf(batchMaxX, capacity);
+            batchMaxY = Arrays.copyOf(batchMaxY, capacity);
+        }
+        batchStroke[batchCount] = stroke;
+        batchPaint[batchCount] = paint;
+        return batchCount++;
+    }
+
+} // end of ShapeBatcher class
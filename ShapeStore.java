@@ -0,0 +1,466 @@
+package drawingapplication;
+
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.util.HashMap;
+import java.util.List;
+
+// ShapeStore holds every committed shape as a packed record of ints in a ShapeVector
+// instead of one MyShape object (plus two Points and a Boolean) per shape. Strokes and
+// paints are kept once in shared tables and each shape only stores an index into them.
+// Every edit makes a new ShapeVector that shares its records with the previous one, so
+// version() and restore() give O(1) snapshots of the drawing for undo and redo.
+// A freehand stroke has more points than a record holds, so its record keeps the box
+// around the points and the points themselves go to a polyline table, like the styles.
+// The tables only grow and copies share them, so copy() is O(1) however long the
+// drawing's history.
+class ShapeStore {
+
+    // type tags, these match the indexes of the shape combo box
+    static final int LINE = 0;
+    static final int OVAL = 1;
+    static final int RECTANGLE = 2;
+    static final int FREEHAND = 3;
+
+    private static final int TYPE_MASK = 0x7F;
+    private static final int FILLED = 0x80; // flag bit set when a bounded shape is filled
+
+    private ShapeVector records; // the current version of the drawing
+
+    // the style tables only ever grow, so the indexes in older versions stay valid
+    private AppendTable<Stroke> strokes; // every distinct stroke used by a shape
+    private HashMap<Stroke, Integer> strokeIds; // null until this store adds a stroke
+    private AppendTable<Paint> paints; // every distinct paint used by a shape
+    private HashMap<Paint, Integer> paintIds; // null until this store adds a paint
+    private AppendTable<Polyline> polylines; // the points of every freehand stroke
+
+
+    public ShapeStore() {
+        records = ShapeVector.EMPTY;
+        strokes = new AppendTable<>();
+        paints = new AppendTable<>();
+        polylines = new AppendTable<>();
+    } // end of ShapeStore constructor
+
+    // Creates a copy of another store, sharing its records and tables
+    private ShapeStore(ShapeStore other) {
+        sync(other);
+    }
+
+    // Returns a copy that later changes to this store do not affect. The copy can be
+    // handed to another thread, which may read it while this store is changed.
+    public ShapeStore copy() {
+        return new ShapeStore(this);
+    }
+
+    // Returns the current version of the drawing, later edits do not change it
+    public ShapeVector version() {
+        return records;
+    }
+
+    // Makes an earlier version returned by version() the current one
+    public void restore(ShapeVector version) {
+        records = version;
+    }
+
+    // Makes this store show the same drawing as source, sharing its records and tables
+    public void sync(ShapeStore source) {
+        records = source.records;
+        strokes = source.strokes.share();
+        strokeIds = null;
+        paints = source.paints.share();
+        paintIds = null;
+        polylines = source.polylines.share();
+    }
+
+
+    // Breaks a shape down into its primitive fields and appends it to the store
+    public void add(MyShape shape) {
+        if( shape instanceof MyFreehand ) {
+            addFreehand(((MyFreehand) shape).getPoints(), shape.myStroke, shape.getShapeColor());
+            return;
+        }
+
+        int type = LINE;
+        boolean filled = false;
+
+        if( shape instanceof MyOval )
+            type = OVAL;
+        else if( shape instanceof MyRectangle )
+            type = RECTANGLE;
+
+        if( shape instanceof MyBoundedShape )
+            filled = ((MyBoundedShape) shape).filled;
+
+        ShapeBounds bounds = shape.getBounds();
+        add(type, bounds.x1, bounds.y1, bounds.x2, bounds.y2, filled, shape.myStroke,
+                shape.getShapeColor());
+    }
+
+    public void add(int type, int x1, int y1, int x2, int y2,
+            boolean filled, Stroke stroke, Paint paint) {
+        if( type == FREEHAND )
+            throw new IllegalArgumentException("freehand strokes are added with addFreehand");
+        int style = strokeId(stroke) << 8 | (filled ? type | FILLED : type);
+        records = records.append(x1, y1, x2, y2, style, paintId(paint));
+    }
+
+    // Appends a freehand stroke through points, x and y pairs, at least two of them. The
+    // store keeps the array, so it must not be changed afterwards.
+    public void addFreehand(int[] points, Stroke stroke, Paint paint) {
+        int minX = points[0], minY = points[1], maxX = minX, maxY = minY;
+        for( int i = 2; i < points.length; i += 2 ) {
+            minX = Math.min(minX, points[i]);
+            maxX = Math.max(maxX, points[i]);
+            minY = Math.min(minY, points[i + 1]);
+            maxY = Math.max(maxY, points[i + 1]);
+        }
+        polylines.append(new Polyline(points, paintId(paint), minX, minY));
+        records = records.append(minX, minY, maxX, maxY, strokeId(stroke) << 8 | FREEHAND, polylines.size() - 1);
+    }
+
+    // Appends a copy of the shape at the given index of another store. A freehand stroke
+    // shares its points with the other store, neither changes them.
+    public void addFrom(ShapeStore source, int index) {
+        if( source.getType(index) == FREEHAND )
+            addFreehand(source.getPoints(index), source.getStroke(index), source.getPaint(index));
+        else
+            add(source.getType(index), source.getX1(index), source.getY1(index), source.getX2(index),
+                    source.getY2(index), source.isFilled(index), source.getStroke(index), source.getPaint(index));
+    }
+
+    // Moves the shapes at the given indexes, which must be ascending, by dx and dy. They
+    // keep their places in the drawing order. A freehand stroke keeps its polyline, which
+    // is drawn moved to where its record's box is now.
+    public void move(IntList indexes, int dx, int dy) {
+        if( !indexes.isEmpty() && (indexes.get(0) < 0 || indexes.last() >= records.size()) )
+            throw new IndexOutOfBoundsException("shapes " + indexes.get(0) + " to " + indexes.last()
+                    + ", size " + records.size());
+        records = records.update(indexes, (index, chunk, offset) -> {
+            chunk[offset + ShapeVector.X1] += dx;
+            chunk[offset + ShapeVector.Y1] += dy;
+            chunk[offset + ShapeVector.X2] += dx;
+            chunk[offset + ShapeVector.Y2] += dy;
+        });
+    } // end of move
+
+    // Returns the table index of a stroke, adding it to the table the first time it is seen.
+    // Strokes and paints missing from the table are interned first, so equal ones that are
+    // different objects, such as two GradientPaints built from the same colors, share an entry.
+    private int strokeId(Stroke stroke) {
+        if( strokeIds == null )
+            strokeIds = ids(strokes);
+        Integer id = strokeIds.get(stroke);
+        if( id == null ) {
+            stroke = StyleCache.SHARED.intern(stroke);
+            id = strokeIds.get(stroke);
+        }
+        if( id == null ) {
+            id = strokes.size();
+            strokes.append(stroke);
+            strokeIds.put(stroke, id);
+        }
+        return id;
+    }
+
+    // Returns the table index of a paint, adding it to the table the first time it is seen
+    private int paintId(Paint paint) {
+        if( paintIds == null )
+            paintIds = ids(paints);
+        Integer id = paintIds.get(paint);
+        if( id == null ) {
+            paint = StyleCache.SHARED.intern(paint);
+            id = paintIds.get(paint);
+        }
+        if( id == null ) {
+            id = paints.size();
+            paints.append(paint);
+            paintIds.put(paint, id);
+        }
+        return id;
+    }
+
+    // Maps each entry of a table to its index, for a store that shares the table to add to it
+    private static <T> HashMap<T, Integer> ids(List<T> table) {
+        HashMap<T, Integer> ids = new HashMap<>();
+        for( int id = 0; id < table.size(); id++ )
+            ids.put(table.get(id), id);
+        return ids;
+    }
+
+    // Removes the last shape that was added
+    public void removeLast() {
+        if( records.size() > 0 )
+            records = records.removeLast();
+    }
+
+    // Removes every shape. The style tables are kept, restoring an earlier version
+    // brings back shapes that refer to them.
+    public void clear() {
+        records = ShapeVector.EMPTY;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    // Returns one field of the record of the shape at the given index
+    private int field(int index, int field) {
+        return records.chunk(index)[ShapeVector.offset(index) + field];
+    }
+
+    public int getType(int index) {
+        return field(index, ShapeVector.STYLE) & TYPE_MASK;
+    }
+
+    public boolean isFilled(int index) {
+        return (field(index, ShapeVector.STYLE) & FILLED) != 0;
+    }
+
+    public int getX1(int index) {
+        return field(index, ShapeVector.X1);
+    }
+
+    public int getY1(int index) {
+        return field(index, ShapeVector.Y1);
+    }
+
+    public int getX2(int index) {
+        return field(index, ShapeVector.X2);
+    }
+
+    public int getY2(int index) {
+        return field(index, ShapeVector.Y2);
+    }
+
+    public Stroke getStroke(int index) {
+        return strokes.get(getStrokeIndex(index));
+    }
+
+    public Paint getPaint(int index) {
+        return paints.get(getPaintIndex(index));
+    }
+
+    public int getStrokeIndex(int index) {
+        return field(index, ShapeVector.STYLE) >>> 8;
+    }
+
+    // A freehand record keeps its polyline's index where other records keep the paint's
+    public int getPaintIndex(int index) {
+        int paint = field(index, ShapeVector.PAINT);
+        return getType(index) == FREEHAND ? polylines.get(paint).paint : paint;
+    }
+
+    // Returns the x and y pairs of the freehand stroke at the given index. The array may
+    // be shared with the store and must not be changed.
+    public int[] getPoints(int index) {
+        Polyline polyline = polylines.get(field(index, ShapeVector.PAINT));
+        return polyline.points(getX1(index) - polyline.x, getY1(index) - polyline.y);
+    }
+
+    // Returns the distinct strokes, getStrokeIndex gives a shape's position in this list
+    public List<Stroke> getStrokeTable() {
+        return strokes;
+    }
+
+    // Returns the distinct paints, getPaintIndex gives a shape's position in this list
+    public List<Paint> getPaintTable() {
+        return paints;
+    }
+
+    // Stores the area covered by the shape at the given index in bounds, using the same
+    // math as MyShape.getBounds
+    public void getBounds(int index, Rectangle bounds) {
+        int[] chunk = records.chunk(index);
+        int offset = ShapeVector.offset(index);
+        int x1 = chunk[offset + ShapeVector.X1];
+        int y1 = chunk[offset + ShapeVector.Y1];
+        int x2 = chunk[offset + ShapeVector.X2];
+        int y2 = chunk[offset + ShapeVector.Y2];
+
+        bounds.setBounds(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x1 - x2), Math.abs(y1 - y2));
+        int padding = MyShape.strokePadding(strokes.get(chunk[offset + ShapeVector.STYLE] >>> 8));
+        bounds.grow(padding, padding);
+    }
+
+    // Returns true if the point lies on the shape at the given index: inside it for a
+    // filled shape, or on (or within two pixels of) its stroked outline otherwise
+    public boolean contains(int index, int x, int y) {
+        int[] chunk = records.chunk(index);
+        int offset = ShapeVector.offset(index);
+        int x1 = chunk[offset + ShapeVector.X1];
+        int y1 = chunk[offset + ShapeVector.Y1];
+        int x2 = chunk[offset + ShapeVector.X2];
+        int y2 = chunk[offset + ShapeVector.Y2];
+        int style = chunk[offset + ShapeVector.STYLE];
+        int smallX = Math.min(x1, x2);
+        int smallY = Math.min(y1, y2);
+        int width = Math.abs(x1 - x2);
+        int height = Math.abs(y1 - y2);
+
+        Shape geometry;
+        if( (style & TYPE_MASK) == FREEHAND ) {
+            Polyline polyline = polylines.get(chunk[offset + ShapeVector.PAINT]);
+            geometry = polyline.path;
+            x -= x1 - polyline.x; // the path is where the stroke was drawn, not where it was moved
+            y -= y1 - polyline.y;
+        }
+        else if( (style & TYPE_MASK) == LINE )
+            geometry = new Line2D.Float(x1, y1, x2, y2);
+        else if( (style & TYPE_MASK) == OVAL )
+            geometry = new Ellipse2D.Float(smallX, smallY, width, height);
+        else
+            geometry = new Rectangle(smallX, smallY, width, height);
+
+        if( (style & FILLED) != 0 )
+            return geometry.contains(x, y);
+        return strokes.get(style >>> 8).createStrokedShape(geometry).intersects(x - 2, y - 2, 4, 4);
+    } // end of contains
+
+    // Builds a MyShape object for the shape at the given index
+    public MyShape getShape(int index) {
+        int[] chunk = records.chunk(index);
+        int offset = ShapeVector.offset(index);
+        int x1 = chunk[offset + ShapeVector.X1];
+        int y1 = chunk[offset + ShapeVector.Y1];
+        int x2 = chunk[offset + ShapeVector.X2];
+        int y2 = chunk[offset + ShapeVector.Y2];
+        int style = chunk[offset + ShapeVector.STYLE];
+        Stroke stroke = strokes.get(style >>> 8);
+        Paint paint = paints.get(getPaintIndex(index));
+        boolean filled = (style & FILLED) != 0;
+
+        switch( style & TYPE_MASK ) {
+            case FREEHAND:
+                return new MyFreehand(paint, stroke, getPoints(index));
+            case OVAL:
+                return new MyOval(paint, stroke, x1, y1, x2, y2, filled);
+            case RECTANGLE:
+                return new MyRectangle(paint, stroke, x1, y1, x2, y2, filled);
+            default:
+                return new MyLine(paint, stroke, x1, y1, x2, y2);
+        }
+    }
+
+    // Draws the shape at the given index straight from its record, the same way
+    // MyLine, MyOval, MyRectangle and MyFreehand draw themselves
+    public void draw(int index, Graphics2D g) {
+        int[] chunk = records.chunk(index);
+        int offset = ShapeVector.offset(index);
+        g.setStroke(strokes.get(chunk[offset + ShapeVector.STYLE] >>> 8));
+        g.setPaint(paints.get(getPaintIndex(index)));
+        drawGeometry(index, g);
+    }
+
+    // Draws the shape at the given index with whatever stroke and paint g already has
+    public void drawGeometry(int index, Graphics2D g) {
+        int[] chunk = records.chunk(index);
+        int offset = ShapeVector.offset(index);
+        int x1 = chunk[offset + ShapeVector.X1];
+        int y1 = chunk[offset + ShapeVector.Y1];
+        int x2 = chunk[offset + ShapeVector.X2];
+        int y2 = chunk[offset + ShapeVector.Y2];
+        int style = chunk[offset + ShapeVector.STYLE];
+
+        int type = style & TYPE_MASK;
+        if( type == LINE ) {
+            g.drawLine(x1, y1, x2, y2);
+            return;
+        }
+        if( type == FREEHAND ) {
+            Polyline polyline = polylines.get(chunk[offset + ShapeVector.PAINT]);
+            if( x1 == x2 && y1 == y2 )
+                g.drawLine(x1, y1, x2, y2); // a stroke that never moved draws as a dot
+            else
+                g.draw(polyline.path(x1 - polyline.x, y1 - polyline.y));
+            return;
+        }
+
+        int smallX = Math.min(x1, x2);
+        int smallY = Math.min(y1, y2);
+        int width = Math.abs(x1 - x2);
+        int height = Math.abs(y1 - y2);
+        boolean filled = (style & FILLED) != 0;
+
+        if( type == OVAL ) {
+            if( !filled )
+                g.drawOval(smallX, smallY, width, height);
+            else
+                g.fillOval(smallX, smallY, width, height);
+        }
+        else {
+            if( !filled )
+                g.drawRect(smallX, smallY, width, height);
+            else
+                g.fillRect(smallX, smallY, width, height);
+        }
+    } // end of drawGeometry
+
+    // The points of a freehand stroke, with the path drawn for them built once. Moving the
+    // stroke only moves its record, x and y tell how far the points are from it, and the
+    // path for the last distance it was drawn at is kept instead of a new entry per move.
+    private static final class Polyline {
+
+        final int[] points;
+        final int paint; // index into the paint table
+        final int x; // the smallest x and y of the points, where the record's box started
+        final int y;
+        final Path2D.Float path;
+        private volatile MovedPath moved; // drawn by the render thread as well as the EDT
+
+        Polyline(int[] points, int paint, int x, int y) {
+            this.points = points;
+            this.paint = paint;
+            this.x = x;
+            this.y = y;
+            path = MyFreehand.toPath(points, points.length);
+        }
+
+        // Returns the points moved by dx and dy, a new array unless both are 0
+        int[] points(int dx, int dy) {
+            if( dx == 0 && dy == 0 )
+                return points;
+            int[] movedPoints = points.clone();
+            for( int i = 0; i < movedPoints.length; i += 2 ) {
+                movedPoints[i] += dx;
+                movedPoints[i + 1] += dy;
+            }
+            return movedPoints;
+        }
+
+        // Returns the path through the points moved by dx and dy. It is built from the moved
+        // points rather than drawn through a translated Graphics2D, which would move a
+        // gradient paint along with the stroke.
+        Path2D.Float path(int dx, int dy) {
+            if( dx == 0 && dy == 0 )
+                return path;
+            MovedPath last = moved;
+            if( last == null || last.dx != dx || last.dy != dy ) {
+                last = new MovedPath(dx, dy, MyFreehand.toPath(points(dx, dy), points.length));
+                moved = last;
+            }
+            return last.path;
+        }
+    } // end of inner class Polyline
+
+    // The path of a moved polyline and how far it was moved
+    private static final class MovedPath {
+
+        final int dx;
+        final int dy;
+        final Path2D.Float path;
+
+        MovedPath(int dx, int dy, Path2D.Float path) {
+            this.dx = dx;
+            this.dy = dy;
+            this.path = path;
+        }
+    }
+
+} // end of ShapeStore class
@@ -0,0 +1,254 @@
+package drawingapplication;
+
+import java.util.Arrays;
+
+// ShapeVector is an immutable list of shape records. Appending or removing the last
+// record returns a new vector that shares everything but a few small arrays with the old
+// one, so keeping every version of a drawing costs memory in proportion to the edits,
+// not to the number of shapes.
+//
+// Records are FIELDS ints each and are kept in chunks of WIDTH records. Full chunks are
+// the leaves of a WIDTH-way trie, the last partly filled chunk is held outside the trie
+// as the tail, so most appends only touch the tail.
+final class ShapeVector {
+
+    static final int FIELDS = 6; // ints per record
+    static final int X1 = 0; // offsets of the fields in a record
+    static final int Y1 = 1;
+    static final int X2 = 2;
+    static final int Y2 = 3;
+    static final int STYLE = 4; // stroke index << 8 | filled bit | type, as in DrawingFile
+    static final int PAINT = 5;
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS; // records per chunk, children per trie node
+    private static final int MASK = WIDTH - 1;
+
+    // its tail counts as claimed, so the first append copies it and EMPTY never changes
+    static final ShapeVector EMPTY = new ShapeVector(0, BITS, new Object[WIDTH], new Tail(new int[0], WIDTH));
+
+    private final int count; // number of records
+    private final int shift; // BITS times the number of trie levels above the leaves
+    private final Object[] root; // trie nodes are Object[], leaves are int[] chunks
+    private final Tail tail;
+
+    private ShapeVector(int count, int shift, Object[] root, Tail tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Returns the chunk holding the record at the given index, the record starts at
+    // offset(index) in it. The chunk must not be modified.
+    public int[] chunk(int index) {
+        if( index < 0 || index >= count )
+            throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+        if( index >= tailOffset() )
+            return tail.records;
+
+        Object node = root;
+        for( int level = shift; level > 0; level -= BITS )
+            node = ((Object[]) node)[(index >>> level) & MASK];
+        return (int[]) node;
+    }
+
+    public static int offset(int index) {
+        return (index & MASK) * FIELDS;
+    }
+
+    // Returns a vector with the record appended
+    public ShapeVector append(int x1, int y1, int x2, int y2, int style, int paint) {
+        int tailSize = count - tailOffset();
+
+        if( tailSize < WIDTH ) {
+            // the tail chunk is shared with older versions, which only read its first
+            // records, so the new record can be written in place unless another version
+            // already claimed that slot (an edit made after an undo)
+            Tail newTail = tail;
+            if( tail.claimed != tailSize )
+                newTail = new Tail(Arrays.copyOf(tail.records, WIDTH * FIELDS), tailSize);
+            newTail.put(tailSize, x1, y1, x2, y2, style, paint);
+            return new ShapeVector(count + 1, shift, root, newTail);
+        }
+
+        // the tail is full: it becomes a leaf of the trie and a new tail is started
+        Object[] newRoot;
+        int newShift = shift;
+        if( (count >>> BITS) > (1 << shift) ) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail.records);
+            newShift += BITS;
+        }
+        else {
+            newRoot = pushLeaf(shift, root, tail.records);
+        }
+
+        Tail newTail = new Tail();
+        newTail.put(0, x1, y1, x2, y2, style, paint);
+        return new ShapeVector(count + 1, newShift, newRoot, newTail);
+    } // end of append
+
+    // Returns a vector without the last record
+    public ShapeVector removeLast() {
+        if( count == 0 )
+            throw new IllegalStateException("vector is empty");
+        if( count == 1 )
+            return EMPTY;
+        if( count - tailOffset() > 1 )
+            return new ShapeVector(count - 1, shift, root, tail);
+
+        // the tail becomes empty: the last leaf is taken out of the trie to be the new tail,
+        // it is full as far as appends are concerned so they copy it before writing
+        Tail newTail = new Tail(chunk(count - 2), WIDTH);
+        Object[] newRoot = popLeaf(shift, root);
+        int newShift = shift;
+        if( newRoot == null )
+            newRoot = new Object[WIDTH];
+        if( shift > BITS && newRoot[1] == null ) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new ShapeVector(count - 1, newShift, newRoot, newTail);
+    } // end of removeLast
+
+    // Returns a vector in which the editor has rewritten the records at the given indexes,
+    // which must be ascending. Each chunk and trie node holding one of them is copied once,
+    // however many of its records change, so moving thousands of shapes copies about as
+    // many ints as they hold.
+    public ShapeVector update(IntList indexes, RecordEditor editor) {
+        if( indexes.isEmpty() )
+            return this;
+        int tailOffset = tailOffset();
+        int[] next = {0}; // position in indexes of the next record to rewrite
+        Object[] newRoot = root;
+        if( indexes.get(0) < tailOffset )
+            newRoot = (Object[]) update(shift, root, tailOffset, indexes, next, editor);
+
+        Tail newTail = tail;
+        if( next[0] < indexes.size() ) {
+            // other versions may share the tail, so the rewritten one is a copy
+            int tailSize = count - tailOffset;
+            newTail = new Tail(Arrays.copyOf(tail.records, WIDTH * FIELDS), tailSize);
+            for( ; next[0] < indexes.size(); next[0]++ ) {
+                int index = indexes.get(next[0]);
+                if( index >= count )
+                    throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+                editor.edit(index, newTail.records, offset(index));
+            }
+        }
+        return new ShapeVector(count, shift, newRoot, newTail);
+    } // end of update
+
+    // Copies a node at the given level with the records below it that are listed in
+    // indexes, from next[0] up to the first one at end or beyond, rewritten
+    private static Object update(int level, Object node, int end, IntList indexes, int[] next,
+            RecordEditor editor) {
+        if( level == 0 ) {
+            int[] chunk = ((int[]) node).clone();
+            for( ; next[0] < indexes.size() && indexes.get(next[0]) < end; next[0]++ )
+                editor.edit(indexes.get(next[0]), chunk, offset(indexes.get(next[0])));
+            return chunk;
+        }
+
+        Object[] copy = ((Object[]) node).clone();
+        while( next[0] < indexes.size() && indexes.get(next[0]) < end ) {
+            int index = indexes.get(next[0]);
+            int childFirst = (index >>> level) << level;
+            int child = (index >>> level) & MASK;
+            copy[child] = update(level - BITS, copy[child],
+                    (int) Math.min((long) childFirst + (1 << level), end), indexes, next, editor);
+        }
+        return copy;
+    } // end of update
+
+    // Index of the first record held in the tail
+    private int tailOffset() {
+        if( count < WIDTH )
+            return 0;
+        return ((count - 1) >>> BITS) << BITS;
+    }
+
+    // Copies the path down to the last leaf and hangs the leaf at its end
+    private Object[] pushLeaf(int level, Object[] parent, int[] leaf) {
+        int child = ((count - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if( level == BITS )
+            node[child] = leaf;
+        else if( parent[child] != null )
+            node[child] = pushLeaf(level - BITS, (Object[]) parent[child], leaf);
+        else
+            node[child] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    // Builds the chain of single-child nodes leading from the given level down to a leaf
+    private static Object newPath(int level, int[] leaf) {
+        if( level == 0 )
+            return leaf;
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    // Copies the path down to the last leaf without the leaf, returns null if nothing is left
+    private Object[] popLeaf(int level, Object[] node) {
+        int child = ((count - 2) >>> level) & MASK;
+        if( level > BITS ) {
+            Object[] newChild = popLeaf(level - BITS, (Object[]) node[child]);
+            if( newChild == null && child == 0 )
+                return null;
+            Object[] copy = node.clone();
+            copy[child] = newChild;
+            return copy;
+        }
+        if( child == 0 )
+            return null;
+        Object[] copy = node.clone();
+        copy[child] = null;
+        return copy;
+    }
+
+
+    // Tail is the last chunk of records. It is shared by every version that ends in it;
+    // claimed counts the records any of them has written, so a version can tell whether
+    // the slot after its own last record is still free.
+    private static final class Tail {
+
+        final int[] records;
+        int claimed;
+
+        Tail() {
+            this(new int[WIDTH * FIELDS], 0);
+        }
+
+        Tail(int[] records, int claimed) {
+            this.records = records;
+            this.claimed = claimed;
+        }
+
+        void put(int slot, int x1, int y1, int x2, int y2, int style, int paint) {
+            int offset = slot * FIELDS;
+            records[offset + X1] = x1;
+            records[offset + Y1] = y1;
+            records[offset + X2] = x2;
+            records[offset + Y2] = y2;
+            records[offset + STYLE] = style;
+            records[offset + PAINT] = paint;
+            claimed = slot + 1;
+        }
+    } // end of inner class Tail
+
+
+    // RecordEditor rewrites the records update is given, in place in copies of their chunks
+    interface RecordEditor {
+        // The record of the shape at index starts at offset in records
+        void edit(int index, int[] records, int offset);
+    } // end of inner interface RecordEditor
+
+} // end of ShapeVector class
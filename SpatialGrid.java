@@ -0,0 +1,229 @@
+package drawingapplication;
+
+import java.awt.Rectangle;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+// SpatialGrid is a uniform grid over the shapes in a ShapeStore. Every cell keeps the
+// indexes of the shapes whose bounds touch it, so finding the shapes inside a region or
+// under a point only visits the cells around it instead of every shape in the store.
+class SpatialGrid {
+
+    static final int CELL_SIZE = 64; // width and height of one cell in pixels
+    // shapes touching more cells than this are kept in one list instead of in every cell
+    private static final int MAX_CELLS_PER_SHAPE = 256;
+
+    private final ShapeStore store; // the shapes being indexed
+    private final HashMap<Long, IntList> cells; // shape indexes per cell, in drawing order
+    private final IntList largeShapes; // shapes too large to be put in the cells
+    private final Rectangle bounds; // scratch rectangle for shape bounds
+    private final IntList candidates; // scratch list for hit testing
+
+    public SpatialGrid(ShapeStore store) {
+        this.store = store;
+        cells = new HashMap<>();
+        largeShapes = new IntList();
+        bounds = new Rectangle();
+        candidates = new IntList();
+    }
+
+    // Adds the shape at the given store index, shapes must be added in index order
+    public void add(int index) {
+        store.getBounds(index, bounds);
+
+        int firstColumn = cellOf(bounds.x);
+        int lastColumn = cellOf(bounds.x + bounds.width - 1);
+        int firstRow = cellOf(bounds.y);
+        int lastRow = cellOf(bounds.y + bounds.height - 1);
+
+        if( (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > MAX_CELLS_PER_SHAPE ) {
+            largeShapes.add(index);
+            return;
+        }
+
+        for( int row = firstRow; row <= lastRow; row++ ) {
+            for( int col = firstColumn; col <= lastColumn; col++ ) {
+                cells.computeIfAbsent(key(col, row), k -> new IntList(4)).add(index);
+            }
+        }
+    } // end of add
+
+    // Removes the shape at the given store index, which must be the last one added.
+    // Call this before the shape is removed from the store.
+    public void removeLast(int index) {
+        if( !largeShapes.isEmpty() && largeShapes.last() == index ) {
+            largeShapes.removeLast();
+            return;
+        }
+
+        store.getBounds(index, bounds);
+        for( int row = cellOf(bounds.y); row <= cellOf(bounds.y + bounds.height - 1); row++ ) {
+            for( int col = cellOf(bounds.x); col <= cellOf(bounds.x + bounds.width - 1); col++ ) {
+                Long key = key(col, row);
+                IntList cell = cells.get(key);
+                if( cell != null && !cell.isEmpty() && cell.last() == index ) {
+                    cell.removeLast();
+                    if( cell.isEmpty() )
+                        cells.remove(key);
+                }
+            }
+        }
+    } // end of removeLast
+
+    // Takes the shapes at the given store indexes out, wherever they are in the drawing
+    // order. Call this before the shapes are moved in the store, and insert them again
+    // afterwards. Each cell they touch is filtered once, however many of them it holds, and
+    // when there are more of them than cells every cell is, instead of finding the ones
+    // they touch.
+    public void remove(IntList indexes) {
+        BitSet removed = new BitSet();
+        for( int i = 0; i < indexes.size(); i++ )
+            removed.set(indexes.get(i));
+
+        if( indexes.size() >= cells.size() ) {
+            cells.values().removeIf(cell -> {
+                cell.removeAll(removed);
+                return cell.isEmpty();
+            });
+        }
+        else {
+            HashSet<Long> touched = new HashSet<>();
+            for( int i = 0; i < indexes.size(); i++ ) {
+                store.getBounds(indexes.get(i), bounds);
+                for( int row = cellOf(bounds.y); row <= cellOf(bounds.y + bounds.height - 1); row++ ) {
+                    for( int col = cellOf(bounds.x); col <= cellOf(bounds.x + bounds.width - 1); col++ )
+                        touched.add(key(col, row));
+                }
+            }
+            for( Long key : touched ) {
+                IntList cell = cells.get(key);
+                if( cell != null ) {
+                    cell.removeAll(removed);
+                    if( cell.isEmpty() )
+                        cells.remove(key);
+                }
+            }
+        }
+        largeShapes.removeAll(removed);
+    } // end of remove
+
+    // Puts the shapes at the given ascending store indexes back in, at their places in the
+    // drawing order
+    public void insert(IntList indexes) {
+        HashMap<Long, IntList> added = new HashMap<>(); // indexes to put into each cell
+        IntList large = new IntList();
+        for( int i = 0; i < indexes.size(); i++ ) {
+            int index = indexes.get(i);
+            store.getBounds(index, bounds);
+            int firstColumn = cellOf(bounds.x);
+            int lastColumn = cellOf(bounds.x + bounds.width - 1);
+            int firstRow = cellOf(bounds.y);
+            int lastRow = cellOf(bounds.y + bounds.height - 1);
+
+            if( (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > MAX_CELLS_PER_SHAPE ) {
+                large.add(index);
+                continue;
+            }
+            for( int row = firstRow; row <= lastRow; row++ ) {
+                for( int col = firstColumn; col <= lastColumn; col++ )
+                    added.computeIfAbsent(key(col, row), k -> new IntList(4)).add(index);
+            }
+        }
+
+        for( Map.Entry<Long, IntList> entry : added.entrySet() )
+            cells.computeIfAbsent(entry.getKey(), k -> new IntList(4)).addSorted(entry.getValue());
+        largeShapes.addSorted(large);
+    } // end of insert
+
+    public void clear() {
+        cells.clear();
+        largeShapes.clear();
+    }
+
+    // Fills result with the indexes of every shape whose bounds intersect area, in
+    // drawing order
+    public void query(Rectangle area, IntList result) {
+        result.clear();
+        if( area.isEmpty() )
+            return;
+
+        int firstColumn = cellOf(area.x);
+        int lastColumn = cellOf(area.x + area.width - 1);
+        int firstRow = cellOf(area.y);
+        int lastRow = cellOf(area.y + area.height - 1);
+
+        // for very large areas it is cheaper to walk the occupied cells than every cell
+        if( (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > cells.size() ) {
+            for( Map.Entry<Long, IntList> entry : cells.entrySet() ) {
+                int col = (int) (entry.getKey() >> 32);
+                int row = (int) (long) entry.getKey();
+                if( col >= firstColumn && col <= lastColumn && row >= firstRow && row <= lastRow )
+                    collect(entry.getValue(), col, row, firstColumn, firstRow, area, result);
+            }
+        }
+        else {
+            for( int row = firstRow; row <= lastRow; row++ ) {
+                for( int col = firstColumn; col <= lastColumn; col++ ) {
+                    IntList cell = cells.get(key(col, row));
+                    if( cell != null )
+                        collect(cell, col, row, firstColumn, firstRow, area, result);
+                }
+            }
+        }
+
+        for( int i = 0; i < largeShapes.size(); i++ ) {
+            store.getBounds(largeShapes.get(i), bounds);
+            if( bounds.intersects(area) )
+                result.add(largeShapes.get(i));
+        }
+
+        result.sort(); // restore drawing order
+    } // end of query
+
+    // Adds the shapes of one cell that intersect area. A shape spanning several cells is
+    // only reported by the first of its cells that lies inside the query, so it is added once.
+    private void collect(IntList cell, int col, int row, int firstColumn, int firstRow,
+            Rectangle area, IntList result) {
+        for( int i = 0; i < cell.size(); i++ ) {
+            int index = cell.get(i);
+            store.getBounds(index, bounds);
+            if( col == Math.max(cellOf(bounds.x), firstColumn)
+                    && row == Math.max(cellOf(bounds.y), firstRow) && bounds.intersects(area) )
+                result.add(index);
+        }
+    }
+
+    // Returns the index of the top-most shape under the point, or -1 if there is none
+    public int hitTest(int x, int y) {
+        candidates.clear();
+        IntList cell = cells.get(key(cellOf(x), cellOf(y)));
+        if( cell != null ) {
+            for( int i = 0; i < cell.size(); i++ )
+                candidates.add(cell.get(i));
+        }
+        for( int i = 0; i < largeShapes.size(); i++ )
+            candidates.add(largeShapes.get(i));
+        candidates.sort();
+
+        // the last shape drawn is the one on top
+        for( int i = candidates.size() - 1; i >= 0; i-- ) {
+            int index = candidates.get(i);
+            store.getBounds(index, bounds);
+            if( bounds.contains(x, y) && store.contains(index, x, y) )
+                return index;
+        }
+        return -1;
+    } // end of hitTest
+
+    // Converts a pixel coordinate to the column or row of the cell holding it
+    private static int cellOf(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private static Long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xFFFFFFFFL);
+    }
+
+} // end of SpatialGrid class
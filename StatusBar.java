@@ -0,0 +1,99 @@
+package drawingapplication;
+
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+// StatusBar shows one line of text like a JLabel, but keeps it in a char array so the
+// mouse position can be written into it on every mouse event without building a String
+class StatusBar extends JComponent {
+
+    private static final char[] POSITION_PREFIX = "Mouse position: [".toCharArray();
+    // the widest position text, used to size the bar so it does not jump as the numbers change
+    private static final String WIDEST_POSITION = "Mouse position: [-88888,-88888]";
+
+    private char[] text; // the characters shown, only the first length are used
+    private int length;
+    private int preferredTextWidth; // widest text shown so far, in pixels
+
+    public StatusBar(String initialText) {
+        text = new char[64];
+        setFont(UIManager.getFont("Label.font"));
+        setForeground(UIManager.getColor("Label.foreground"));
+        setText(initialText);
+    }
+
+    public void setText(String newText) {
+        if( newText.length() > text.length )
+            text = new char[newText.length()];
+        newText.getChars(0, newText.length(), text, 0);
+        length = newText.length();
+
+        // grow the bar if the text no longer fits
+        FontMetrics metrics = getFontMetrics(getFont());
+        int width = Math.max(metrics.charsWidth(text, 0, length), metrics.stringWidth(WIDEST_POSITION));
+        if( width > preferredTextWidth ) {
+            preferredTextWidth = width;
+            revalidate();
+        }
+        repaint();
+    }
+
+    // Shows "Mouse position: [x,y]", written straight into the character array
+    public void setMousePosition(int x, int y) {
+        int position = POSITION_PREFIX.length;
+        System.arraycopy(POSITION_PREFIX, 0, text, 0, position);
+        position = appendInt(x, position);
+        text[position++] = ',';
+        position = appendInt(y, position);
+        text[position++] = ']';
+        length = position;
+        repaint(); // the bar is already wide enough for any position
+    }
+
+    public String getText() {
+        return new String(text, 0, length);
+    }
+
+    // Writes the decimal digits of value into text at position and returns the position after them
+    private int appendInt(int value, int position) {
+        long remaining = value; // long so that negating Integer.MIN_VALUE does not overflow
+        if( remaining < 0 ) {
+            text[position++] = '-';
+            remaining = -remaining;
+        }
+
+        int digits = 1;
+        for( long scale = 10; scale <= remaining; scale *= 10 )
+            digits++;
+        for( int i = position + digits - 1; i >= position; i-- ) {
+            text[i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        return position + digits;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if( isPreferredSizeSet() )
+            return super.getPreferredSize();
+
+        Insets insets = getInsets();
+        FontMetrics metrics = getFontMetrics(getFont());
+        return new Dimension(preferredTextWidth + insets.left + insets.right,
+                metrics.getHeight() + insets.top + insets.bottom);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Insets insets = getInsets();
+        FontMetrics metrics = g.getFontMetrics(getFont());
+        g.setFont(getFont());
+        g.setColor(getForeground());
+        g.drawChars(text, 0, length, insets.left, insets.top + metrics.getAscent());
+    }
+
+} // end of StatusBar class
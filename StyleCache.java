@@ -0,0 +1,147 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.awt.geom.Point2D;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// StyleCache hands out one canonical instance for every distinct stroke and paint, so
+// shapes drawn with the same settings share a single BasicStroke or GradientPaint. That
+// saves the duplicate objects, and lets Graphics2D skip revalidating its paint state
+// when consecutive shapes pass it the very same instance.
+//
+// BasicStroke and Color already compare by value; a GradientPaint is keyed by its points,
+// colors and cycle flag. Other kinds of stroke or paint are returned unchanged. The
+// cache holds at most a fixed number of entries of each kind and drops the least
+// recently used; shapes keep the instances they were given, so eviction only means the
+// next equal request gets a new canonical instance.
+class StyleCache {
+
+    static final int DEFAULT_CAPACITY = 256; // entries of each kind
+
+    static final StyleCache SHARED = new StyleCache(DEFAULT_CAPACITY); // used by the whole application
+
+    private final Map<Object, Stroke> strokes; // in least recently used order
+    private final Map<Object, Paint> paints;
+    private long hits; // requests answered with an existing instance
+    private long misses; // requests whose instance became the canonical one
+    private long evictions;
+
+    public StyleCache(int capacity) {
+        strokes = new LruMap<>(capacity);
+        paints = new LruMap<>(capacity);
+    }
+
+    // Returns the canonical stroke equal to the given one
+    public synchronized Stroke intern(Stroke stroke) {
+        if( !(stroke instanceof BasicStroke) )
+            return stroke;
+        return lookUp(strokes, stroke, stroke);
+    }
+
+    // Returns the canonical paint equal to the given one
+    public synchronized Paint intern(Paint paint) {
+        if( paint instanceof Color )
+            return lookUp(paints, paint, paint);
+        if( paint instanceof GradientPaint )
+            return lookUp(paints, new GradientKey((GradientPaint) paint), paint);
+        return paint;
+    }
+
+    // Returns the canonical stroke with the given parameters
+    public Stroke stroke(float width, int cap, int join, float miterLimit, float[] dashes, float dashPhase) {
+        if( dashes == null )
+            return intern(new BasicStroke(width, cap, join, miterLimit));
+        return intern(new BasicStroke(width, cap, join, miterLimit, dashes, dashPhase));
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Number of canonical strokes and paints held
+    public synchronized int size() {
+        return strokes.size() + paints.size();
+    }
+
+    private <T> T lookUp(Map<Object, T> table, Object key, T candidate) {
+        T canonical = table.get(key); // moves the entry to the most recently used end
+        if( canonical != null ) {
+            hits++;
+            return canonical;
+        }
+        misses++;
+        table.put(key, candidate);
+        return candidate;
+    }
+
+
+    // LruMap is a LinkedHashMap in access order that drops its eldest entry when full
+    private class LruMap<T> extends LinkedHashMap<Object, T> {
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, T> eldest) {
+            if( size() <= capacity )
+                return false;
+            evictions++;
+            return true;
+        }
+    } // end of inner class LruMap
+
+
+    // GradientKey compares gradients by value, GradientPaint itself only by identity
+    private static final class GradientKey {
+
+        private final Point2D point1;
+        private final Point2D point2;
+        private final Color color1;
+        private final Color color2;
+        private final boolean cyclic;
+
+        GradientKey(GradientPaint paint) {
+            point1 = paint.getPoint1();
+            point2 = paint.getPoint2();
+            color1 = paint.getColor1();
+            color2 = paint.getColor2();
+            cyclic = paint.isCyclic();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if( !(other instanceof GradientKey) )
+                return false;
+            GradientKey key = (GradientKey) other;
+            return point1.equals(key.point1) && point2.equals(key.point2) && color1.equals(key.color1)
+                    && color2.equals(key.color2) && cyclic == key.cyclic;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = point1.hashCode();
+            hash = 31 * hash + point2.hashCode();
+            hash = 31 * hash + color1.hashCode();
+            hash = 31 * hash + color2.hashCode();
+            return 31 * hash + (cyclic ? 1 : 0);
+        }
+    } // end of inner class GradientKey
+
+} // end of StyleCache class
@@ -0,0 +1,179 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+// TextDrawingFormat reads and writes drawings as plain text, one shape per line:
+//
+//     <line|oval|rectangle|freehand> x1 y1 x2 y2 <filled 0|1> width cap join <dashes|-> <paint> [points]
+//
+// dashes is a comma separated dash array, paint is either a color (#rrggbb) or the two
+// colors of a gradient built the way ColorButtonHandler builds it (#rrggbb:#rrggbb).
+// A freehand line ends with its points as comma separated x,y pairs, its x1 to y2 are the
+// box around them and only informative. Blank lines and lines starting with # are ignored.
+class TextDrawingFormat {
+
+    static final String EXTENSION = ".drawing";
+    private static final String[] TYPE_NAMES = {"line", "oval", "rectangle", "freehand"};
+
+    private TextDrawingFormat() {
+    }
+
+    public static List<MyShape> read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<MyShape> shapes = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+
+        while( (line = reader.readLine()) != null ) {
+            lineNumber++;
+            line = line.trim();
+            if( line.isEmpty() || line.startsWith("#") )
+                continue;
+
+            String[] fields = line.split("\\s+");
+            int expected = fields[0].equals("freehand") ? 12 : 11;
+            if( fields.length != expected )
+                throw new IOException("line " + lineNumber + ": expected " + expected + " fields, found "
+                        + fields.length);
+
+            try {
+                int x1 = Integer.parseInt(fields[1]);
+                int y1 = Integer.parseInt(fields[2]);
+                int x2 = Integer.parseInt(fields[3]);
+                int y2 = Integer.parseInt(fields[4]);
+                boolean filled = fields[5].equals("1");
+                Stroke stroke = parseStroke(fields[6], fields[7], fields[8], fields[9]);
+                Paint paint = parsePaint(fields[10]);
+
+                switch( fields[0] ) {
+                    case "line":
+                        shapes.add(new MyLine(paint, stroke, x1, y1, x2, y2));
+                        break;
+                    case "oval":
+                        shapes.add(new MyOval(paint, stroke, x1, y1, x2, y2, filled));
+                        break;
+                    case "rectangle":
+                        shapes.add(new MyRectangle(paint, stroke, x1, y1, x2, y2, filled));
+                        break;
+                    case "freehand":
+                        shapes.add(new MyFreehand(paint, stroke, parsePoints(fields[11])));
+                        break;
+                    default:
+                        throw new IOException("line " + lineNumber + ": unknown shape " + fields[0]);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return shapes;
+    } // end of read
+
+    public static void write(ShapeStore shapes, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        for( int i = 0; i < shapes.size(); i++ ) {
+            line.setLength(0);
+            line.append(TYPE_NAMES[shapes.getType(i)]).append(' ')
+                    .append(shapes.getX1(i)).append(' ').append(shapes.getY1(i)).append(' ')
+                    .append(shapes.getX2(i)).append(' ').append(shapes.getY2(i)).append(' ')
+                    .append(shapes.isFilled(i) ? '1' : '0').append(' ');
+            appendStroke(line, shapes.getStroke(i));
+            line.append(' ');
+            appendPaint(line, shapes.getPaint(i));
+            if( shapes.getType(i) == ShapeStore.FREEHAND )
+                appendPoints(line.append(' '), shapes.getPoints(i));
+            line.append('\n');
+            out.write(line.toString());
+        }
+        out.flush();
+    } // end of write
+
+    // Strokes and paints are interned, a drawing repeats the same few on many lines
+    private static Stroke parseStroke(String width, String cap, String join, String dashes) {
+        if( dashes.equals("-") )
+            return StyleCache.SHARED.intern(new BasicStroke(Float.parseFloat(width),
+                    Integer.parseInt(cap), Integer.parseInt(join)));
+
+        String[] parts = dashes.split(",");
+        float[] dashArray = new float[parts.length];
+        for( int i = 0; i < parts.length; i++ )
+            dashArray[i] = Float.parseFloat(parts[i]);
+        return StyleCache.SHARED.intern(new BasicStroke(Float.parseFloat(width), Integer.parseInt(cap),
+                Integer.parseInt(join), 10, dashArray, 0));
+    }
+
+    private static int[] parsePoints(String points) {
+        String[] parts = points.split(",");
+        if( parts.length < 4 || parts.length % 2 != 0 )
+            throw new IllegalArgumentException("expected x,y pairs for at least two points: " + points);
+        int[] values = new int[parts.length];
+        for( int i = 0; i < parts.length; i++ )
+            values[i] = Integer.parseInt(parts[i]);
+        return values;
+    }
+
+    private static Paint parsePaint(String paint) {
+        int split = paint.indexOf(':');
+        if( split < 0 )
+            return StyleCache.SHARED.intern(Color.decode(paint));
+        return StyleCache.SHARED.intern(new GradientPaint(0, 0, Color.decode(paint.substring(0, split)),
+                50, 50, Color.decode(paint.substring(split + 1)), true));
+    }
+
+    private static void appendStroke(StringBuilder line, Stroke stroke) {
+        if( !(stroke instanceof BasicStroke) )
+            throw new IllegalArgumentException("only BasicStroke can be written: " + stroke);
+
+        BasicStroke basic = (BasicStroke) stroke;
+        line.append(basic.getLineWidth()).append(' ').append(basic.getEndCap()).append(' ')
+                .append(basic.getLineJoin()).append(' ');
+
+        float[] dashes = basic.getDashArray();
+        if( dashes == null ) {
+            line.append('-');
+            return;
+        }
+        for( int i = 0; i < dashes.length; i++ ) {
+            if( i > 0 )
+                line.append(',');
+            line.append(dashes[i]);
+        }
+    }
+
+    private static void appendPoints(StringBuilder line, int[] points) {
+        for( int i = 0; i < points.length; i++ ) {
+            if( i > 0 )
+                line.append(',');
+            line.append(points[i]);
+        }
+    }
+
+    private static void appendPaint(StringBuilder line, Paint paint) {
+        if( paint instanceof Color ) {
+            appendColor(line, (Color) paint);
+        }
+        else if( paint instanceof GradientPaint ) {
+            appendColor(line, ((GradientPaint) paint).getColor1());
+            line.append(':');
+            appendColor(line, ((GradientPaint) paint).getColor2());
+        }
+        else {
+            throw new IllegalArgumentException("only Color and GradientPaint can be written: " + paint);
+        }
+    }
+
+    private static void appendColor(StringBuilder line, Color color) {
+        line.append(String.format("#%06x", color.getRGB() & 0xFFFFFF));
+    }
+
+} // end of TextDrawingFormat class
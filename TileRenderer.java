@@ -0,0 +1,200 @@
+package drawingapplication;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// TileRenderer splits a large canvas into square tiles and rasterizes them in parallel on
+// a ForkJoinPool. Each tile is drawn by its own Graphics2D clipped to the tile, from only
+// the shapes whose bounds reach it; tiles never overlap, so the workers composite straight
+// into the shared canvas. The result is pixel-identical to drawing every shape on one
+// Graphics2D.
+//
+// A few shapes come out differently when a clip edge cuts them, see isClipSensitive. Such
+// a shape is a barrier for the tiles it reaches: each of them stops when it gets to the
+// shape, and the last one to get there draws it once, straight onto the canvas and clipped
+// only to those tiles together, and sets the others going again.
+class TileRenderer {
+
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    private final List<MyShape> shapes;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int columns; // number of tiles across the canvas
+    private final int rows; // number of tiles down the canvas
+    // what each tile draws in drawing order: shape indexes, or -1 - barrier for a barrier
+    private final IntList[] tileShapes;
+    private final IntList barrierShapes; // the shape index of each barrier
+    private AtomicIntegerArray arrivals; // tiles each barrier still waits for
+    private final int[] next; // how far each tile has got through its list
+    private final Graphics2D[] tileGraphics; // each tile's Graphics2D while it is being drawn
+    private final BufferedImage canvas;
+    private final ForkJoinPool pool;
+    private final AtomicInteger unfinished; // tiles not yet through their lists
+    private final CompletableFuture<Void> done;
+
+    private TileRenderer(List<MyShape> shapes, int width, int height, ForkJoinPool pool, int tileSize) {
+        this.shapes = shapes;
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        this.tileSize = tileSize;
+        columns = (width + tileSize - 1) / tileSize;
+        rows = (height + tileSize - 1) / tileSize;
+        tileShapes = new IntList[columns * rows];
+        barrierShapes = new IntList();
+        next = new int[tileShapes.length];
+        tileGraphics = new Graphics2D[tileShapes.length];
+        canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        unfinished = new AtomicInteger(tileShapes.length);
+        done = new CompletableFuture<>();
+    }
+
+    public static BufferedImage render(List<MyShape> shapes, int width, int height) {
+        return render(shapes, width, height, ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+    }
+
+    public static BufferedImage render(List<MyShape> shapes, int width, int height,
+            ForkJoinPool pool, int tileSize) {
+        TileRenderer renderer = new TileRenderer(shapes, width, height, pool, tileSize);
+        renderer.binShapes();
+        for( int tile = 0; tile < renderer.tileShapes.length; tile++ )
+            renderer.start(tile);
+        try {
+            renderer.done.join();
+        } catch (CompletionException e) {
+            if( e.getCause() instanceof Error )
+                throw (Error) e.getCause();
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return renderer.canvas;
+    }
+
+    // Sorts the shapes into the tiles their bounds reach, keeping drawing order in each tile
+    private void binShapes() {
+        for( int i = 0; i < tileShapes.length; i++ )
+            tileShapes[i] = new IntList();
+        IntList barrierTiles = new IntList(); // how many tiles each barrier waits for
+
+        for( int i = 0; i < shapes.size(); i++ ) {
+            MyShape shape = shapes.get(i);
+            ShapeBounds b = shape.getBounds();
+            int firstColumn = Math.max((b.smallX - b.padding) / tileSize, 0);
+            int lastColumn = Math.min((b.smallX + b.width + b.padding) / tileSize, columns - 1);
+            int firstRow = Math.max((b.smallY - b.padding) / tileSize, 0);
+            int lastRow = Math.min((b.smallY + b.height + b.padding) / tileSize, rows - 1);
+            if( firstColumn > lastColumn || firstRow > lastRow )
+                continue; // off the canvas
+
+            // a clip-sensitive shape that a tile's clip would cut becomes a barrier
+            int entry = i;
+            if( isClipSensitive(shape) && !tileArea(firstRow * columns + firstColumn).contains(b.toRectangle()) ) {
+                entry = -1 - barrierShapes.size();
+                barrierShapes.add(i);
+                barrierTiles.add((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1));
+            }
+            for( int row = firstRow; row <= lastRow; row++ ) {
+                for( int col = firstColumn; col <= lastColumn; col++ )
+                    tileShapes[row * columns + col].add(entry);
+            }
+        }
+
+        arrivals = new AtomicIntegerArray(barrierTiles.size());
+        for( int i = 0; i < barrierTiles.size(); i++ )
+            arrivals.set(i, barrierTiles.get(i));
+    } // end of binShapes
+
+    private Rectangle tileArea(int tile) {
+        return new Rectangle((tile % columns) * tileSize, (tile / columns) * tileSize, tileSize, tileSize);
+    }
+
+    // Draws the tile from where it stopped, on a worker of the pool
+    private void start(int tile) {
+        pool.execute(() -> {
+            try {
+                renderTile(tile);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        });
+    }
+
+    // Draws the tile's shapes through its own Graphics2D clipped to the tile, until the
+    // list ends or a barrier has to wait for other tiles. Drawing on the shared canvas
+    // rather than a translated tile image keeps every shape at the same device coordinates
+    // as a single-threaded render, which wide curved strokes depend on.
+    private void renderTile(int tile) {
+        Graphics2D g = tileGraphics[tile];
+        if( g == null ) {
+            Rectangle area = tileArea(tile);
+            g = canvas.createGraphics();
+            g.clip(area);
+            g.setColor(Color.WHITE);
+            g.fillRect(area.x, area.y, area.width, area.height);
+            tileGraphics[tile] = g;
+        }
+
+        IntList entries = tileShapes[tile];
+        while( next[tile] < entries.size() ) {
+            int entry = entries.get(next[tile]++);
+            if( entry >= 0 ) {
+                shapes.get(entry).draw(g);
+                continue;
+            }
+            // the last tile to reach a barrier draws it, the others stop until it has
+            if( arrivals.decrementAndGet(-1 - entry) > 0 )
+                return;
+            drawBarrier(barrierShapes.get(-1 - entry), tile);
+        }
+
+        g.dispose();
+        tileGraphics[tile] = null;
+        if( unfinished.decrementAndGet() == 0 )
+            done.complete(null);
+    } // end of renderTile
+
+    // Some pixels Java2D picks depend on where a clip edge cuts the shape: the curve and
+    // path walkers behind ovals and freehand strokes, and the gradient context, which steps
+    // its colors in floating point from the first pixel of each span it is asked for. Only
+    // lines and rectangles in a plain color come out the same whatever the clip.
+    private static boolean isClipSensitive(MyShape shape) {
+        if( !(shape.getShapeColor() instanceof Color) )
+            return true;
+        return !(shape instanceof MyLine) && !(shape instanceof MyRectangle);
+    }
+
+    // Draws the shape on the canvas clipped to the tiles it reaches, which are all stopped
+    // at it, so it is clipped and placed exactly as in a single-threaded render, then sets
+    // those tiles going again. The tile that called this carries on by itself.
+    private void drawBarrier(int index, int caller) {
+        MyShape shape = shapes.get(index);
+        ShapeBounds b = shape.getBounds();
+        int firstColumn = Math.max((b.smallX - b.padding) / tileSize, 0);
+        int lastColumn = Math.min((b.smallX + b.width + b.padding) / tileSize, columns - 1);
+        int firstRow = Math.max((b.smallY - b.padding) / tileSize, 0);
+        int lastRow = Math.min((b.smallY + b.height + b.padding) / tileSize, rows - 1);
+
+        Graphics2D g = canvas.createGraphics();
+        g.clipRect(firstColumn * tileSize, firstRow * tileSize, (lastColumn - firstColumn + 1) * tileSize,
+                (lastRow - firstRow + 1) * tileSize);
+        shape.draw(g);
+        g.dispose();
+
+        for( int row = firstRow; row <= lastRow; row++ ) {
+            for( int col = firstColumn; col <= lastColumn; col++ ) {
+                if( row * columns + col != caller )
+                    start(row * columns + col);
+            }
+        }
+    } // end of drawBarrier
+
+} // end of TileRenderer class
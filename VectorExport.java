@@ -0,0 +1,688 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+// VectorExport writes a drawing as an SVG or a PDF file for other programs to use. Both
+// are streamed straight from the shape store, one shape at a time, so exporting takes
+// the same small amount of memory however many shapes there are.
+//
+// Lines, rectangles and ovals map to the matching SVG elements and PDF path operators,
+// BasicStroke widths, caps, joins and dash arrays to their stroke properties, and a
+// GradientPaint to a linear gradient, reflected when it is cyclic. The store already
+// keeps each distinct stroke and paint once, so each is defined once, as SVG classes and
+// gradients or as PDF operators and patterns, and the shapes refer to it. A stroke
+// narrower than a pixel is drawn a pixel wide, as Java2D draws it.
+class VectorExport {
+
+    static final String SVG_EXTENSION = ".svg";
+    static final String PDF_EXTENSION = ".pdf";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double KAPPA = 0.5522847498; // control point distance of a quarter ellipse bezier
+    private static final String[] CAPS = {"butt", "round", "square"}; // by BasicStroke cap
+    private static final String[] JOINS = {"miter", "round", "bevel"}; // by BasicStroke join
+
+    private VectorExport() {
+    }
+
+    // Writes the drawing to the file, as PDF if its name ends in .pdf and SVG otherwise.
+    // The file is only replaced once the export is complete.
+    public static void export(ShapeStore shapes, Rectangle area, Path file) throws IOException {
+        DrawingFile.replace(file, out -> {
+            if( file.getFileName().toString().toLowerCase().endsWith(PDF_EXTENSION) )
+                writePdf(shapes, area, out);
+            else
+                writeSvg(shapes, area, out);
+        });
+    }
+
+    // Returns the area to export: the given one, grown to take in every shape in the store
+    public static Rectangle drawingArea(ShapeStore shapes, Rectangle visible) {
+        Rectangle area = new Rectangle(visible);
+        Rectangle bounds = new Rectangle();
+        for( int i = 0; i < shapes.size(); i++ ) {
+            shapes.getBounds(i, bounds);
+            area.add(bounds);
+        }
+        return area;
+    }
+
+    // Writes the shapes as an SVG document showing the given drawing area on white
+    public static void writeSvg(ShapeStore shapes, Rectangle area, OutputStream stream) throws IOException {
+        AsciiOutput out = new AsciiOutput(stream);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(area.width)
+                .append("\" height=\"").append(area.height).append("\" viewBox=\"").append(area.x).append(' ')
+                .append(area.y).append(' ').append(area.width).append(' ').append(area.height).append("\">\n");
+
+        // one gradient per GradientPaint, then a class per stroke (s), stroke paint (c)
+        // and fill paint (f)
+        List<Stroke> strokes = shapes.getStrokeTable();
+        List<Paint> paints = shapes.getPaintTable();
+        out.append("<defs>\n");
+        for( int i = 0; i < paints.size(); i++ ) {
+            if( paints.get(i) instanceof GradientPaint )
+                appendSvgGradient(out, i, (GradientPaint) paints.get(i));
+        }
+        out.append("<style>\nline,polyline,rect,ellipse{fill:none}\n");
+        for( int i = 0; i < strokes.size(); i++ )
+            appendSvgStroke(out, i, basicStroke(strokes.get(i)));
+        for( int i = 0; i < paints.size(); i++ ) {
+            appendSvgPaint(out, 'c', "stroke", i, paints.get(i));
+            appendSvgPaint(out, 'f', "fill", i, paints.get(i));
+        }
+        out.append("</style>\n</defs>\n");
+
+        out.append("<rect x=\"").append(area.x).append("\" y=\"").append(area.y).append("\" width=\"")
+                .append(area.width).append("\" height=\"").append(area.height).append("\" style=\"fill:#fff\"/>\n");
+
+        for( int i = 0; i < shapes.size(); i++ )
+            appendSvgShape(out, shapes, i);
+        out.append("</svg>\n");
+        out.flush();
+    } // end of writeSvg
+
+    private static void appendSvgShape(AsciiOutput out, ShapeStore shapes, int index) throws IOException {
+        int x1 = shapes.getX1(index);
+        int y1 = shapes.getY1(index);
+        int x2 = shapes.getX2(index);
+        int y2 = shapes.getY2(index);
+        int type = shapes.getType(index);
+        boolean filled = shapes.isFilled(index) && type != ShapeStore.LINE;
+
+        if( type == ShapeStore.LINE ) {
+            out.append("<line x1=\"").append(x1).append("\" y1=\"").append(y1)
+                    .append("\" x2=\"").append(x2).append("\" y2=\"").append(y2);
+        }
+        else if( type == ShapeStore.FREEHAND ) {
+            int[] points = shapes.getPoints(index);
+            out.append("<polyline points=\"");
+            for( int i = 0; i < points.length; i += 2 ) {
+                if( i > 0 )
+                    out.append(' ');
+                out.append(points[i]).append(',').append(points[i + 1]);
+            }
+        }
+        else if( type == ShapeStore.OVAL ) {
+            out.append("<ellipse cx=\"");
+            appendNumber(out, (x1 + x2) / 2.0);
+            out.append("\" cy=\"");
+            appendNumber(out, (y1 + y2) / 2.0);
+            out.append("\" rx=\"");
+            appendNumber(out, Math.abs(x1 - x2) / 2.0);
+            out.append("\" ry=\"");
+            appendNumber(out, Math.abs(y1 - y2) / 2.0);
+        }
+        else {
+            out.append("<rect x=\"").append(Math.min(x1, x2)).append("\" y=\"").append(Math.min(y1, y2))
+                    .append("\" width=\"").append(Math.abs(x1 - x2))
+                    .append("\" height=\"").append(Math.abs(y1 - y2));
+        }
+
+        // a filled shape is only filled, as Java2D does not outline it
+        out.append("\" class=\"");
+        if( filled )
+            out.append('f').append(shapes.getPaintIndex(index));
+        else
+            out.append('s').append(shapes.getStrokeIndex(index)).append(" c").append(shapes.getPaintIndex(index));
+        out.append("\"/>\n");
+    } // end of appendSvgShape
+
+    private static void appendSvgStroke(AsciiOutput out, int index, BasicStroke stroke) throws IOException {
+        out.append(".s").append(index).append("{stroke-width:");
+        appendNumber(out, Math.max(stroke.getLineWidth(), 1));
+        out.append(";stroke-linecap:").append(CAPS[stroke.getEndCap()])
+                .append(";stroke-linejoin:").append(JOINS[stroke.getLineJoin()]);
+        if( stroke.getLineJoin() == BasicStroke.JOIN_MITER ) {
+            out.append(";stroke-miterlimit:");
+            appendNumber(out, stroke.getMiterLimit());
+        }
+        float[] dashes = stroke.getDashArray();
+        if( dashes != null ) {
+            out.append(";stroke-dasharray:");
+            for( int i = 0; i < dashes.length; i++ ) {
+                if( i > 0 )
+                    out.append(' ');
+                appendNumber(out, dashes[i]);
+            }
+            if( stroke.getDashPhase() != 0 ) {
+                out.append(";stroke-dashoffset:");
+                appendNumber(out, stroke.getDashPhase());
+            }
+        }
+        out.append("}\n");
+    } // end of appendSvgStroke
+
+    private static void appendSvgPaint(AsciiOutput out, char prefix, String property, int index, Paint paint)
+            throws IOException {
+        out.append('.').append(prefix).append(index).append('{').append(property).append(':');
+        if( paint instanceof GradientPaint ) {
+            out.append("url(#g").append(index).append(")}\n");
+            return;
+        }
+        Color color = (Color) checkPaint(paint);
+        appendHexColor(out, color);
+        if( color.getAlpha() != 255 ) {
+            out.append(';').append(property).append("-opacity:");
+            appendNumber(out, color.getAlpha() / 255.0);
+        }
+        out.append("}\n");
+    }
+
+    private static void appendSvgGradient(AsciiOutput out, int index, GradientPaint gradient) throws IOException {
+        out.append("<linearGradient id=\"g").append(index).append("\" gradientUnits=\"userSpaceOnUse\" x1=\"");
+        appendNumber(out, gradient.getPoint1().getX());
+        out.append("\" y1=\"");
+        appendNumber(out, gradient.getPoint1().getY());
+        out.append("\" x2=\"");
+        appendNumber(out, gradient.getPoint2().getX());
+        out.append("\" y2=\"");
+        appendNumber(out, gradient.getPoint2().getY());
+        out.append("\" spreadMethod=\"").append(gradient.isCyclic() ? "reflect" : "pad").append("\">");
+        appendSvgStop(out, 0, gradient.getColor1());
+        appendSvgStop(out, 1, gradient.getColor2());
+        out.append("</linearGradient>\n");
+    }
+
+    private static void appendSvgStop(AsciiOutput out, int offset, Color color) throws IOException {
+        out.append("<stop offset=\"").append(offset).append("\" stop-color=\"");
+        appendHexColor(out, color);
+        if( color.getAlpha() != 255 ) {
+            out.append("\" stop-opacity=\"");
+            appendNumber(out, color.getAlpha() / 255.0);
+        }
+        out.append("\"/>");
+    }
+
+    // Writes the shapes as a one page PDF document showing the given drawing area on
+    // white. The byte offsets the cross reference table needs are counted on the way out,
+    // and the content's length, only known at its end, follows it as an object of its own.
+    public static void writePdf(ShapeStore shapes, Rectangle area, OutputStream stream) throws IOException {
+        AsciiOutput out = new AsciiOutput(stream);
+        List<Paint> paints = shapes.getPaintTable();
+
+        // objects 1 to 5 are the catalog, the page tree, the page, its content and the
+        // content's length, then come a pattern per gradient and a graphics state per alpha
+        int[] patternObjects = new int[paints.size()];
+        int[] alphaStates = new int[256];
+        int objectCount = 5;
+        boolean translucent = false;
+        for( int i = 0; i < paints.size(); i++ ) {
+            Paint paint = checkPaint(paints.get(i));
+            if( paint instanceof GradientPaint ) {
+                patternObjects[i] = ++objectCount;
+            }
+            else if( ((Color) paint).getAlpha() != 255 ) {
+                translucent = true;
+                if( alphaStates[((Color) paint).getAlpha()] == 0 )
+                    alphaStates[((Color) paint).getAlpha()] = ++objectCount;
+            }
+        }
+        if( translucent )
+            alphaStates[255] = ++objectCount; // to go back to opaque after a translucent shape
+        long[] offsets = new long[objectCount + 1];
+
+        out.append("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n"); // high bytes mark the file as binary
+        offsets[1] = out.startObject(1);
+        out.append("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        offsets[2] = out.startObject(2);
+        out.append("<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+
+        offsets[3] = out.startObject(3);
+        out.append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ").append(area.width).append(' ')
+                .append(area.height).append("] /Contents 4 0 R /Resources << /Pattern <<");
+        for( int i = 0; i < paints.size(); i++ ) {
+            if( patternObjects[i] != 0 )
+                out.append(" /P").append(i).append(' ').append(patternObjects[i]).append(" 0 R");
+        }
+        out.append(" >> /ExtGState <<");
+        for( int alpha = 0; alpha < alphaStates.length; alpha++ ) {
+            if( alphaStates[alpha] != 0 )
+                out.append(" /A").append(alpha).append(' ').append(alphaStates[alpha]).append(" 0 R");
+        }
+        out.append(" >> >> >>\nendobj\n");
+
+        // the content, in drawing coordinates with y growing downwards as on screen. It is
+        // left uncompressed: deflating it made the file a third the size but the export
+        // over three times slower, far below the speed of writing to disk.
+        offsets[4] = out.startObject(4);
+        out.append("<< /Length 5 0 R >>\nstream\n");
+        long contentStart = out.getCount();
+        out.append("1 0 0 -1 0 ").append(area.height).append(" cm 1 0 0 1 ").append(-area.x).append(' ')
+                .append(-area.y).append(" cm\n1 g ").append(area.x).append(' ').append(area.y).append(' ')
+                .append(area.width).append(' ').append(area.height).append(" re f\n");
+        PdfState state = new PdfState(shapes);
+        for( int i = 0; i < shapes.size(); i++ )
+            appendPdfShape(out, shapes, i, state);
+        long contentLength = out.getCount() - contentStart;
+        out.append("\nendstream\nendobj\n");
+        offsets[5] = out.startObject(5);
+        out.append(contentLength).append("\nendobj\n");
+
+        for( int i = 0; i < paints.size(); i++ ) {
+            if( patternObjects[i] != 0 ) {
+                offsets[patternObjects[i]] = out.startObject(patternObjects[i]);
+                appendPdfPattern(out, (GradientPaint) paints.get(i), area);
+            }
+        }
+        for( int alpha = 0; alpha < alphaStates.length; alpha++ ) {
+            if( alphaStates[alpha] != 0 ) {
+                offsets[alphaStates[alpha]] = out.startObject(alphaStates[alpha]);
+                out.append("<< /Type /ExtGState /CA ");
+                appendNumber(out, alpha / 255.0);
+                out.append(" /ca ");
+                appendNumber(out, alpha / 255.0);
+                out.append(" >>\nendobj\n");
+            }
+        }
+
+        long xref = out.getCount();
+        out.append("xref\n0 ").append(objectCount + 1).append("\n0000000000 65535 f \n");
+        for( int i = 1; i <= objectCount; i++ )
+            out.append(String.format("%010d 00000 n \n", offsets[i])); // once per object
+        out.append("trailer\n<< /Size ").append(objectCount + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                .append(xref).append("\n%%EOF\n");
+        out.flush();
+    } // end of writePdf
+
+    // Appends the operators drawing one shape, setting only the parts of the graphics
+    // state that differ from the shape before
+    private static void appendPdfShape(AsciiOutput out, ShapeStore shapes, int index, PdfState state)
+            throws IOException {
+        int x1 = shapes.getX1(index);
+        int y1 = shapes.getY1(index);
+        int x2 = shapes.getX2(index);
+        int y2 = shapes.getY2(index);
+        int type = shapes.getType(index);
+        boolean filled = shapes.isFilled(index) && type != ShapeStore.LINE;
+        int paintIndex = shapes.getPaintIndex(index);
+
+        if( filled ) {
+            if( paintIndex != state.fillPaint ) {
+                state.fillPaint = paintIndex;
+                out.write(state.fillOperators[paintIndex]);
+            }
+        }
+        else {
+            if( shapes.getStrokeIndex(index) != state.stroke ) {
+                state.stroke = shapes.getStrokeIndex(index);
+                out.write(state.strokeOperators[state.stroke]);
+            }
+            if( paintIndex != state.strokePaint ) {
+                state.strokePaint = paintIndex;
+                out.write(state.strokeColorOperators[paintIndex]);
+            }
+        }
+        if( state.alphas[paintIndex] != state.alpha ) {
+            state.alpha = state.alphas[paintIndex];
+            out.append("/A").append(state.alpha).append(" gs\n");
+        }
+
+        int smallX = Math.min(x1, x2);
+        int smallY = Math.min(y1, y2);
+        int width = Math.abs(x1 - x2);
+        int height = Math.abs(y1 - y2);
+        if( type == ShapeStore.LINE ) {
+            out.append(x1).append(' ').append(y1).append(" m ").append(x2).append(' ').append(y2).append(" l");
+        }
+        else if( type == ShapeStore.FREEHAND ) {
+            int[] points = shapes.getPoints(index);
+            out.append(points[0]).append(' ').append(points[1]).append(" m");
+            for( int i = 2; i < points.length; i += 2 )
+                out.append(' ').append(points[i]).append(' ').append(points[i + 1]).append(" l");
+        }
+        else if( type == ShapeStore.RECTANGLE ) {
+            out.append(smallX).append(' ').append(smallY).append(' ').append(width).append(' ').append(height)
+                    .append(" re");
+        }
+        else {
+            appendPdfEllipse(out, smallX + width / 2.0, smallY + height / 2.0, width / 2.0, height / 2.0);
+        }
+        out.append(filled ? " f\n" : " S\n");
+    } // end of appendPdfShape
+
+    private static void appendPdfStroke(AsciiOutput out, BasicStroke stroke) throws IOException {
+        appendNumber(out, stroke.getLineWidth()); // 0 is the thinnest line, as in Java2D
+        out.append(" w ").append(stroke.getEndCap()).append(" J ").append(stroke.getLineJoin()).append(" j ");
+        appendNumber(out, stroke.getMiterLimit());
+        out.append(" M [");
+        float[] dashes = stroke.getDashArray();
+        for( int i = 0; dashes != null && i < dashes.length; i++ ) {
+            if( i > 0 )
+                out.append(' ');
+            appendNumber(out, dashes[i]);
+        }
+        out.append("] ");
+        appendNumber(out, dashes == null ? 0 : stroke.getDashPhase());
+        out.append(" d\n");
+    }
+
+    private static void appendPdfPaint(AsciiOutput out, int index, Paint paint, boolean fill) throws IOException {
+        if( paint instanceof GradientPaint ) {
+            out.append(fill ? "/Pattern cs /P" : "/Pattern CS /P").append(index).append(fill ? " scn\n" : " SCN\n");
+            return;
+        }
+        Color color = (Color) paint;
+        appendNumber(out, color.getRed() / 255.0);
+        out.append(' ');
+        appendNumber(out, color.getGreen() / 255.0);
+        out.append(' ');
+        appendNumber(out, color.getBlue() / 255.0);
+        out.append(fill ? " rg\n" : " RG\n");
+    }
+
+    // Four bezier curves around the ellipse, the way Java2D builds an Ellipse2D's path
+    private static void appendPdfEllipse(AsciiOutput out, double cx, double cy, double rx, double ry)
+            throws IOException {
+        double kx = rx * KAPPA;
+        double ky = ry * KAPPA;
+        appendPoint(out, cx + rx, cy);
+        out.append(" m ");
+        appendCurve(out, cx + rx, cy + ky, cx + kx, cy + ry, cx, cy + ry);
+        appendCurve(out, cx - kx, cy + ry, cx - rx, cy + ky, cx - rx, cy);
+        appendCurve(out, cx - rx, cy - ky, cx - kx, cy - ry, cx, cy - ry);
+        appendCurve(out, cx + kx, cy - ry, cx + rx, cy - ky, cx + rx, cy);
+        out.append('h');
+    }
+
+    private static void appendCurve(AsciiOutput out, double x1, double y1, double x2, double y2,
+            double x3, double y3) throws IOException {
+        appendPoint(out, x1, y1);
+        out.append(' ');
+        appendPoint(out, x2, y2);
+        out.append(' ');
+        appendPoint(out, x3, y3);
+        out.append(" c ");
+    }
+
+    private static void appendPoint(AsciiOutput out, double x, double y) throws IOException {
+        appendNumber(out, x);
+        out.append(' ');
+        appendNumber(out, y);
+    }
+
+    // An axial shading pattern along the gradient's two points. Past them a plain gradient
+    // keeps its end colors; a cyclic one is stitched from enough repeats, alternating in
+    // direction, to cover the page. The pattern is placed in the page's own coordinates,
+    // so it carries the same flip to drawing coordinates as the content. The colors'
+    // alpha is dropped, as a translucent shading needs a soft mask.
+    private static void appendPdfPattern(AsciiOutput out, GradientPaint gradient, Rectangle area)
+            throws IOException {
+        double x1 = gradient.getPoint1().getX();
+        double y1 = gradient.getPoint1().getY();
+        double dx = gradient.getPoint2().getX() - x1;
+        double dy = gradient.getPoint2().getY() - y1;
+
+        int before = 0; // repeats before point 1 and after point 2
+        int after = 0;
+        double length2 = dx * dx + dy * dy;
+        if( gradient.isCyclic() && length2 > 0 ) {
+            // the positions of the page corners along the gradient, in repeats from point 1
+            double low = Double.MAX_VALUE;
+            double high = -Double.MAX_VALUE;
+            for( int corner = 0; corner < 4; corner++ ) {
+                double x = (corner & 1) == 0 ? area.x : area.x + area.width;
+                double y = (corner & 2) == 0 ? area.y : area.y + area.height;
+                double t = ((x - x1) * dx + (y - y1) * dy) / length2;
+                low = Math.min(low, t);
+                high = Math.max(high, t);
+            }
+            before = (int) Math.max(0, Math.ceil(-low));
+            after = (int) Math.max(0, Math.ceil(high - 1));
+        }
+        int repeats = before + 1 + after;
+
+        out.append("<< /PatternType 2 /Matrix [1 0 0 -1 ").append(-area.x).append(' ')
+                .append(area.height + area.y).append("] /Shading << /ShadingType 2 /ColorSpace /DeviceRGB /Coords [");
+        appendPoint(out, x1 - before * dx, y1 - before * dy);
+        out.append(' ');
+        appendPoint(out, x1 + (after + 1) * dx, y1 + (after + 1) * dy);
+        out.append("] /Domain [0 ").append(repeats).append("] /Extend [true true] /Function ");
+
+        if( repeats == 1 ) {
+            appendPdfFunction(out, gradient.getColor1(), gradient.getColor2());
+        }
+        else {
+            out.append("<< /FunctionType 3 /Domain [0 ").append(repeats).append("] /Functions [");
+            for( int i = 0; i < repeats; i++ ) {
+                if( (i - before) % 2 == 0 )
+                    appendPdfFunction(out, gradient.getColor1(), gradient.getColor2());
+                else
+                    appendPdfFunction(out, gradient.getColor2(), gradient.getColor1());
+            }
+            out.append("] /Bounds [");
+            for( int i = 1; i < repeats; i++ )
+                out.append(i).append(i < repeats - 1 ? " " : "");
+            out.append("] /Encode [");
+            for( int i = 0; i < repeats; i++ )
+                out.append(i > 0 ? " 0 1" : "0 1");
+            out.append("] >>");
+        }
+        out.append(" >> >>\nendobj\n");
+    } // end of appendPdfPattern
+
+    private static void appendPdfFunction(AsciiOutput out, Color from, Color to) throws IOException {
+        out.append("<< /FunctionType 2 /Domain [0 1] /N 1 /C0 [");
+        appendRgb(out, from);
+        out.append("] /C1 [");
+        appendRgb(out, to);
+        out.append("] >>");
+    }
+
+    private static void appendRgb(AsciiOutput out, Color color) throws IOException {
+        appendNumber(out, color.getRed() / 255.0);
+        out.append(' ');
+        appendNumber(out, color.getGreen() / 255.0);
+        out.append(' ');
+        appendNumber(out, color.getBlue() / 255.0);
+    }
+
+    private static BasicStroke basicStroke(Stroke stroke) {
+        if( !(stroke instanceof BasicStroke) )
+            throw new IllegalArgumentException("only BasicStroke can be exported: " + stroke);
+        return (BasicStroke) stroke;
+    }
+
+    private static Paint checkPaint(Paint paint) {
+        if( !(paint instanceof Color) && !(paint instanceof GradientPaint) )
+            throw new IllegalArgumentException("only Color and GradientPaint can be exported: " + paint);
+        return paint;
+    }
+
+    private static void appendHexColor(AsciiOutput out, Color color) throws IOException {
+        String hex = Integer.toHexString(color.getRGB() & 0xFFFFFF);
+        out.append('#');
+        for( int i = hex.length(); i < 6; i++ )
+            out.append('0');
+        out.append(hex);
+    }
+
+    // Appends a number with at most three decimals and no trailing zeros, without the
+    // cost of formatting it
+    private static void appendNumber(AsciiOutput out, double value) throws IOException {
+        long thousandths = Math.round(value * 1000);
+        if( thousandths < 0 ) {
+            out.append('-');
+            thousandths = -thousandths;
+        }
+        out.append(thousandths / 1000);
+        int fraction = (int) (thousandths % 1000);
+        if( fraction == 0 )
+            return;
+        out.append('.').append((char) ('0' + fraction / 100));
+        fraction %= 100;
+        if( fraction != 0 ) {
+            out.append((char) ('0' + fraction / 10));
+            if( fraction % 10 != 0 )
+                out.append((char) ('0' + fraction % 10));
+        }
+    }
+
+
+    // PdfState holds the operators setting each stroke and paint, built once per style,
+    // and the graphics state the PDF content has set so far
+    private static final class PdfState {
+
+        final byte[][] strokeOperators; // line width, caps, joins and dashes by stroke index
+        final byte[][] strokeColorOperators; // by paint index
+        final byte[][] fillOperators; // by paint index
+        final int[] alphas; // by paint index
+        int stroke = -1; // stroke index set last
+        int strokePaint = -1; // paint index set last for outlines
+        int fillPaint = -1; // paint index set last for filling
+        int alpha = 255;
+
+        PdfState(ShapeStore shapes) throws IOException {
+            List<Stroke> strokes = shapes.getStrokeTable();
+            List<Paint> paints = shapes.getPaintTable();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            AsciiOutput out = new AsciiOutput(bytes);
+
+            strokeOperators = new byte[strokes.size()][];
+            for( int i = 0; i < strokes.size(); i++ ) {
+                appendPdfStroke(out, basicStroke(strokes.get(i)));
+                strokeOperators[i] = take(out, bytes);
+            }
+            strokeColorOperators = new byte[paints.size()][];
+            fillOperators = new byte[paints.size()][];
+            alphas = new int[paints.size()];
+            for( int i = 0; i < paints.size(); i++ ) {
+                appendPdfPaint(out, i, paints.get(i), false);
+                strokeColorOperators[i] = take(out, bytes);
+                appendPdfPaint(out, i, paints.get(i), true);
+                fillOperators[i] = take(out, bytes);
+                alphas[i] = paints.get(i) instanceof Color ? ((Color) paints.get(i)).getAlpha() : 255;
+            }
+        }
+
+        private static byte[] take(AsciiOutput out, ByteArrayOutputStream bytes) throws IOException {
+            out.flush();
+            byte[] taken = bytes.toByteArray();
+            bytes.reset();
+            return taken;
+        }
+    } // end of inner class PdfState
+
+
+    // AsciiOutput formats text, which here is always ASCII, straight into a byte buffer,
+    // with no String or charset encoder on the way, and counts the bytes written for the
+    // PDF cross reference table
+    private static final class AsciiOutput extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int length; // bytes waiting in the buffer
+        private long flushed; // bytes passed on to out
+
+        AsciiOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        long getCount() {
+            return flushed + length;
+        }
+
+        // The loops work on locals, as a field the JIT must store after every byte makes
+        // them several times slower
+        AsciiOutput append(String text) throws IOException {
+            int size = text.length();
+            if( size > buffer.length - length ) {
+                flushBuffer();
+                if( size > buffer.length )
+                    return append(text.substring(0, buffer.length)).append(text.substring(buffer.length));
+            }
+            byte[] bytes = buffer;
+            int at = length;
+            for( int i = 0; i < size; i++ )
+                bytes[at + i] = (byte) text.charAt(i);
+            length = at + size;
+            return this;
+        }
+
+        AsciiOutput append(char c) throws IOException {
+            if( length == buffer.length )
+                flushBuffer();
+            buffer[length++] = (byte) c;
+            return this;
+        }
+
+        AsciiOutput append(int value) throws IOException {
+            if( length > buffer.length - 11 ) // the longest int
+                flushBuffer();
+            if( value < 0 ) {
+                if( value == Integer.MIN_VALUE )
+                    return append(Integer.toString(value));
+                buffer[length++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for( int power = 10; digits < 10 && value >= power; power *= 10 )
+                digits++;
+            byte[] bytes = buffer;
+            int end = length + digits;
+            for( int i = end - 1; i >= end - digits; i-- ) {
+                int rest = value / 10;
+                bytes[i] = (byte) ('0' + value - rest * 10);
+                value = rest;
+            }
+            length = end;
+            return this;
+        }
+
+        AsciiOutput append(long value) throws IOException {
+            if( value == (int) value )
+                return append((int) value);
+            return append(Long.toString(value));
+        }
+
+        // Starts the given object and returns its offset
+        long startObject(int number) throws IOException {
+            long offset = getCount();
+            append(number).append(" 0 obj\n");
+            return offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            append((char) (b & 0xFF));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if( len > buffer.length - length )
+                flushBuffer();
+            if( len > buffer.length ) {
+                out.write(b, off, len);
+                flushed += len;
+            }
+            else {
+                System.arraycopy(b, off, buffer, length, len);
+                length += len;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, length);
+            flushed += length;
+            length = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+    } // end of inner class AsciiOutput
+
+} // end of VectorExport class
@@ -0,0 +1,141 @@
+package drawingapplication;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+
+// Viewport maps drawing coordinates, in which shapes are stored, to the pixels of the
+// panel. The drawing point (x, y) is shown at ((x - originX) * scale, (y - originY) * scale),
+// so originX and originY are the drawing coordinates of the panel's top-left corner.
+class Viewport {
+
+    static final double MIN_SCALE = 1.0 / 4096; // panel pixels per drawing unit
+    static final double MAX_SCALE = 64;
+
+    private double scale;
+    private double originX;
+    private double originY;
+
+    public Viewport() {
+        reset();
+    }
+
+    // Returns a copy that later changes to this view do not affect
+    public Viewport copy() {
+        Viewport copy = new Viewport();
+        copy.scale = scale;
+        copy.originX = originX;
+        copy.originY = originY;
+        return copy;
+    }
+
+    // True when the other view shows the drawing at the same scale and position
+    public boolean sameAs(Viewport other) {
+        return scale == other.scale && originX == other.originX && originY == other.originY;
+    }
+
+    // Shows the drawing at its own size with its origin at the top-left corner
+    public void reset() {
+        scale = 1;
+        originX = 0;
+        originY = 0;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    // True when drawing coordinates are panel pixels, so nothing has to be converted
+    public boolean isIdentity() {
+        return scale == 1 && originX == 0 && originY == 0;
+    }
+
+    // Multiplies the scale by factor, keeping the drawing point under the given pixel in place.
+    // Returns false if the scale is already at its limit.
+    public boolean zoomAt(double factor, int x, int y) {
+        double newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        if( newScale == scale )
+            return false;
+        originX += x / scale - x / newScale;
+        originY += y / scale - y / newScale;
+        scale = newScale;
+        return true;
+    }
+
+    // Moves the drawing by the given number of pixels
+    public void panBy(int dx, int dy) {
+        originX -= dx / scale;
+        originY -= dy / scale;
+    }
+
+    // Converts a panel pixel to the drawing coordinate under it
+    public int toDrawingX(int x) {
+        return (int) Math.floor(originX + x / scale);
+    }
+
+    public int toDrawingY(int y) {
+        return (int) Math.floor(originY + y / scale);
+    }
+
+    // Stores in pixels the panel pixels covering the drawing area. Unless the view is the
+    // identity the result is grown by a pixel, so rounding never leaves a pixel out.
+    public void toPixels(Rectangle area, Rectangle pixels) {
+        if( isIdentity() ) {
+            pixels.setBounds(area);
+            return;
+        }
+        int left = (int) Math.floor((area.x - originX) * scale) - 1;
+        int top = (int) Math.floor((area.y - originY) * scale) - 1;
+        int right = (int) Math.ceil((area.x + area.width - originX) * scale) + 1;
+        int bottom = (int) Math.ceil((area.y + area.height - originY) * scale) + 1;
+        pixels.setBounds(left, top, right - left, bottom - top);
+    }
+
+    // Stores in area the drawing area shown by the panel pixels, grown the same way
+    public void toDrawing(Rectangle pixels, Rectangle area) {
+        if( isIdentity() ) {
+            area.setBounds(pixels);
+            return;
+        }
+        int left = (int) Math.floor(originX + pixels.x / scale) - 1;
+        int top = (int) Math.floor(originY + pixels.y / scale) - 1;
+        int right = (int) Math.ceil(originX + (pixels.x + pixels.width) / scale) + 1;
+        int bottom = (int) Math.ceil(originY + (pixels.y + pixels.height) / scale) + 1;
+        area.setBounds(left, top, right - left, bottom - top);
+    }
+
+    // Panel pixel column of the drawing x coordinate, rounded down
+    public int pixelX(double x) {
+        return (int) Math.floor((x - originX) * scale);
+    }
+
+    public int pixelY(double y) {
+        return (int) Math.floor((y - originY) * scale);
+    }
+
+    // Returns the transform from the panel pixels of another view to the panel pixels of
+    // this one, to show something drawn for that view in this one
+    public AffineTransform transformFrom(Viewport other) {
+        AffineTransform transform = AffineTransform.getTranslateInstance(
+                (other.originX - originX) * scale, (other.originY - originY) * scale);
+        transform.scale(scale / other.scale, scale / other.scale);
+        return transform;
+    }
+
+    // Sets up g, which draws in panel pixels, to take drawing coordinates
+    public void applyTo(Graphics2D g) {
+        if( isIdentity() )
+            return;
+        g.scale(scale, scale);
+        g.translate(-originX, -originY);
+    }
+
+} // end of Viewport class
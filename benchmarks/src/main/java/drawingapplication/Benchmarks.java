@@ -0,0 +1,1289 @@
+package drawingapplication;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.Toolkit;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import javax.swing.SwingUtilities;
+
+// Benchmarks holds small stand-alone measurements of the drawing application.
+// Run it with the name of a benchmark and an optional shape count, for example:
+//     java -cp benchmarks/target/benchmarks.jar drawingapplication.Benchmarks memory 1000000
+public class Benchmarks {
+
+    private static final Stroke[] STROKES = {
+        new BasicStroke(),
+        new BasicStroke(3, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND),
+        new BasicStroke(2, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10, new float[] {8}, 0)
+    };
+    private static final Paint[] PAINTS = {
+        Color.BLACK, Color.RED, Color.BLUE,
+        new GradientPaint(0, 0, Color.RED, 50, 50, Color.BLUE, true) // as ColorButtonHandler builds it
+    };
+
+    public static void main(String[] args) {
+
+        System.setProperty("java.awt.headless", "true");
+
+        String name = args.length > 0 ? args[0] : "memory";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        switch( name ) {
+            case "memory":
+                memory(count);
+                break;
+            case "drag":
+                drag();
+                break;
+            case "repaint":
+                repaint(count);
+                break;
+            case "index":
+                index(count);
+                break;
+            case "tiles":
+                tiles(count);
+                break;
+            case "file":
+                file(count);
+                break;
+            case "history":
+                history(count);
+                break;
+            case "frames":
+                frames();
+                break;
+            case "styles":
+                styles(count);
+                break;
+            case "batches":
+                batches(count);
+                break;
+            case "zoom":
+                zoom(count);
+                break;
+            case "metrics":
+                metrics(count);
+                break;
+            case "responsive":
+                responsive(count);
+                break;
+            case "export":
+                export(count);
+                break;
+            case "freehand":
+                freehand();
+                break;
+            case "collab":
+                collab(args.length > 1 ? count : 200);
+                break;
+            case "select":
+                select(args.length > 1 ? count : 100_000);
+                break;
+            case "layers":
+                layers(args.length > 1 ? count : 500_000);
+                break;
+            case "startup":
+                startup(args.length > 1 ? count : 5);
+                break;
+            default:
+                System.err.println("Unknown benchmark: " + name);
+        }
+    } // end of main
+
+    // Builds a random shape the same way MouseHandler does
+    static MyShape randomShape(Random random, int width, int height) {
+        int type = random.nextInt(3);
+        Paint paint = PAINTS[random.nextInt(PAINTS.length)];
+        Stroke stroke = STROKES[random.nextInt(STROKES.length)];
+        int x1 = random.nextInt(width);
+        int y1 = random.nextInt(height);
+        int x2 = x1 + random.nextInt(60) - 30;
+        int y2 = y1 + random.nextInt(60) - 30;
+        boolean filled = random.nextBoolean();
+
+        if( type == ShapeStore.LINE )
+            return new MyLine(paint, stroke, x1, y1, x2, y2);
+        else if( type == ShapeStore.OVAL )
+            return new MyOval(paint, stroke, x1, y1, x2, y2, filled);
+        else
+            return new MyRectangle(paint, stroke, x1, y1, x2, y2, filled);
+    }
+
+    // Fills a store with random shapes
+    static ShapeStore randomStore(int count, int width, int height) {
+        Random random = new Random(42);
+        ShapeStore store = new ShapeStore();
+        for( int i = 0; i < count; i++ )
+            store.add(randomShape(random, width, height));
+        return store;
+    }
+
+    // Compares the heap held by count shapes in a ShapeStore against count MyShape objects
+    private static void memory(int count) {
+
+        long before = usedHeap();
+        MyShape[] objects = new MyShape[count];
+        Random random = new Random(42);
+        for( int i = 0; i < count; i++ )
+            objects[i] = randomShape(random, 580, 470);
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        ShapeStore store = new ShapeStore();
+        for( int i = 0; i < count; i++ )
+            store.add(objects[i]);
+        objects = null; // only the store is kept alive now
+        long storeBytes = usedHeap() - before + objectBytes;
+
+        System.out.printf("shapes:               %d%n", store.size());
+        System.out.printf("MyShape[] layout:     %.1f bytes/shape%n", (double) objectBytes / count);
+        System.out.printf("ShapeStore layout:    %.1f bytes/shape%n", (double) storeBytes / count);
+    } // end of memory
+
+    // Measures the paint cost of one drag event as the drawing grows from 100 to 100k shapes
+    private static void drag() {
+
+        for( int count = 100; count <= 100_000; count *= 10 ) {
+            DrawPanel panel = new DrawPanel();
+            panel.setSize(580, 470);
+            panel.setTargetFps(0); // events come straight from this thread, not the EDT
+            ShapeStore store = randomStore(count, 580, 470);
+            for( int i = 0; i < store.size(); i++ )
+                panel.addShape(store.getShape(i));
+
+            BufferedImage screen = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = screen.createGraphics();
+            panel.paint(g); // the first paint renders the committed layer
+
+            int events = 2000;
+            mouse(panel, MouseEvent.MOUSE_PRESSED, 10, 10);
+            long start = System.nanoTime();
+            for( int i = 0; i < events; i++ ) {
+                mouse(panel, MouseEvent.MOUSE_DRAGGED, 10 + i % 500, 10 + i % 400);
+                panel.paint(g);
+            }
+            long elapsed = System.nanoTime() - start;
+            mouse(panel, MouseEvent.MOUSE_RELEASED, 100, 100);
+            g.dispose();
+
+            System.out.printf("%7d shapes: %8.1f us per drag frame%n", count,
+                    elapsed / 1000.0 / events);
+        }
+    } // end of drag
+
+    // Compares dirty-rectangle repaints against full-panel repaints while dragging a
+    // shape across a large, dense panel
+    private static void repaint(int count) {
+
+        int width = 4000;
+        int height = 3000;
+        DrawPanel panel = new DrawPanel();
+        panel.setSize(width, height);
+        panel.setTargetFps(0); // events come straight from this thread, not the EDT
+        ShapeStore store = randomStore(count, width, height);
+        for( int i = 0; i < store.size(); i++ )
+            panel.addShape(store.getShape(i));
+
+        BufferedImage screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        panel.paint(g);
+
+        int events = 500;
+        long fullTime = 0;
+        long dirtyTime = 0;
+        mouse(panel, MouseEvent.MOUSE_PRESSED, 1000, 1000);
+        for( int i = 0; i < events; i++ ) {
+            mouse(panel, MouseEvent.MOUSE_DRAGGED, 1000 + i, 1000 + i / 2);
+
+            long start = System.nanoTime();
+            g.setClip(null);
+            panel.paint(g);
+            fullTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            g.setClip(panel.getLastRepaintRegion());
+            panel.paint(g);
+            dirtyTime += System.nanoTime() - start;
+        }
+        mouse(panel, MouseEvent.MOUSE_RELEASED, 1500, 1250);
+        g.dispose();
+
+        System.out.printf("repainted area:       %d pixels%n", panel.getRepaintedArea());
+        System.out.printf("full-panel area:      %d pixels (%.0fx more)%n", panel.getFullRepaintArea(),
+                (double) panel.getFullRepaintArea() / panel.getRepaintedArea());
+        System.out.printf("full repaint:         %8.1f us per event%n", fullTime / 1000.0 / events);
+        System.out.printf("dirty repaint:        %8.1f us per event%n", dirtyTime / 1000.0 / events);
+    } // end of repaint
+
+    // Times clip queries and hit tests through the spatial grid against a linear scan
+    private static void index(int count) {
+
+        int size = 20_000;
+        ShapeStore store = randomStore(count, size, size);
+        long start = System.nanoTime();
+        SpatialGrid grid = new SpatialGrid(store);
+        for( int i = 0; i < store.size(); i++ )
+            grid.add(i);
+        System.out.printf("index build:          %8.1f ms for %d shapes%n",
+                (System.nanoTime() - start) / 1e6, store.size());
+
+        Random random = new Random(7);
+        IntList result = new IntList();
+        Rectangle clip = new Rectangle(0, 0, 580, 470);
+        Rectangle bounds = new Rectangle();
+        int queries = 200;
+        long gridTime = 0;
+        long scanTime = 0;
+        long found = 0;
+        for( int q = 0; q < queries; q++ ) {
+            clip.setLocation(random.nextInt(size - 580), random.nextInt(size - 470));
+
+            start = System.nanoTime();
+            grid.query(clip, result);
+            gridTime += System.nanoTime() - start;
+            found += result.size();
+
+            start = System.nanoTime();
+            int matches = 0;
+            for( int i = 0; i < store.size(); i++ ) {
+                store.getBounds(i, bounds);
+                if( bounds.intersects(clip) )
+                    matches++;
+            }
+            scanTime += System.nanoTime() - start;
+            if( matches != result.size() )
+                throw new IllegalStateException("grid query found " + result.size() + ", scan " + matches);
+        }
+        System.out.printf("clip query (grid):    %8.1f us, %d shapes per clip%n",
+                gridTime / 1000.0 / queries, found / queries);
+        System.out.printf("clip query (scan):    %8.1f us%n", scanTime / 1000.0 / queries);
+
+        int hits = 0;
+        int tests = 100_000;
+        start = System.nanoTime();
+        for( int t = 0; t < tests; t++ ) {
+            if( grid.hitTest(random.nextInt(size), random.nextInt(size)) >= 0 )
+                hits++;
+        }
+        System.out.printf("hit test (grid):      %8.2f us, %d hits%n",
+                (System.nanoTime() - start) / 1000.0 / tests, hits);
+    } // end of index
+
+    // Renders a large canvas with the tile renderer on 1, 2, 4, 8 and all cores, checks the
+    // result against single-threaded rendering and prints the speed-up
+    private static void tiles(int count) {
+
+        int size = 8192;
+        ShapeStore store = randomStore(count, size, size);
+        List<MyShape> shapes = new ArrayList<>();
+        for( int i = 0; i < store.size(); i++ )
+            shapes.add(store.getShape(i));
+
+        long start = System.nanoTime();
+        BufferedImage expected = HeadlessRenderer.renderSerial(shapes, size, size);
+        double serial = (System.nanoTime() - start) / 1e6;
+        System.out.printf("single Graphics2D:    %8.1f ms%n", serial);
+
+        int[] expectedPixels = ((DataBufferInt) expected.getRaster().getDataBuffer()).getData();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for( int threads : new int[] {1, 2, 4, 8, cores} ) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            TileRenderer.render(shapes, size, size, pool, TileRenderer.DEFAULT_TILE_SIZE); // warm up
+            start = System.nanoTime();
+            BufferedImage image = TileRenderer.render(shapes, size, size, pool,
+                    TileRenderer.DEFAULT_TILE_SIZE);
+            double elapsed = (System.nanoTime() - start) / 1e6;
+            pool.shutdown();
+
+            boolean identical = samePixels(expectedPixels,
+                    ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+            System.out.printf("%2d threads:           %8.1f ms (%.2fx)%s%n", threads, elapsed,
+                    serial / elapsed, identical ? "" : "  PIXELS DIFFER");
+        }
+    } // end of tiles
+
+    // Compares two TYPE_INT_RGB pixel arrays, ignoring the unused top byte Java2D may leave set
+    private static boolean samePixels(int[] expected, int[] actual) {
+        for( int i = 0; i < expected.length; i++ ) {
+            if( ((expected[i] ^ actual[i]) & 0xFFFFFF) != 0 )
+                return false;
+        }
+        return expected.length == actual.length;
+    }
+
+    // Saves a drawing in the binary format, then times mapping it and decoding shapes lazily
+    private static void file(int count) {
+
+        ShapeStore store = randomStore(count, 20_000, 20_000);
+        try {
+            Path file = Files.createTempFile("benchmark", DrawingFile.EXTENSION);
+            file.toFile().deleteOnExit();
+
+            long start = System.nanoTime();
+            DrawingFile.save(store, file);
+            System.out.printf("save:                 %8.1f ms, %.1f bytes/shape%n",
+                    (System.nanoTime() - start) / 1e6, (double) Files.size(file) / count);
+
+            start = System.nanoTime();
+            DrawingFile drawing = DrawingFile.open(file);
+            System.out.printf("open:                 %8.2f ms for %d shapes%n",
+                    (System.nanoTime() - start) / 1e6, drawing.size());
+
+            Random random = new Random(3);
+            int decodes = 100_000;
+            start = System.nanoTime();
+            for( int i = 0; i < decodes; i++ ) {
+                int index = random.nextInt(drawing.size());
+                if( drawing.getShape(index).getBounds().x1 != store.getX1(index) )
+                    throw new IllegalStateException("shape " + index + " decoded wrongly");
+            }
+            System.out.printf("random decode:        %8.3f us per shape%n",
+                    (System.nanoTime() - start) / 1000.0 / decodes);
+
+            start = System.nanoTime();
+            ShapeStore loaded = new ShapeStore();
+            drawing.copyTo(loaded);
+            System.out.printf("load into store:      %8.1f ms%n", (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    } // end of file
+
+    // Times exporting a drawing as SVG and as PDF against writing the same number of bytes
+    // straight to disk, and counts the bytes allocated along the way
+    private static void export(int count) {
+
+        ShapeStore store = randomStore(count, 20_000, 20_000);
+        Rectangle area = VectorExport.drawingArea(store, new Rectangle(0, 0, 580, 470));
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        try {
+            for( String extension : new String[] {VectorExport.SVG_EXTENSION, VectorExport.PDF_EXTENSION} ) {
+                Path file = Files.createTempFile("benchmark", extension);
+                file.toFile().deleteOnExit();
+                for( int i = 0; i < 3; i++ )
+                    VectorExport.export(store, area, file); // warm up
+
+                long allocated = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                VectorExport.export(store, area, file);
+                long elapsed = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+                long size = Files.size(file);
+
+                // the same number of bytes written in blocks of the exporter's buffer size
+                byte[] block = new byte[1 << 16];
+                start = System.nanoTime();
+                try( java.io.OutputStream out = Files.newOutputStream(file) ) {
+                    for( long written = 0; written < size; written += block.length )
+                        out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+                long raw = System.nanoTime() - start;
+
+                System.out.printf("%s: %8.1f ms, %6.1f MB, %6.1f MB/s (raw write %6.1f MB/s), %.1f KB allocated%n",
+                        extension, elapsed / 1e6, size / 1e6, size / 1e3 / (elapsed / 1e6), size / 1e3 / (raw / 1e6),
+                        allocated / 1024.0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    } // end of export
+
+    // Scribbles with the freehand tool for 10 seconds of 1 kHz tablet samples, painting the
+    // changed region after every sample, and reports what the stroke keeps of them
+    private static void freehand() {
+
+        int width = 1600;
+        int height = 1200;
+        DrawPanel panel = new DrawPanel();
+        panel.setSize(width, height);
+        panel.setTargetFps(0); // events come straight from this thread, not the EDT
+        panel.setShapeType(ShapeStore.FREEHAND);
+        panel.setCurrentStroke(STROKES[1]);
+        BufferedImage screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        panel.paint(g);
+
+        int samples = 10_000;
+        int[] scribble = new int[2 * samples];
+        for( int i = 0; i < samples; i++ ) {
+            double t = i / 1000.0; // seconds
+            scribble[2 * i] = (int) Math.round(800 + 600 * Math.sin(2 * Math.PI * 0.37 * t)
+                    + 40 * Math.sin(2 * Math.PI * 5.1 * t));
+            scribble[2 * i + 1] = (int) Math.round(600 + 450 * Math.sin(2 * Math.PI * 0.29 * t + 1)
+                    + 40 * Math.cos(2 * Math.PI * 4.3 * t));
+        }
+
+        long worst = 0;
+        long start = System.nanoTime();
+        mouse(panel, MouseEvent.MOUSE_PRESSED, scribble[0], scribble[1]);
+        for( int i = 1; i < samples; i++ ) {
+            long eventStart = System.nanoTime();
+            mouse(panel, MouseEvent.MOUSE_DRAGGED, scribble[2 * i], scribble[2 * i + 1]);
+            g.setClip(panel.getLastRepaintRegion());
+            panel.paint(g);
+            worst = Math.max(worst, System.nanoTime() - eventStart);
+        }
+        mouse(panel, MouseEvent.MOUSE_RELEASED, scribble[2 * samples - 2], scribble[2 * samples - 1]);
+        long elapsed = System.nanoTime() - start;
+        g.dispose();
+
+        ShapeStore store = panel.getShapes();
+        int[] points = store.getPoints(store.size() - 1);
+        double error = 0; // farthest any sample lies from the stored polyline
+        for( int i = 0; i < samples; i++ ) {
+            double nearest = Double.MAX_VALUE;
+            for( int p = 2; p < points.length; p += 2 )
+                nearest = Math.min(nearest, Line2D.ptSegDist(points[p - 2], points[p - 1],
+                        points[p], points[p + 1], scribble[2 * i], scribble[2 * i + 1]));
+            error = Math.max(error, nearest);
+        }
+
+        System.out.printf("samples:              %d (%d bytes as x,y ints)%n", samples, 8 * samples);
+        System.out.printf("vertices kept:        %d (%d bytes)%n", points.length / 2, 4 * points.length);
+        System.out.printf("max error:            %8.2f pixels%n", error);
+        System.out.printf("per sample:           %8.1f us, worst %.1f us%n", elapsed / 1000.0 / samples,
+                worst / 1000.0);
+    } // end of freehand
+
+    // Selects half of a drawing with a rubber band and drags it across the panel, painting
+    // the changed region after every drag event, then drops it. For comparison the same
+    // selection is also moved the way a drag would without the selection image, by
+    // moving the shapes and drawing the layer again on every event.
+    private static void select(int count) {
+
+        int width = 1200;
+        int height = 900;
+        DrawPanel panel = new DrawPanel();
+        panel.setSize(width, height);
+        panel.setTargetFps(0); // events come straight from this thread, not the EDT
+        ShapeStore store = randomStore(count, width, height);
+        for( int i = 0; i < store.size(); i++ )
+            panel.addShape(store.getShape(i));
+        BufferedImage screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        panel.paint(g); // the first paint renders the committed layer
+
+        panel.setShapeType(DrawPanel.SELECT_TOOL);
+        long start = System.nanoTime();
+        panel.selectShapesIn(new Rectangle(-50, -50, width / 2 + 50, height + 100));
+        long selectTime = System.nanoTime() - start;
+        int selected = panel.getSelection().length;
+
+        int events = 300;
+        long first = 0;
+        long worst = 0;
+        start = System.nanoTime();
+        mouse(panel, MouseEvent.MOUSE_PRESSED, width / 4, height / 2);
+        for( int i = 1; i <= events; i++ ) {
+            long eventStart = System.nanoTime();
+            mouse(panel, MouseEvent.MOUSE_DRAGGED, width / 4 + i, height / 2 + i / 3);
+            g.setClip(panel.getLastRepaintRegion());
+            panel.paint(g);
+            long eventTime = System.nanoTime() - eventStart;
+            if( i == 1 )
+                first = eventTime; // draws the selection image
+            else
+                worst = Math.max(worst, eventTime);
+        }
+        long dragTime = System.nanoTime() - start - first;
+
+        start = System.nanoTime();
+        mouse(panel, MouseEvent.MOUSE_RELEASED, width / 4 + events, height / 2 + events / 3);
+        long dropTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        g.setClip(null);
+        panel.paint(g); // renders the layer with the shapes in their new place
+        long layerTime = System.nanoTime() - start;
+
+        int moves = 10;
+        start = System.nanoTime();
+        for( int i = 0; i < moves; i++ ) {
+            panel.moveSelection(-1, 0);
+            panel.paint(g);
+        }
+        long moveTime = System.nanoTime() - start;
+        g.dispose();
+
+        System.out.printf("shapes:               %d, %d selected in %.1f ms%n", count, selected, selectTime / 1e6);
+        System.out.printf("first drag frame:     %8.1f ms (draws the selection image, off the EDT on screen)%n",
+                first / 1e6);
+        System.out.printf("drag frame:           %8.1f us, worst %.1f us%n", dragTime / 1000.0 / (events - 1),
+                worst / 1000.0);
+        System.out.printf("drop:                 %8.1f ms moving the shapes and their index entries%n",
+                dropTime / 1e6);
+        System.out.printf("layer after drop:     %8.1f ms%n", layerTime / 1e6);
+        System.out.printf("move and redraw:      %8.1f ms per event, without the selection image%n",
+                moveTime / 1e6 / moves);
+    } // end of select
+
+    // Edits an annotation layer above a large base layer, adding a shape and undoing it
+    // again, and compares that with the same edits on one layer holding both, where taking
+    // a shape out draws the base shapes under it again. Also times an opacity change,
+    // which only composites, showing a hidden layer, which draws it again, and the heap
+    // hiding the base layer gives back.
+    private static void layers(int count) {
+
+        int width = 1200;
+        int height = 900;
+        ShapeStore base = randomStore(count, width, height);
+        ShapeStore notes = new ShapeStore();
+        Random random = new Random(7);
+        for( int i = 0; i < 200; i++ )
+            notes.add(randomShape(random, width, height));
+        DrawPanel layered = layerPanel(width, height, base, notes, true);
+        DrawPanel flat = layerPanel(width, height, base, notes, false);
+        BufferedImage screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        long start = System.nanoTime();
+        layered.paint(g); // the first paints render every layer
+        long firstTime = System.nanoTime() - start;
+        flat.paint(g);
+
+        int edits = 20;
+        long layeredTime = annotate(layered, g, notes, edits);
+        long flatTime = annotate(flat, g, notes, edits);
+
+        start = System.nanoTime();
+        layered.setLayerOpacity(0, 0.5f);
+        layered.paint(g);
+        long opacityTime = System.nanoTime() - start;
+
+        layered.setLayerVisible(1, false);
+        layered.paint(g);
+        start = System.nanoTime();
+        layered.setLayerVisible(1, true);
+        layered.paint(g);
+        long showTime = System.nanoTime() - start;
+
+        long before = usedHeap();
+        layered.setLayerVisible(0, false);
+        long freed = before - usedHeap();
+        g.dispose();
+
+        System.out.printf("shapes:               %d in the base layer, %d in the annotation layer%n",
+                count, notes.size());
+        System.out.printf("first paint:          %8.1f ms rendering both layers%n", firstTime / 1e6);
+        System.out.printf("annotation edit:      %8.2f ms in its own layer, %.2f ms in one layer with the base%n",
+                layeredTime / 1e6 / (2 * edits), flatTime / 1e6 / (2 * edits));
+        System.out.printf("opacity change:       %8.2f ms%n", opacityTime / 1e6);
+        System.out.printf("show annotations:     %8.2f ms drawing the hidden layer again%n", showTime / 1e6);
+        System.out.printf("hide base layer:      %8.1f MB of raster and index given back%n", freed / 1e6);
+    } // end of layers
+
+    // A panel with the base shapes and the notes, in two layers or in one
+    private static DrawPanel layerPanel(int width, int height, ShapeStore base, ShapeStore notes, boolean layered) {
+        DrawPanel panel = new DrawPanel();
+        panel.setSize(width, height);
+        panel.setTargetFps(0);
+        for( int i = 0; i < base.size(); i++ )
+            panel.addShape(base.getShape(i));
+        if( layered ) {
+            try {
+                panel.addLayer("Notes");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no journal is open, so nothing is written
+            }
+        }
+        for( int i = 0; i < notes.size(); i++ )
+            panel.addShape(notes.getShape(i));
+        return panel;
+    }
+
+    // Adds each of the first edits notes to the panel and takes it back, painting after
+    // every change, and returns the nanoseconds taken
+    private static long annotate(DrawPanel panel, Graphics2D g, ShapeStore notes, int edits) {
+        long start = System.nanoTime();
+        for( int i = 0; i < edits; i++ ) {
+            panel.addShape(notes.getShape(i));
+            panel.paint(g);
+            panel.undo();
+            panel.paint(g);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Starts the application runs times in fresh JVMs through StartupTrace and prints the
+    // medians of how long after the JVM started the window was first painted and the color
+    // dialog was open when 1st Color.. is clicked straight away, and how long the dialog
+    // takes to open when it is clicked a second after the first paint. The runs are made as
+    // the application is started by default and again with an AppCDS archive, which a first
+    // run records. The application needs a display, and the archive needs the class path to
+    // be jars, as it is with benchmarks.jar.
+    private static void startup(int runs) {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = System.getProperty("java.class.path");
+        try {
+            Path directory = Files.createTempDirectory("startup");
+            Path archive = directory.resolve("drawing-application.jsa");
+            if( !startupRuns("default", runs, java, classPath, directory, null) )
+                return;
+            startupRun(java, classPath, directory, 0, "-XX:ArchiveClassesAtExit=" + archive);
+            if( Files.exists(archive) )
+                startupRuns("AppCDS", runs, java, classPath, directory, "-XX:SharedArchiveFile=" + archive);
+            else
+                System.out.println("AppCDS:  no archive was written, the class path has to be jars");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    } // end of startup
+
+    // Prints the medians of runs startups, or returns false if the application did not start
+    private static boolean startupRuns(String label, int runs, String java, String classPath, Path directory,
+            String option) throws IOException {
+        long[] painted = new long[runs];
+        long[] opened = new long[runs];
+        long[] later = new long[runs];
+        for( int i = 0; i < runs; i++ ) {
+            long[] times = startupRun(java, classPath, directory, 0, option);
+            long[] clicked = times != null ? startupRun(java, classPath, directory, 1000, option) : null;
+            if( clicked == null )
+                return false;
+            painted[i] = times[0];
+            opened[i] = times[1];
+            later[i] = clicked[2];
+        }
+        Arrays.sort(painted);
+        Arrays.sort(opened);
+        Arrays.sort(later);
+        System.out.printf("%-8s first paint %5d ms, color dialog %5d ms after the JVM started, "
+                + "%4d ms from a click a second later%n", label + ":", painted[runs / 2], opened[runs / 2],
+                later[runs / 2]);
+        return true;
+    }
+
+    // Starts the application with a new journal and returns its first paint and color
+    // dialog times after the JVM started and the dialog's time after the click, or null
+    // after printing what the application wrote if it did not get that far
+    private static long[] startupRun(String java, String classPath, Path directory, int clickDelay,
+            String option) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        if( option != null )
+            command.add(option);
+        Path journal = Files.createTempDirectory(directory, "journal");
+        command.add("-Ddrawing.journal.dir=" + journal);
+        command.add("-cp");
+        command.add(classPath);
+        command.add("drawingapplication.StartupTrace");
+        command.add(Integer.toString(clickDelay));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        StringBuilder output = new StringBuilder();
+        long[] times = null;
+        try( BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream())) ) {
+            for( String line = reader.readLine(); line != null; line = reader.readLine() ) {
+                output.append(line).append('\n');
+                if( line.startsWith("startup:") ) {
+                    times = new long[3];
+                    Matcher number = Pattern.compile("\\d+").matcher(line);
+                    for( int i = 0; i < times.length && number.find(); i++ )
+                        times[i] = Long.parseLong(number.group());
+                }
+            }
+        }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if( times == null )
+            System.out.print("The application did not start:\n" + output);
+        return times;
+    }
+
+    // Runs a DrawingServer on loopback for a growing number of simulated clients, each
+    // committing shapes at a steady rate, and measures how long a commit takes to come back
+    // to its sender and to reach every client
+    private static void collab(int maxClients) {
+        for( int clients = Math.max(maxClients / 8, 1); clients <= maxClients; clients *= 2 )
+            collabRun(clients, 20, 5);
+    }
+
+    private static void collabRun(int clients, int rate, int seconds) {
+        int commits = rate * seconds; // per client
+        int clientBase = 1 << 20; // x1 of a commit is clientBase + its client, y1 its number
+        ShapeStore drawing = randomStore(10_000, 2000, 2000); // sent to every client first
+        int snapshotRecords = drawing.size() + 1;
+        long[][] sent = new long[clients][commits];
+        int[] received = new int[clients]; // records of the drawing's copy received
+        Histogram echo = new Histogram(); // commit to its sender seeing it
+        Histogram delivery = new Histogram(); // commit to each client seeing it
+        long expected = (long) clients * clients * commits;
+        long delivered = 0;
+        long elapsed;
+
+        try {
+            ShapeStore one = new ShapeStore();
+            one.add(ShapeStore.LINE, 0, 0, 100, 100, false, STROKES[1], PAINTS[1]);
+            byte[] template = DrawingJournal.encodeAdd(one, 0);
+
+            DrawingServer server = new DrawingServer(drawing, null,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+            try( Selector selector = Selector.open() ) {
+                SocketChannel[] channels = new SocketChannel[clients];
+                ByteBuffer[] in = new ByteBuffer[clients];
+                ByteBuffer[] out = new ByteBuffer[clients];
+                for( int c = 0; c < clients; c++ ) {
+                    channels[c] = SocketChannel.open(address);
+                    channels[c].configureBlocking(false);
+                    channels[c].setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channels[c].register(selector, SelectionKey.OP_READ, c);
+                    in[c] = ByteBuffer.allocate(1 << 16);
+                    out[c] = ByteBuffer.allocate(1 << 16);
+                }
+
+                long period = 1_000_000_000L / rate;
+                long start = 0; // set once every client has its copy of the drawing
+                long deadline = System.nanoTime() + (seconds + 30) * 1_000_000_000L;
+                int ready = 0;
+                int[] next = new int[clients]; // commits sent by each client
+                while( delivered < expected && System.nanoTime() < deadline ) {
+                    long now = System.nanoTime();
+                    for( int c = 0; start != 0 && c < clients; c++ ) {
+                        // the clients' commits are spread evenly over each period
+                        while( next[c] < commits && start + next[c] * period + c * period / clients <= now ) {
+                            out[c].putInt(template.length).put(template);
+                            out[c].putInt(out[c].position() - template.length + 2, clientBase + c);
+                            out[c].putInt(out[c].position() - template.length + 6, next[c]);
+                            sent[c][next[c]++] = now;
+                        }
+                        out[c].flip();
+                        channels[c].write(out[c]);
+                        out[c].compact();
+                    }
+
+                    selector.select(1);
+                    for( SelectionKey key : selector.selectedKeys() ) {
+                        int c = (Integer) key.attachment();
+                        ByteBuffer buffer = in[c];
+                        if( channels[c].read(buffer) < 0 )
+                            throw new IOException("client " + c + " was disconnected");
+                        long arrived = System.nanoTime();
+                        buffer.flip();
+                        while( buffer.remaining() >= 4 && buffer.remaining() >= 4 + buffer.getInt(buffer.position()) ) {
+                            int length = buffer.getInt();
+                            int record = buffer.position();
+                            int x1 = buffer.getInt(record + 2);
+                            if( buffer.get(record) == DrawingJournal.ADD && x1 >= clientBase ) {
+                                int sender = x1 - clientBase;
+                                long latency = arrived - sent[sender][buffer.getInt(record + 6)];
+                                delivery.record(latency);
+                                if( sender == c )
+                                    echo.record(latency);
+                                delivered++;
+                            }
+                            else if( ++received[c] == snapshotRecords ) {
+                                ready++;
+                            }
+                            buffer.position(record + length);
+                        }
+                        buffer.compact();
+                    }
+                    selector.selectedKeys().clear();
+                    if( start == 0 && ready == clients )
+                        start = System.nanoTime();
+                }
+                elapsed = System.nanoTime() - start;
+
+                for( SocketChannel channel : channels )
+                    channel.close();
+            }
+            server.close();
+
+            System.out.printf("%4d clients: %6.0f commits/s, %9.0f deliveries/s (%d of %d), %.1f records per batch%n",
+                    clients, (double) clients * commits / (elapsed / 1e9), delivered / (elapsed / 1e9), delivered,
+                    expected, (double) server.getRecordsApplied() / server.getBatchesSent());
+            System.out.printf("      echo      p50 %7.3f  p99 %7.3f  p99.9 %7.3f  max %7.3f ms%n",
+                    echo.percentile(0.5) / 1e6, echo.percentile(0.99) / 1e6, echo.percentile(0.999) / 1e6,
+                    echo.getMax() / 1e6);
+            System.out.printf("      delivery  p50 %7.3f  p99 %7.3f  p99.9 %7.3f  max %7.3f ms%n",
+                    delivery.percentile(0.5) / 1e6, delivery.percentile(0.99) / 1e6,
+                    delivery.percentile(0.999) / 1e6, delivery.getMax() / 1e6);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    } // end of collabRun
+
+    // Measures the memory each recorded edit adds to the undo history of a large drawing,
+    // and the time to undo and redo every one of them
+    private static void history(int count) {
+
+        ShapeStore store = randomStore(count, 20_000, 20_000);
+        EditHistory history = new EditHistory();
+        Random random = new Random(7);
+        int edits = 100_000;
+
+        long before = usedHeap();
+        for( int i = 0; i < edits; i++ ) {
+            history.record(store.version(), EditHistory.ONE_SHAPE);
+            if( i % 4 == 3 ) {
+                store.removeLast();
+            }
+            else {
+                int x = random.nextInt(20_000);
+                int y = random.nextInt(20_000);
+                store.add(random.nextInt(3), x, y, x + 40, y + 30, random.nextBoolean(),
+                        STROKES[random.nextInt(STROKES.length)], PAINTS[random.nextInt(PAINTS.length)]);
+            }
+        }
+        history.record(store.version(), EditHistory.WHOLE_DRAWING);
+        store.clear();
+        long historyBytes = usedHeap() - before;
+
+        long start = System.nanoTime();
+        while( history.canUndo() )
+            store.restore(history.undo(store.version()));
+        long undoTime = System.nanoTime() - start;
+        if( store.size() != count )
+            throw new IllegalStateException("undo ended at " + store.size() + " shapes");
+
+        start = System.nanoTime();
+        while( history.canRedo() )
+            store.restore(history.redo(store.version()));
+        long redoTime = System.nanoTime() - start;
+
+        System.out.printf("history:              %d edits on %d shapes%n", edits + 1, count);
+        System.out.printf("memory:               %.1f bytes/edit%n", (double) historyBytes / (edits + 1));
+        System.out.printf("undo:                 %8.3f us per edit%n", undoTime / 1000.0 / (edits + 1));
+        System.out.printf("redo:                 %8.3f us per edit%n", redoTime / 1000.0 / (edits + 1));
+    } // end of history
+
+    // Feeds drag events through the AWT event queue at a tablet-like rate, once applying
+    // every event and once coalescing them into frames. Like the RepaintManager, the panel
+    // paints once on the EDT after any number of repaint requests.
+    private static void frames() {
+
+        int seconds = 3;
+        int eventRate = 4000; // events per second
+        for( int fps : new int[] {0, FrameScheduler.DEFAULT_FPS} ) {
+            BufferedImage screen = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = screen.createGraphics();
+            long[] paints = new long[1];
+            DrawPanel panel = new DrawPanel() {
+                private boolean paintQueued;
+
+                @Override
+                public void repaint(long time, int x, int y, int width, int height) {
+                    if( paintQueued )
+                        return;
+                    paintQueued = true;
+                    SwingUtilities.invokeLater(() -> {
+                        paintQueued = false;
+                        g.setClip(getLastRepaintRegion());
+                        paint(g);
+                        paints[0]++;
+                    });
+                }
+            };
+            panel.setSize(580, 470);
+            panel.setTargetFps(fps);
+            ShapeStore store = randomStore(10_000, 580, 470);
+            for( int i = 0; i < store.size(); i++ )
+                panel.addShape(store.getShape(i));
+            panel.paint(g); // the first paint renders the committed layer
+            EventQueue queue = Toolkit.getDefaultToolkit().getSystemEventQueue();
+
+            long start = System.nanoTime();
+            try {
+                SwingUtilities.invokeAndWait(() -> mouse(panel, MouseEvent.MOUSE_PRESSED, 100, 100));
+                long end = start + seconds * 1_000_000_000L;
+                for( int i = 0; System.nanoTime() < end; i++ ) {
+                    queue.postEvent(new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, System.currentTimeMillis(),
+                            MouseEvent.BUTTON1_DOWN_MASK, 100 + i % 400, 100 + i % 300, 1, false,
+                            MouseEvent.BUTTON1));
+                    LockSupport.parkNanos(1_000_000_000L / eventRate);
+                }
+                SwingUtilities.invokeAndWait(() -> mouse(panel, MouseEvent.MOUSE_RELEASED, 100, 100));
+            } catch (InterruptedException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            g.dispose();
+
+            System.out.printf("target fps %3d:       %d events, %d frames, %d paints, latency avg %.3f ms, max %.3f ms%n",
+                    fps, panel.getMotionEventCount(), panel.getMotionFrameCount(), paints[0],
+                    panel.getAverageInputLatency() / 1e6, panel.getMaxInputLatency() / 1e6);
+        }
+    } // end of frames
+
+    // Compares shapes that each carry their own, equal stroke and paint objects, as the
+    // handlers and file readers used to build them, against shapes sharing interned ones:
+    // the heap they hold and the time to draw them
+    private static void styles(int count) {
+
+        StyleCache cache = new StyleCache(StyleCache.DEFAULT_CAPACITY);
+        long before = usedHeap();
+        MyShape[] separate = styledShapes(count, null);
+        long separateBytes = usedHeap() - before;
+
+        before = usedHeap();
+        MyShape[] interned = styledShapes(count, cache);
+        long internedBytes = usedHeap() - before;
+
+        System.out.printf("separate styles:      %.1f bytes/shape%n", (double) separateBytes / count);
+        System.out.printf("interned styles:      %.1f bytes/shape (%d hits, %d misses)%n",
+                (double) internedBytes / count, cache.getHits(), cache.getMisses());
+
+        int drawn = Math.min(count, 100_000);
+        BufferedImage image = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        for( int round = 0; round < 3; round++ ) {
+            long start = System.nanoTime();
+            for( int i = 0; i < drawn; i++ )
+                separate[i].draw(g);
+            long separateTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for( int i = 0; i < drawn; i++ )
+                interned[i].draw(g);
+            long internedTime = System.nanoTime() - start;
+
+            System.out.printf("draw %d shapes:     separate %.0f shapes/s, interned %.0f shapes/s%n",
+                    drawn, drawn / (separateTime / 1e9), drawn / (internedTime / 1e9));
+        }
+        g.dispose();
+    } // end of styles
+
+    // Builds shapes from a handful of settings, with a new stroke and paint object per
+    // shape, interned through the cache unless it is null
+    private static MyShape[] styledShapes(int count, StyleCache cache) {
+        Random random = new Random(11);
+        MyShape[] shapes = new MyShape[count];
+
+        for( int i = 0; i < count; i++ ) {
+            int width = 1 + random.nextInt(3);
+            Stroke stroke = random.nextBoolean()
+                    ? new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND)
+                    : new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10, new float[] {8}, 0);
+            Paint paint = random.nextBoolean()
+                    ? new GradientPaint(0, 0, Color.RED, 50, 50, Color.BLUE, true)
+                    : new Color(0x336699);
+            if( cache != null ) {
+                stroke = cache.intern(stroke);
+                paint = cache.intern(paint);
+            }
+
+            int x = random.nextInt(580);
+            int y = random.nextInt(470);
+            if( i % 3 == 0 )
+                shapes[i] = new MyLine(paint, stroke, x, y, x + 20, y + 15);
+            else if( i % 3 == 1 )
+                shapes[i] = new MyOval(paint, stroke, x, y, x + 20, y + 15, i % 2 == 0);
+            else
+                shapes[i] = new MyRectangle(paint, stroke, x, y, x + 20, y + 15, i % 2 == 0);
+        }
+        return shapes;
+    }
+
+    // Draws the same shapes one at a time through ShapeStore.draw and in batches through
+    // ShapeBatcher, checks both give the same pixels, and prints the Graphics2D state
+    // changes, draw calls and shapes per second of each. Three drawings: random styles on
+    // the panel, random styles spread over a large canvas, and runs of 25 shapes sharing
+    // a style, as a user draws them.
+    private static void batches(int count) {
+
+        batchScene("random styles, 580x470", randomStore(count, 580, 470), 580, 470);
+        batchScene("random styles, 4096x4096", randomStore(count, 4096, 4096), 4096, 4096);
+
+        ShapeStore random = randomStore(count, 580, 470);
+        ShapeStore runs = new ShapeStore();
+        for( int i = 0; i < count; i++ ) {
+            int styled = i - i % 25; // the shape whose style the run takes
+            runs.add(random.getType(i), random.getX1(i), random.getY1(i), random.getX2(i), random.getY2(i),
+                    random.isFilled(i), random.getStroke(styled), random.getPaint(styled));
+        }
+        batchScene("runs of 25 styles, 580x470", runs, 580, 470);
+
+        // dashed lines, as dashedCheckBox and lineWidthField give them, up to 180 pixels long
+        // and in long runs of the same settings
+        Stroke[] dashes = {
+            STROKES[2],
+            new BasicStroke(8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10, new float[] {20}, 0)
+        };
+        ShapeStore dashed = new ShapeStore();
+        for( int i = 0; i < count; i++ ) {
+            int x1 = random.getX1(i);
+            int y1 = random.getY1(i);
+            dashed.add(ShapeStore.LINE, x1, y1, x1 + 6 * (random.getX2(i) - x1), y1 + 6 * (random.getY2(i) - y1),
+                    false, dashes[i / 1000 % dashes.length], PAINTS[i / 2000 % 3]);
+        }
+        batchScene("dashed lines in runs of 1000, 580x470", dashed, 580, 470);
+    } // end of batches
+
+    private static void batchScene(String name, ShapeStore store, int width, int height) {
+
+        BufferedImage single = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage batched = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D singleGraphics = single.createGraphics();
+        Graphics2D batchedGraphics = batched.createGraphics();
+        ShapeBatcher batcher = new ShapeBatcher(store);
+
+        long singleTime = Long.MAX_VALUE;
+        long batchedTime = Long.MAX_VALUE;
+        for( int round = 0; round < 5; round++ ) {
+            long start = System.nanoTime();
+            for( int i = 0; i < store.size(); i++ )
+                store.draw(i, singleGraphics);
+            singleTime = Math.min(singleTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for( int i = 0; i < store.size(); i++ )
+                batcher.add(i);
+            batcher.draw(batchedGraphics);
+            batchedTime = Math.min(batchedTime, System.nanoTime() - start);
+        }
+        singleGraphics.dispose();
+        batchedGraphics.dispose();
+
+        boolean identical = samePixels(((DataBufferInt) single.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) batched.getRaster().getDataBuffer()).getData());
+        long rounds = batcher.getShapeCount() / store.size();
+        System.out.printf("%s, %d shapes%s%n", name, store.size(), identical ? "" : "  PIXELS DIFFER");
+        System.out.printf("  one at a time: %8d state changes, %8d draw calls, %10.0f shapes/s%n",
+                2L * store.size(), store.size(), store.size() / (singleTime / 1e9));
+        System.out.printf("  batched:       %8d state changes, %8d draw calls, %10.0f shapes/s (%d batches)%n",
+                batcher.getStateChanges() / rounds, batcher.getDrawCalls() / rounds,
+                store.size() / (batchedTime / 1e9), batcher.getBatchCount() / rounds);
+    } // end of batchScene
+
+    // Times a full repaint of a zoomed DrawPanel over drawings of count / 100, count / 10
+    // and count random shapes spread over 20000x20000, next to drawing every shape in view
+    // at full detail (left out above 200000 shapes). With level of detail and the density
+    // layer the repaint time should barely depend on the number of shapes.
+    private static void zoom(int count) {
+
+        int size = 20000;
+        double[] scales = {1, 0.25, 1.0 / 16, 1.0 / 64};
+        System.out.printf("%10s %8s %10s %12s %14s%n", "shapes", "scale", "in view", "repaint ms", "full detail ms");
+        for( int shapeCount : new int[] {count / 100, count / 10, count} ) {
+            ShapeStore store = randomStore(shapeCount, size, size);
+            DrawPanel panel = new DrawPanel();
+            panel.setSize(580, 470);
+            for( int i = 0; i < store.size(); i++ )
+                panel.addShape(store.getShape(i));
+
+            BufferedImage image = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+            for( double scale : scales ) {
+                panel.resetView();
+                panel.zoom(scale, 0, 0);
+                Graphics2D g = image.createGraphics();
+                panel.paint(g); // warm up
+
+                long best = Long.MAX_VALUE;
+                for( int round = 0; round < 5; round++ ) {
+                    panel.redrawLayer();
+                    long start = System.nanoTime();
+                    panel.paint(g);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                g.dispose();
+
+                Viewport view = new Viewport();
+                view.zoomAt(scale, 0, 0);
+                Rectangle area = new Rectangle();
+                view.toDrawing(new Rectangle(0, 0, 580, 470), area);
+                int[] visible = panel.getShapesIn(area);
+                String detail = "-";
+                if( visible.length <= 200_000 ) {
+                    g = image.createGraphics();
+                    view.applyTo(g);
+                    long start = System.nanoTime();
+                    for( int index : visible )
+                        store.draw(index, g);
+                    detail = String.format("%.1f", (System.nanoTime() - start) / 1e6);
+                    g.dispose();
+                }
+                System.out.printf("%10d %8.4f %10d %12.1f %14s%s%n", shapeCount, scale, visible.length,
+                        best / 1e6, detail, panel.isShowingDensity() ? "  (density)" : "");
+            }
+        }
+    } // end of zoom
+
+    // Measures what the rendering metrics add to a drag frame: switched off, collecting,
+    // collecting with the overlay shown, and emitting JFR events into a running recording
+    private static void metrics(int count) {
+
+        DrawPanel panel = new DrawPanel();
+        panel.setSize(580, 470);
+        panel.setTargetFps(0); // events come straight from this thread, not the EDT
+        ShapeStore store = randomStore(count, 580, 470);
+        for( int i = 0; i < store.size(); i++ )
+            panel.addShape(store.getShape(i));
+        RenderMetrics metrics = panel.getMetrics();
+
+        BufferedImage screen = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        panel.paint(g); // the first paint renders the committed layer
+
+        String[] modes = {"off", "collecting", "overlay", "jfr"};
+        long[] best = new long[modes.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        int events = 2000;
+        try (Recording recording = new Recording()) {
+            recording.enable(PaintEvent.class);
+            recording.start();
+            for( int round = 0; round < 5; round++ ) {
+                for( int mode = 0; mode < modes.length; mode++ ) {
+                    metrics.setEnabled(mode == 1);
+                    metrics.setOverlayVisible(mode == 2);
+                    metrics.setJfrEvents(mode == 3);
+
+                    mouse(panel, MouseEvent.MOUSE_PRESSED, 10, 10);
+                    long start = System.nanoTime();
+                    for( int i = 0; i < events; i++ ) {
+                        mouse(panel, MouseEvent.MOUSE_DRAGGED, 10 + i % 500, 10 + i % 400);
+                        panel.paint(g);
+                    }
+                    best[mode] = Math.min(best[mode], System.nanoTime() - start);
+                    mouse(panel, MouseEvent.MOUSE_RELEASED, 10, 10);
+                    panel.clearLastShape();
+                }
+            }
+            recording.stop();
+
+            Path file = Files.createTempFile("metrics", ".jfr");
+            recording.dump(file);
+            long recorded = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().equals("drawingapplication.Paint")).count();
+            Files.delete(file);
+            System.out.printf("paint events recorded:  %d%n", recorded);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metrics.setJfrEvents(false);
+        g.dispose();
+
+        for( int mode = 0; mode < modes.length; mode++ )
+            System.out.printf("%-12s %8.2f us per drag frame%n", modes[mode], best[mode] / 1000.0 / events);
+        System.out.printf("paints measured: %d, p50 %.3f ms, p99 %.3f ms%n", metrics.getPaintCount(),
+                metrics.getPaintP50Millis(), metrics.getPaintP99Millis());
+    } // end of metrics
+
+    // Zooms a panel holding count shapes in and out a notch at a time, as the mouse wheel
+    // does, and measures how long the EDT spends on each notch and its paint: with the
+    // layer drawn right there, and on the render thread as on screen. Also reports how
+    // long the render thread took to catch up with the last notch.
+    private static void responsive(int count) {
+
+        int notches = 21; // odd, so the view ends up zoomed in and the first layer is no longer current
+        ShapeStore store = randomStore(count, 580, 470);
+        for( boolean async : new boolean[] {false, true} ) {
+            DrawPanel[] holder = new DrawPanel[1];
+            long[] times = new long[notches];
+            BufferedImage screen = new BufferedImage(580, 470, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = screen.createGraphics();
+            long caughtUp;
+            try {
+                SwingUtilities.invokeAndWait(() -> {
+                    holder[0] = new DrawPanel() {
+                        @Override
+                        public boolean isShowing() {
+                            return async; // only a panel on screen draws its layer on the render thread
+                        }
+                    };
+                    holder[0].setSize(580, 470);
+                    for( int i = 0; i < store.size(); i++ )
+                        holder[0].addShape(store.getShape(i));
+                });
+                DrawPanel panel = holder[0];
+                waitForLayer(panel, g);
+
+                for( int i = 0; i < notches; i++ ) {
+                    double factor = i % 2 == 0 ? DrawPanel.ZOOM_STEP : 1 / DrawPanel.ZOOM_STEP;
+                    int notch = i;
+                    SwingUtilities.invokeAndWait(() -> {
+                        long start = System.nanoTime();
+                        panel.zoom(factor, 290, 235);
+                        panel.paint(g);
+                        times[notch] = System.nanoTime() - start;
+                    });
+                    Thread.sleep(16); // about one notch a frame
+                }
+                long start = System.nanoTime();
+                waitForLayer(panel, g);
+                caughtUp = System.nanoTime() - start;
+            } catch (InterruptedException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            g.dispose();
+
+            Arrays.sort(times);
+            System.out.printf("%-6s EDT per notch: median %8.2f ms, max %8.2f ms, layer current %8.2f ms later%n",
+                    async ? "async" : "sync", times[notches / 2] / 1e6, times[notches - 1] / 1e6, caughtUp / 1e6);
+        }
+    } // end of responsive
+
+    // Paints the panel on the EDT until the layer it shows is up to date
+    private static void waitForLayer(DrawPanel panel, Graphics2D g)
+            throws InterruptedException, InvocationTargetException {
+        boolean[] current = new boolean[1];
+        while( true ) {
+            SwingUtilities.invokeAndWait(() -> {
+                panel.paint(g);
+                current[0] = panel.isLayerCurrent();
+            });
+            if( current[0] )
+                return;
+            Thread.sleep(1);
+        }
+    }
+
+    // Sends a left button mouse event straight to the panel's listeners
+    static void mouse(DrawPanel panel, int id, int x, int y) {
+        panel.dispatchEvent(new MouseEvent(panel, id, System.currentTimeMillis(),
+                MouseEvent.BUTTON1_DOWN_MASK, x, y, 1, false, MouseEvent.BUTTON1));
+    }
+
+    // Returns the heap in use after asking the collector to run
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 4; i++ ) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+} // end of Benchmarks class
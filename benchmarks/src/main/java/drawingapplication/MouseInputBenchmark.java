@@ -0,0 +1,124 @@
+package drawingapplication;
+
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseMotionListener;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MouseInputBenchmark drives DrawPanel's MouseHandler with simulated events on a panel
+// that already holds N shapes, and paints a frame after every event the way Swing would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MouseInputBenchmark {
+
+    private static final int WIDTH = 580; // DrawPanel's size
+    private static final int HEIGHT = 470;
+    private static final int DRAGS = 20; // drag events per stroke
+
+    @Param({"1000", "100000"})
+    int count;
+
+    private DrawPanel panel;
+    private BufferedImage image;
+    private Graphics2D g;
+    private boolean pressed; // dragFrame or dragEvent has started its stroke
+    private int step; // moves each drag so the shape keeps changing
+    private MouseMotionListener motionListener; // DrawPanel's MouseHandler
+    private MouseEvent[] motionEvents; // prebuilt, so the harness allocates nothing per event
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        panel = new DrawPanel();
+        panel.setSize(WIDTH, HEIGHT);
+        panel.setTargetFps(0); // apply every event at once, they do not come from the EDT
+        Random random = new Random(42);
+        for( int i = 0; i < count; i++ )
+            panel.addShape(Benchmarks.randomShape(random, WIDTH, HEIGHT));
+
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        panel.paint(g); // builds the committed layer
+
+        motionListener = panel.getMouseMotionListeners()[0];
+        motionEvents = new MouseEvent[256];
+        for( int i = 0; i < motionEvents.length; i++ )
+            motionEvents[i] = new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0,
+                    MouseEvent.BUTTON1_DOWN_MASK, 100 + i, 100 + i / 2, 1, false, MouseEvent.BUTTON1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    // The handler work for one drag event alone, which should not allocate
+    @Benchmark
+    public DrawPanel dragEvent() {
+        if( !pressed ) {
+            Benchmarks.mouse(panel, MouseEvent.MOUSE_PRESSED, 100, 100);
+            pressed = true;
+        }
+        step = (step + 1) & (motionEvents.length - 1);
+        motionListener.mouseDragged(motionEvents[step]);
+        return panel;
+    }
+
+    // The handler work for one move event, which should not allocate
+    @Benchmark
+    public DrawPanel moveEvent() {
+        step = (step + 1) & (motionEvents.length - 1);
+        motionListener.mouseMoved(motionEvents[step]);
+        return panel;
+    }
+
+    // One drag event and the frame painted for it, while a shape is being drawn
+    @Benchmark
+    public BufferedImage dragFrame() {
+        if( !pressed ) {
+            Benchmarks.mouse(panel, MouseEvent.MOUSE_PRESSED, 100, 100);
+            pressed = true;
+        }
+        step = (step + 1) % 300;
+        Benchmarks.mouse(panel, MouseEvent.MOUSE_DRAGGED, 100 + step, 100 + step / 2);
+        g.setClip(panel.getLastRepaintRegion());
+        panel.paint(g);
+        return image;
+    }
+
+    // A whole stroke: press, DRAGS drag frames and the release that commits the shape.
+    // The shape is undone afterwards so the drawing keeps its size.
+    @Benchmark
+    public BufferedImage pressDragRelease() {
+        Benchmarks.mouse(panel, MouseEvent.MOUSE_PRESSED, 200, 200);
+        for( int i = 1; i <= DRAGS; i++ ) {
+            Benchmarks.mouse(panel, MouseEvent.MOUSE_DRAGGED, 200 + i * 5, 200 + i * 3);
+            g.setClip(panel.getLastRepaintRegion());
+            panel.paint(g);
+        }
+        Benchmarks.mouse(panel, MouseEvent.MOUSE_RELEASED, 200 + DRAGS * 5, 200 + DRAGS * 3);
+        g.setClip(null);
+        panel.paint(g);
+        panel.undo();
+        return image;
+    }
+
+} // end of MouseInputBenchmark class
@@ -0,0 +1,118 @@
+package drawingapplication;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ShapeDrawBenchmark times drawing N shapes onto a headless BufferedImage: through
+// MyLine, MyOval and MyRectangle.draw, through ShapeStore.draw, through ShapeBatcher,
+// and through DrawPanel.paintComponent. The shapes mix filled and unfilled, solid and dashed
+// strokes, and Color and GradientPaint, see Benchmarks.randomShape.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ShapeDrawBenchmark {
+
+    private static final int WIDTH = 580; // DrawPanel's size
+    private static final int HEIGHT = 470;
+
+    @Param({"1000", "10000"})
+    int count;
+
+    @Param({"mixed", "line", "oval", "rectangle"})
+    String type;
+
+    private List<MyShape> shapes;
+    private ShapeStore store;
+    private ShapeBatcher batcher;
+    private DrawPanel panel;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        shapes = new ArrayList<>(count);
+        store = new ShapeStore();
+        panel = new DrawPanel();
+        panel.setSize(WIDTH, HEIGHT);
+
+        Random random = new Random(42);
+        while( shapes.size() < count ) {
+            MyShape shape = Benchmarks.randomShape(random, WIDTH, HEIGHT);
+            if( !type.equals("mixed") && !type.equals(typeName(shape)) )
+                continue;
+            shapes.add(shape);
+            store.add(shape);
+            panel.addShape(shape);
+        }
+
+        batcher = new ShapeBatcher(store);
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    // Draws every shape through its own draw method
+    @Benchmark
+    public BufferedImage drawShapes() {
+        for( int i = 0; i < shapes.size(); i++ )
+            shapes.get(i).draw(g);
+        return image;
+    }
+
+    // Draws every shape straight from the packed store
+    @Benchmark
+    public BufferedImage drawStore() {
+        for( int i = 0; i < store.size(); i++ )
+            store.draw(i, g);
+        return image;
+    }
+
+    // Draws every shape from the store grouped into stroke and paint batches
+    @Benchmark
+    public BufferedImage drawBatched() {
+        for( int i = 0; i < store.size(); i++ )
+            batcher.add(i);
+        batcher.draw(g);
+        return image;
+    }
+
+    // Paints the whole panel, which blits the committed layer once it is built
+    @Benchmark
+    public BufferedImage paintPanel() {
+        panel.paint(g);
+        return image;
+    }
+
+    private static String typeName(MyShape shape) {
+        if( shape instanceof MyOval )
+            return "oval";
+        if( shape instanceof MyRectangle )
+            return "rectangle";
+        return "line";
+    }
+
+} // end of ShapeDrawBenchmark class
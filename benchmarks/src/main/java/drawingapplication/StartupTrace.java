@@ -0,0 +1,80 @@
+package drawingapplication;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Toolkit;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.WindowEvent;
+import java.time.Instant;
+import javax.swing.AbstractButton;
+import javax.swing.JDialog;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// StartupTrace starts the drawing application and times its startup. It clicks 1st Color..
+// the given number of ms after the window's first paint, prints how long after the JVM
+// started the window was painted and the color dialog was open, and exits. The startup
+// benchmark in Benchmarks runs it in fresh JVMs, for example:
+//     java -cp benchmarks/target/benchmarks.jar drawingapplication.StartupTrace 1000
+public class StartupTrace {
+
+    private static long started; // when the JVM started, in ms since the epoch
+    private static long painted; // when the window was first painted
+    private static long clicked; // when 1st Color.. was clicked
+    private static boolean tracing; // whether the first paint is being waited for
+
+    public static void main(String[] args) {
+        int clickDelay = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        started = ProcessHandle.current().info().startInstant().map(Instant::toEpochMilli)
+                .orElse(System.currentTimeMillis());
+        // the listener runs on the EDT, where the application builds and shows its window
+        Toolkit.getDefaultToolkit().addAWTEventListener(event -> {
+            if( event instanceof HierarchyEvent )
+                windowShown((HierarchyEvent) event, clickDelay);
+            else if( event.getID() == WindowEvent.WINDOW_OPENED && event.getSource() instanceof JDialog
+                    && "Choose a color".equals(((JDialog) event.getSource()).getTitle()) ) {
+                long opened = System.currentTimeMillis();
+                System.out.printf("startup: first paint %d ms, color dialog %d ms after the JVM started, "
+                        + "%d ms after the click%n", painted - started, opened - started, opened - clicked);
+                System.exit(0);
+            }
+        }, AWTEvent.HIERARCHY_EVENT_MASK | AWTEvent.WINDOW_EVENT_MASK);
+        DrawingApplication.main(new String[0]);
+    } // end of main
+
+    // Once the drawing panel is first shown, waits for its paint and then clicks 1st Color..
+    // clickDelay ms later
+    private static void windowShown(HierarchyEvent event, int clickDelay) {
+        if( tracing || (event.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) == 0
+                || !(event.getComponent() instanceof DrawPanel) || !event.getComponent().isShowing() )
+            return;
+        tracing = true;
+        DrawPanel panel = (DrawPanel) event.getComponent();
+        panel.whenPainted(() -> {
+            painted = System.currentTimeMillis();
+            AbstractButton button = findButton(SwingUtilities.getWindowAncestor(panel), "1st Color..");
+            Timer click = new Timer(clickDelay, clickEvent -> {
+                clicked = System.currentTimeMillis();
+                button.doClick(0);
+            });
+            click.setRepeats(false);
+            click.start();
+        });
+    }
+
+    // Returns the button labelled text in component's tree, or null if there is none
+    private static AbstractButton findButton(Component component, String text) {
+        if( component instanceof AbstractButton && text.equals(((AbstractButton) component).getText()) )
+            return (AbstractButton) component;
+        if( component instanceof Container ) {
+            for( Component child : ((Container) component).getComponents() ) {
+                AbstractButton button = findButton(child, text);
+                if( button != null )
+                    return button;
+            }
+        }
+        return null;
+    }
+
+} // end of StartupTrace class
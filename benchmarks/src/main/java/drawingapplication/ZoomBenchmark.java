@@ -0,0 +1,71 @@
+package drawingapplication;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ZoomBenchmark times a full repaint of a zoomed DrawPanel, the committed layer redrawn
+// from scratch, over N random shapes spread across a 20000x20000 drawing. With level of
+// detail and the density layer the time should stay about the same as N grows.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class ZoomBenchmark {
+
+    private static final int WIDTH = 580; // DrawPanel's size
+    private static final int HEIGHT = 470;
+    private static final int DRAWING_SIZE = 20000;
+
+    @Param({"10000", "100000", "1000000"})
+    int count;
+
+    @Param({"1", "0.25", "0.0625", "0.015625"})
+    double scale;
+
+    private DrawPanel panel;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ShapeStore store = Benchmarks.randomStore(count, DRAWING_SIZE, DRAWING_SIZE);
+        panel = new DrawPanel();
+        panel.setSize(WIDTH, HEIGHT);
+        for( int i = 0; i < store.size(); i++ )
+            panel.addShape(store.getShape(i));
+        panel.zoom(scale, 0, 0);
+
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    // Draws the whole layer again and paints the panel
+    @Benchmark
+    public BufferedImage repaint() {
+        panel.redrawLayer();
+        panel.paint(g);
+        return image;
+    }
+
+} // end of ZoomBenchmark class